@@ -0,0 +1,177 @@
+package cc.typedef.droid.common;
+
+import java.util.TimeZone;
+
+/**
+ * dates in the default time zone, worked out by hand instead of by
+ * Calendar and SimpleDateFormat; safe from any thread<br/>
+ * the last rendering is kept, immutable, and handed out again within the
+ * same second or minute; the zone is looked up again once a minute
+ */
+public final class CachedDateFormat {
+
+    /**
+     * a rendered text and the span of time it stands for
+     */
+    private static final class Rendered {
+
+        final Zone zone;
+        final long start;
+        final long end;
+        final String text;
+
+        Rendered(Zone zone, long start, long end, String text) {
+            this.zone = zone;
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+
+        boolean contains(Zone zone, long millis) {
+            return zone == this.zone && millis >= start && millis < end;
+        }
+    }
+
+    private static final class Zone {
+
+        final TimeZone timeZone;
+        final long time;
+
+        Zone(TimeZone timeZone, long time) {
+            this.timeZone = timeZone;
+            this.time = time;
+        }
+    }
+
+    // rfc 5322 3.3, from 1970-01-01, a thursday
+    private static final String[] DAY_NAMES = {
+            "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"
+    };
+
+    private static final String[] MONTH_NAMES = {
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+            "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+    private static volatile Rendered sLastRfc5322 = null;
+    private static volatile Rendered sLastHourMinute = null;
+    private static volatile Zone sZone = null;
+
+    private static void append2(StringBuilder sb, int n) {
+        sb.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
+    }
+
+    /**
+     * e.g. "09:07"
+     */
+    public static String formatHourMinute(long millis) {
+        Zone zone = getZone();
+        Rendered last = sLastHourMinute;
+        if (last != null && last.contains(zone, millis)) {
+            return last.text;
+        }
+        int offset = zone.timeZone.getOffset(millis);
+        long local = millis + offset;
+        int minuteOfDay = (int) ((local - floorDiv(local, DAY) * DAY)
+                / MINUTE);
+        StringBuilder sb = new StringBuilder(5);
+        append2(sb, minuteOfDay / 60);
+        sb.append(':');
+        append2(sb, minuteOfDay % 60);
+
+        long start = floorDiv(millis, MINUTE) * MINUTE;
+        last = new Rendered(zone, start, start + MINUTE, sb.toString());
+        sLastHourMinute = last;
+        return last.text;
+    }
+
+    /**
+     * rfc 5322 3.3 date-time, e.g. "Tue, 05 Mar 2024 09:07:02 +0800"
+     */
+    public static String formatRfc5322(long millis) {
+        Zone zone = getZone();
+        Rendered last = sLastRfc5322;
+        if (last != null && last.contains(zone, millis)) {
+            return last.text;
+        }
+        int offset = zone.timeZone.getOffset(millis);
+        long local = millis + offset;
+        long days = floorDiv(local, DAY);
+        int secondOfDay = (int) ((local - days * DAY) / SECOND);
+
+        // days to the civil date, after h. hinnant
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra
+                - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        StringBuilder sb = new StringBuilder(31);
+        sb.append(DAY_NAMES[(int) (days - floorDiv(days, 7) * 7)]);
+        sb.append(", ");
+        append2(sb, day);
+        sb.append(' ').append(MONTH_NAMES[month - 1]).append(' ');
+        // 4*DIGIT
+        for (long y = Math.max(year, 1); y < 1000; y *= 10) {
+            sb.append('0');
+        }
+        sb.append(year);
+        sb.append(' ');
+        append2(sb, secondOfDay / 3600);
+        sb.append(':');
+        append2(sb, secondOfDay / 60 % 60);
+        sb.append(':');
+        append2(sb, secondOfDay % 60);
+
+        // +hhmm; a zone of odd seconds is cut to its minute
+        int offsetMinutes = offset / 60000;
+        sb.append(offsetMinutes < 0 ? " -" : " +");
+        offsetMinutes = Math.abs(offsetMinutes);
+        append2(sb, offsetMinutes / 60);
+        append2(sb, offsetMinutes % 60);
+
+        long start = floorDiv(millis, SECOND) * SECOND;
+        last = new Rendered(zone, start, start + SECOND, sb.toString());
+        sLastRfc5322 = last;
+        return last.text;
+    }
+
+    /**
+     * Math.floorDiv comes with api 24
+     */
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            --q;
+        }
+        return q;
+    }
+
+    /**
+     * the default one; TimeZone.getDefault() is a copy each call, so it is
+     * taken at most once a minute
+     */
+    private static Zone getZone() {
+        long now = System.currentTimeMillis();
+        Zone zone = sZone;
+        if (zone == null || now - zone.time >= MINUTE || now < zone.time) {
+            zone = new Zone(TimeZone.getDefault(), now);
+            sZone = zone;
+        }
+        return zone;
+    }
+
+    private CachedDateFormat() {
+        // dummy
+    }
+}
@@ -1,7 +1,5 @@
 package cc.typedef.droid.common;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Locale;
 
 import android.text.Spannable;
@@ -47,8 +45,7 @@ public final class FormatUtil {
         if (timestamp < 0) {
             return null;
         }
-        return new SimpleDateFormat("HH:mm", Locale.ROOT).format(new Date(
-                timestamp));
+        return CachedDateFormat.formatHourMinute(timestamp);
     }
 
     public static String formatTimespan(long timespan) {
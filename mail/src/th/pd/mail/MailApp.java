@@ -10,6 +10,9 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.util.DisplayMetrics;
 
+import th.pd.mail.dao.FastSyncAccess;
+import th.pd.mail.fastsync.SyncService;
+
 public class MailApp extends Application {
 
     public static Context appContext;
@@ -22,6 +25,10 @@ public class MailApp extends Application {
     public void onCreate() {
         super.onCreate();
         setInfo();
+        // the ui and the sync process share the db, not the caches
+        FastSyncAccess.registerObserver(this);
+        // what a crash or a kill has left in the outbox goes out
+        SyncService.sendOutbox(this);
     }
 
     private void setInfo() {
@@ -1,14 +1,27 @@
 package th.pd.mail.dao;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
 
 import th.pd.mail.Const;
 
@@ -32,9 +45,7 @@ final class DbHeader {
                     .append(");")
                     .toString();
             Const.logd(TAG, "db run: " + sql);
-            synchronized (LOCK) {
-                db.execSQL(sql);
-            }
+            db.execSQL(sql);
         }
 
         private static MailAcc fromCursor(Cursor c) {
@@ -43,20 +54,15 @@ final class DbHeader {
         }
 
         static long insert(SQLiteDatabase db, MailAcc acc) {
-            synchronized (LOCK) {
-                return db.insert(TABLE, null, toContentValues(acc));
-            }
+            return db.insert(TABLE, null, toContentValues(acc));
         }
 
         /**
          * @return list of [addr, caption]
          */
         static List<MailAcc> queryAll(SQLiteDatabase db) {
-            Cursor c;
-            synchronized (LOCK) {
-                c = db.query(TABLE, null,
-                        null, null, null, null, null);
-            }
+            Cursor c = db.query(TABLE, null,
+                    null, null, null, null, null);
             List<MailAcc> l = new LinkedList<>();
             while (c.moveToNext()) {
                 l.add(fromCursor(c));
@@ -88,6 +94,48 @@ final class DbHeader {
         public static final String COLUMN_LAST_SYNC = "last_sync";
         public static final String COLUMN_SYNC_STATUS = "sync_status";
         public static final String COLUMN_FLAGS = "flags";
+        public static final String COLUMN_UID_VALIDITY = "uid_validity";
+        public static final String COLUMN_UID_NEXT = "uid_next";
+        public static final String COLUMN_HIGHEST_MOD_SEQ = "highest_mod_seq";
+        public static final String COLUMN_REMOTE_ID = "remote_id";
+        public static final String COLUMN_SYNC_KEY = "sync_key";
+
+        private static final String INDEX_ADDR = "mail_dir_addr";
+
+        /**
+         * since db version 7
+         */
+        private static void addEasColumns(SQLiteDatabase db) {
+            for (String column : new String[] {
+                    COLUMN_REMOTE_ID, COLUMN_SYNC_KEY
+            }) {
+                String sql = new StringBuilder()
+                        .append("ALTER TABLE ").append(TABLE)
+                        .append(" ADD COLUMN ").append(column)
+                        .append(" TEXT;")
+                        .toString();
+                Const.logd(TAG, "db run: " + sql);
+                db.execSQL(sql);
+            }
+        }
+
+        /**
+         * since db version 2
+         */
+        private static void addSyncStateColumns(SQLiteDatabase db) {
+            for (String column : new String[] {
+                    COLUMN_UID_VALIDITY, COLUMN_UID_NEXT,
+                    COLUMN_HIGHEST_MOD_SEQ
+            }) {
+                String sql = new StringBuilder()
+                        .append("ALTER TABLE ").append(TABLE)
+                        .append(" ADD COLUMN ").append(column)
+                        .append(" LONG DEFAULT 0;")
+                        .toString();
+                Const.logd(TAG, "db run: " + sql);
+                db.execSQL(sql);
+            }
+        }
 
         static void createTable(SQLiteDatabase db) {
             String sql = new StringBuilder()
@@ -100,13 +148,32 @@ final class DbHeader {
                     .append(COLUMN_PATH).append(" INTEGER,")
                     .append(COLUMN_LAST_SYNC).append(" LONG,")
                     .append(COLUMN_SYNC_STATUS).append(" INTEGER,")
-                    .append(COLUMN_FLAGS).append(" INTEGER")
+                    .append(COLUMN_FLAGS).append(" INTEGER,")
+                    .append(COLUMN_UID_VALIDITY).append(" LONG DEFAULT 0,")
+                    .append(COLUMN_UID_NEXT).append(" LONG DEFAULT 0,")
+                    .append(COLUMN_HIGHEST_MOD_SEQ).append(" LONG DEFAULT 0,")
+                    .append(COLUMN_REMOTE_ID).append(" TEXT,")
+                    .append(COLUMN_SYNC_KEY).append(" TEXT")
                     .append(");")
                     .toString();
             Const.logd(TAG, "db run: " + sql);
-            synchronized (LOCK) {
-                db.execSQL(sql);
-            }
+            db.execSQL(sql);
+            createIndex(db);
+        }
+
+        /**
+         * since db version 4
+         */
+        private static void createIndex(SQLiteDatabase db) {
+            String sql = new StringBuilder()
+                    .append("CREATE INDEX IF NOT EXISTS ").append(INDEX_ADDR)
+                    .append(" ON ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_ADDR)
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
         }
 
         private static MailDir fromCursor(Cursor c) {
@@ -125,21 +192,26 @@ final class DbHeader {
                     getCursorInt(c, COLUMN_SYNC_STATUS));
             dir.setFlags(
                     getCursorInt(c, COLUMN_FLAGS));
+            dir.setUidValidity(
+                    getCursorLong(c, COLUMN_UID_VALIDITY));
+            dir.setUidNext(
+                    getCursorLong(c, COLUMN_UID_NEXT));
+            dir.setHighestModSeq(
+                    getCursorLong(c, COLUMN_HIGHEST_MOD_SEQ));
+            dir.setRemoteId(
+                    getCursorString(c, COLUMN_REMOTE_ID));
+            dir.setSyncKey(
+                    getCursorString(c, COLUMN_SYNC_KEY));
             return dir;
         }
 
         static long insert(SQLiteDatabase db, MailDir dir) {
-            synchronized (LOCK) {
-                return db.insert(TABLE, null, toContentValues(dir));
-            }
+            return db.insert(TABLE, null, toContentValues(dir));
         }
 
         static List<MailDir> queryAll(SQLiteDatabase db) {
-            Cursor c;
-            synchronized (LOCK) {
-                c = db.query(TABLE, null,
-                        null, null, null, null, COLUMN_AUTO_ID);
-            }
+            Cursor c = db.query(TABLE, null,
+                    null, null, null, null, COLUMN_AUTO_ID);
             ArrayList<MailDir> a = new ArrayList<>(
                     c.getColumnCount());
             while (c.moveToNext()) {
@@ -149,17 +221,88 @@ final class DbHeader {
             return a;
         }
 
+        static MailDir query(SQLiteDatabase db, int autoId) {
+            Cursor c = db.query(TABLE, null,
+                    COLUMN_AUTO_ID + "=?", new String[] {
+                            String.valueOf(autoId)
+                    }, null, null, null);
+            MailDir dir = null;
+            if (c.moveToNext()) {
+                dir = fromCursor(c);
+            }
+            c.close();
+            return dir;
+        }
+
+        static List<MailDir> queryAll(SQLiteDatabase db, String addr) {
+            Cursor c = db.query(TABLE, null,
+                    COLUMN_ADDR + "=?", new String[] {
+                            addr
+                    }, null, null, COLUMN_AUTO_ID);
+            ArrayList<MailDir> a = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                a.add(fromCursor(c));
+            }
+            c.close();
+            return a;
+        }
+
+        static int remove(SQLiteDatabase db, MailDir dir) {
+            return db.delete(TABLE, COLUMN_AUTO_ID + "=?", new String[] {
+                    String.valueOf(dir.getAutoId())
+            });
+        }
+
         private static ContentValues toContentValues(MailDir dir) {
             ContentValues cv = new ContentValues();
-            cv.put(COLUMN_AUTO_ID, dir.getAutoId());
+            if (dir.getAutoId() >= 0) {
+                cv.put(COLUMN_AUTO_ID, dir.getAutoId());
+            }
             cv.put(COLUMN_ADDR, dir.getAddr());
             cv.put(COLUMN_CAPTION, dir.getCaption());
             cv.put(COLUMN_PATH, dir.getPath());
             cv.put(COLUMN_LAST_SYNC, dir.getLastSync());
             cv.put(COLUMN_SYNC_STATUS, dir.getSyncStatus());
             cv.put(COLUMN_FLAGS, dir.getFlags());
+            cv.put(COLUMN_UID_VALIDITY, dir.getUidValidity());
+            cv.put(COLUMN_UID_NEXT, dir.getUidNext());
+            cv.put(COLUMN_HIGHEST_MOD_SEQ, dir.getHighestModSeq());
+            cv.put(COLUMN_REMOTE_ID, dir.getRemoteId());
+            cv.put(COLUMN_SYNC_KEY, dir.getSyncKey());
             return cv;
         }
+
+        /**
+         * e.g. renamed or moved on server
+         */
+        static int update(SQLiteDatabase db, MailDir dir) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_CAPTION, dir.getCaption());
+            cv.put(COLUMN_PATH, dir.getPath());
+            cv.put(COLUMN_FLAGS, dir.getFlags());
+            cv.put(COLUMN_REMOTE_ID, dir.getRemoteId());
+            return db.update(TABLE, cv, COLUMN_AUTO_ID + "=?",
+                    new String[] {
+                            String.valueOf(dir.getAutoId())
+                    });
+        }
+
+        /**
+         * only what a sync changes
+         */
+        static int updateSyncState(SQLiteDatabase db, MailDir dir) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_LAST_SYNC, dir.getLastSync());
+            cv.put(COLUMN_SYNC_STATUS, dir.getSyncStatus());
+            cv.put(COLUMN_UID_VALIDITY, dir.getUidValidity());
+            cv.put(COLUMN_UID_NEXT, dir.getUidNext());
+            cv.put(COLUMN_HIGHEST_MOD_SEQ, dir.getHighestModSeq());
+            cv.put(COLUMN_SYNC_KEY, dir.getSyncKey());
+            return db.update(TABLE, cv, COLUMN_AUTO_ID + "=?",
+                    new String[] {
+                            String.valueOf(dir.getAutoId())
+                    });
+        }
     }
 
     private static class ServerAuth {
@@ -172,6 +315,9 @@ final class DbHeader {
         public static final String COLUMN_PASS = "pass";
         public static final String COLUMN_FLAGS = "flags";
 
+        private static final String INDEX_ADDR_PROTOCOL =
+                "server_auth_addr_protocol";
+
         static void createTable(SQLiteDatabase db) {
             String sql = new StringBuilder()
                     .append("CREATE TABLE ").append(TABLE)
@@ -187,9 +333,25 @@ final class DbHeader {
                     .append(");")
                     .toString();
             Const.logd(TAG, "db run: " + sql);
-            synchronized (LOCK) {
-                db.execSQL(sql);
-            }
+            db.execSQL(sql);
+            createIndex(db);
+        }
+
+        /**
+         * since db version 4
+         */
+        private static void createIndex(SQLiteDatabase db) {
+            String sql = new StringBuilder()
+                    .append("CREATE INDEX IF NOT EXISTS ")
+                    .append(INDEX_ADDR_PROTOCOL)
+                    .append(" ON ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_ADDR).append(',')
+                    .append(COLUMN_PROTOCOL)
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
         }
 
         private static MailServerAuth fromCursor(Cursor c) {
@@ -211,17 +373,12 @@ final class DbHeader {
 
         static long insert(SQLiteDatabase db,
                 MailServerAuth serverAuth) {
-            synchronized (LOCK) {
-                return db.insert(TABLE, null, toContentValues(serverAuth));
-            }
+            return db.insert(TABLE, null, toContentValues(serverAuth));
         }
 
         static List<MailServerAuth> queryAll(SQLiteDatabase db) {
-            Cursor c;
-            synchronized (LOCK) {
-                c = db.query(TABLE, null,
-                        null, null, null, null, COLUMN_AUTO_ID);
-            }
+            Cursor c = db.query(TABLE, null,
+                    null, null, null, null, COLUMN_AUTO_ID);
             ArrayList<MailServerAuth> a = new ArrayList<>(
                     c.getColumnCount());
             while (c.moveToNext()) {
@@ -231,6 +388,21 @@ final class DbHeader {
             return a;
         }
 
+        static MailServerAuth query(SQLiteDatabase db, String addr,
+                String protocol) {
+            Cursor c = db.query(TABLE, null,
+                    COLUMN_ADDR + "=? AND " + COLUMN_PROTOCOL + "=?",
+                    new String[] {
+                            addr, protocol
+                    }, null, null, COLUMN_AUTO_ID, "1");
+            MailServerAuth serverAuth = null;
+            if (c.moveToNext()) {
+                serverAuth = fromCursor(c);
+            }
+            c.close();
+            return serverAuth;
+        }
+
         private static ContentValues toContentValues(MailServerAuth auth) {
             ContentValues cv = new ContentValues();
             cv.put(COLUMN_PROTOCOL, auth.getProtocol());
@@ -243,37 +415,1025 @@ final class DbHeader {
         }
     }
 
+    /**
+     * messages; a sync writes thousands of rows at once, so writes are
+     * batched into one transaction over a compiled statement
+     */
+    private static class Ent {
+
+        public static final String TABLE = "mail_ent";
+        public static final String COLUMN_MESSAGE_ID = "message_id";
+        public static final String COLUMN_ADDR = Acc.COLUMN_ADDR;
+        public static final String COLUMN_PATH = Dir.COLUMN_PATH;
+        public static final String COLUMN_DATE = "date";
+        public static final String COLUMN_LAST_SYNC = "last_sync";
+        public static final String COLUMN_CAPTION = "caption";
+        public static final String COLUMN_SUBJECT = "subject";
+        public static final String COLUMN_FROM = "addr_from";
+        public static final String COLUMN_TO = "addr_to";
+        public static final String COLUMN_CC = "addr_cc";
+        public static final String COLUMN_BCC = "addr_bcc";
+        public static final String COLUMN_REPLY_TO = "addr_reply_to";
+        public static final String COLUMN_SUMMARY = "summary";
+        public static final String COLUMN_ATTACHMENT_ID = "attachment_id";
+        public static final String COLUMN_REMOTE_ID = "remote_id";
+        public static final String COLUMN_REMOTE_SYNC = "remote_sync";
+        public static final String COLUMN_FLAGS = "flags";
+
+        private static final String INDEX_ADDR_PATH_DATE =
+                "mail_ent_addr_path_date";
+        private static final String INDEX_REMOTE_ID = "mail_ent_remote_id";
+
+        // bind order of the insert statement
+        private static final String[] COLUMNS_TO_INSERT = {
+                COLUMN_MESSAGE_ID, COLUMN_ADDR, COLUMN_PATH, COLUMN_DATE,
+                COLUMN_LAST_SYNC, COLUMN_CAPTION, COLUMN_SUBJECT,
+                COLUMN_FROM, COLUMN_TO, COLUMN_CC, COLUMN_BCC,
+                COLUMN_REPLY_TO, COLUMN_SUMMARY, COLUMN_ATTACHMENT_ID,
+                COLUMN_REMOTE_ID, COLUMN_REMOTE_SYNC, COLUMN_FLAGS
+        };
+
+        private static void bindString(SQLiteStatement statement,
+                int index, String value) {
+            if (value == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, value);
+            }
+        }
+
+        static void createTable(SQLiteDatabase db) {
+            String sql = new StringBuilder()
+                    .append("CREATE TABLE ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_AUTO_ID)
+                    .append(" INTEGER PRIMARY KEY AUTOINCREMENT,")
+                    .append(COLUMN_MESSAGE_ID).append(" TEXT,")
+                    .append(COLUMN_ADDR).append(" TEXT,")
+                    .append(COLUMN_PATH).append(" TEXT,")
+                    .append(COLUMN_DATE).append(" LONG,")
+                    .append(COLUMN_LAST_SYNC).append(" LONG,")
+                    .append(COLUMN_CAPTION).append(" TEXT,")
+                    .append(COLUMN_SUBJECT).append(" TEXT,")
+                    .append(COLUMN_FROM).append(" TEXT,")
+                    .append(COLUMN_TO).append(" TEXT,")
+                    .append(COLUMN_CC).append(" TEXT,")
+                    .append(COLUMN_BCC).append(" TEXT,")
+                    .append(COLUMN_REPLY_TO).append(" TEXT,")
+                    .append(COLUMN_SUMMARY).append(" TEXT,")
+                    .append(COLUMN_ATTACHMENT_ID).append(" TEXT,")
+                    .append(COLUMN_REMOTE_ID).append(" LONG,")
+                    .append(COLUMN_REMOTE_SYNC).append(" LONG,")
+                    .append(COLUMN_FLAGS).append(" INTEGER")
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
+
+            // message list of a mail directory, newest first
+            sql = new StringBuilder()
+                    .append("CREATE INDEX ").append(INDEX_ADDR_PATH_DATE)
+                    .append(" ON ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_ADDR).append(',')
+                    .append(COLUMN_PATH).append(',')
+                    .append(COLUMN_DATE)
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
+
+            // what a sync looks up by server id; unique so that a sync
+            // retried after a partial write replaces rather than duplicates;
+            // local-only messages have null remote id, which never collides
+            sql = new StringBuilder()
+                    .append("CREATE UNIQUE INDEX ").append(INDEX_REMOTE_ID)
+                    .append(" ON ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_REMOTE_ID).append(',')
+                    .append(COLUMN_ADDR).append(',')
+                    .append(COLUMN_PATH)
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
+        }
+
+        private static MailEnt fromCursor(Cursor c) {
+            MailEnt ent = new MailEnt();
+            ent.setAutoId(
+                    getCursorInt(c, COLUMN_AUTO_ID));
+            ent.setMessageId(
+                    getCursorString(c, COLUMN_MESSAGE_ID));
+            ent.setMailAddr(
+                    getCursorString(c, COLUMN_ADDR));
+            ent.setMailPath(
+                    getCursorString(c, COLUMN_PATH));
+            ent.setDate(
+                    getCursorLong(c, COLUMN_DATE));
+            ent.setLastSync(
+                    getCursorLong(c, COLUMN_LAST_SYNC));
+            ent.setCaption(
+                    getCursorString(c, COLUMN_CAPTION));
+            ent.setSubject(
+                    getCursorString(c, COLUMN_SUBJECT));
+            ent.setFrom(
+                    split(getCursorString(c, COLUMN_FROM)));
+            ent.setTo(
+                    split(getCursorString(c, COLUMN_TO)));
+            ent.setCc(
+                    split(getCursorString(c, COLUMN_CC)));
+            ent.setBcc(
+                    split(getCursorString(c, COLUMN_BCC)));
+            ent.setReplyTo(
+                    split(getCursorString(c, COLUMN_REPLY_TO)));
+            ent.setSummary(
+                    getCursorString(c, COLUMN_SUMMARY));
+            ent.setAttachmentId(
+                    getCursorString(c, COLUMN_ATTACHMENT_ID));
+            ent.setRemoteId(
+                    getCursorLong(c, COLUMN_REMOTE_ID));
+            ent.setRemoteSync(
+                    getCursorLong(c, COLUMN_REMOTE_SYNC));
+            ent.setFlags(
+                    getCursorInt(c, COLUMN_FLAGS));
+            return ent;
+        }
+
+        /**
+         * one transaction, one compiled statement
+         *
+         * @return number of rows inserted
+         */
+        static int insertAll(SQLiteDatabase db, Collection<MailEnt> ents) {
+            if (ents.isEmpty()) {
+                return 0;
+            }
+            StringBuilder sb = new StringBuilder()
+                    .append("INSERT OR REPLACE INTO ").append(TABLE)
+                    .append(" (");
+            for (int i = 0; i < COLUMNS_TO_INSERT.length; ++i) {
+                sb.append(i == 0 ? "" : ",").append(COLUMNS_TO_INSERT[i]);
+            }
+            sb.append(") VALUES (");
+            for (int i = 0; i < COLUMNS_TO_INSERT.length; ++i) {
+                sb.append(i == 0 ? "?" : ",?");
+            }
+            sb.append(");");
+
+            int n = 0;
+            SQLiteStatement statement = db.compileStatement(
+                    sb.toString());
+            db.beginTransactionNonExclusive();
+            try {
+                for (MailEnt ent : ents) {
+                    bindString(statement, 1, ent.getMessageId());
+                    bindString(statement, 2, ent.getMailAddr());
+                    bindString(statement, 3, ent.getMailPath());
+                    statement.bindLong(4, ent.getDate());
+                    statement.bindLong(5, ent.getLastSync());
+                    bindString(statement, 6, ent.getCaption());
+                    bindString(statement, 7, ent.getSubject());
+                    bindString(statement, 8, join(ent.getFrom()));
+                    bindString(statement, 9, join(ent.getTo()));
+                    bindString(statement, 10, join(ent.getCc()));
+                    bindString(statement, 11, join(ent.getBcc()));
+                    bindString(statement, 12, join(ent.getReplyTo()));
+                    bindString(statement, 13, ent.getSummary());
+                    bindString(statement, 14, ent.getAttachmentId());
+                    if (ent.getRemoteId() > 0) {
+                        statement.bindLong(15, ent.getRemoteId());
+                    } else {
+                        statement.bindNull(15);
+                    }
+                    statement.bindLong(16, ent.getRemoteSync());
+                    statement.bindLong(17, ent.getFlags());
+                    long id = statement.executeInsert();
+                    if (id != -1) {
+                        ent.setAutoId((int) id);
+                        ++n;
+                    }
+                    statement.clearBindings();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
+            return n;
+        }
+
+        /**
+         * @return messages of a mail directory, newest first
+         */
+        static List<MailEnt> query(SQLiteDatabase db, String addr,
+                String path, int offset, int limit) {
+            Cursor c = db.query(TABLE, null,
+                    COLUMN_ADDR + "=? AND " + COLUMN_PATH + "=?",
+                    new String[] {
+                            addr, path
+                    }, null, null, COLUMN_DATE + " DESC",
+                    offset + "," + limit);
+            ArrayList<MailEnt> a = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                a.add(fromCursor(c));
+            }
+            c.close();
+            return a;
+        }
+
+        /**
+         * e.g. to tell what pop3 messages are downloaded
+         */
+        static Set<Long> queryRemoteIds(SQLiteDatabase db, String addr,
+                String path) {
+            Cursor c = db.query(TABLE, new String[] {
+                    COLUMN_REMOTE_ID
+            }, COLUMN_ADDR + "=? AND " + COLUMN_PATH + "=? AND "
+                    + COLUMN_REMOTE_ID + " IS NOT NULL",
+                    new String[] {
+                            addr, path
+                    }, null, null, null);
+            Set<Long> remoteIds = new HashSet<>(c.getCount() * 2);
+            while (c.moveToNext()) {
+                remoteIds.add(c.getLong(0));
+            }
+            c.close();
+            return remoteIds;
+        }
+
+        /**
+         * e.g. when imap uid validity changes
+         */
+        static int removeAll(SQLiteDatabase db, String addr, String path) {
+            return db.delete(TABLE,
+                    COLUMN_ADDR + "=? AND " + COLUMN_PATH + "=?",
+                    new String[] {
+                            addr, path
+                    });
+        }
+
+        /**
+         * @param remoteIdRanges
+         *            inclusive [first, last] pairs, e.g. imap uid set
+         */
+        static int removeAll(SQLiteDatabase db, String addr, String path,
+                List<long[]> remoteIdRanges) {
+            if (remoteIdRanges.isEmpty()) {
+                return 0;
+            }
+            String sql = new StringBuilder()
+                    .append("DELETE FROM ").append(TABLE)
+                    .append(" WHERE ")
+                    .append(COLUMN_ADDR).append("=? AND ")
+                    .append(COLUMN_PATH).append("=? AND ")
+                    .append(COLUMN_REMOTE_ID).append(" BETWEEN ? AND ?;")
+                    .toString();
+            int n = 0;
+            SQLiteStatement statement = db.compileStatement(sql);
+            db.beginTransactionNonExclusive();
+            try {
+                for (long[] range : remoteIdRanges) {
+                    statement.bindString(1, addr);
+                    statement.bindString(2, path);
+                    statement.bindLong(3, range[0]);
+                    statement.bindLong(4, range[1]);
+                    n += statement.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
+            return n;
+        }
+
+        /**
+         * flags and remote sync of existing messages, found by remote id
+         *
+         * @return number of rows updated
+         */
+        static int updateFlagsAll(SQLiteDatabase db,
+                Collection<MailEnt> ents) {
+            if (ents.isEmpty()) {
+                return 0;
+            }
+            String sql = new StringBuilder()
+                    .append("UPDATE ").append(TABLE)
+                    .append(" SET ")
+                    .append(COLUMN_FLAGS).append("=?,")
+                    .append(COLUMN_REMOTE_SYNC).append("=?,")
+                    .append(COLUMN_LAST_SYNC).append("=?")
+                    .append(" WHERE ")
+                    .append(COLUMN_ADDR).append("=? AND ")
+                    .append(COLUMN_PATH).append("=? AND ")
+                    .append(COLUMN_REMOTE_ID).append("=?;")
+                    .toString();
+            int n = 0;
+            SQLiteStatement statement = db.compileStatement(sql);
+            db.beginTransactionNonExclusive();
+            try {
+                for (MailEnt ent : ents) {
+                    statement.bindLong(1, ent.getFlags());
+                    statement.bindLong(2, ent.getRemoteSync());
+                    statement.bindLong(3, ent.getLastSync());
+                    bindString(statement, 4, ent.getMailAddr());
+                    bindString(statement, 5, ent.getMailPath());
+                    statement.bindLong(6, ent.getRemoteId());
+                    n += statement.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * full text index of messages, one row per mail_ent row with docid as
+     * its auto id; filled in the same transaction as mail_ent
+     */
+    private static class Search {
+
+        public static final String TABLE = "mail_ent_fts";
+        public static final String COLUMN_SUBJECT = Ent.COLUMN_SUBJECT;
+        public static final String COLUMN_FROM = Ent.COLUMN_FROM;
+        public static final String COLUMN_SUMMARY = Ent.COLUMN_SUMMARY;
+        public static final String COLUMN_BODY = "body";
+        public static final String COLUMN_HITS = "hits";
+
+        private static final String COLUMN_DOCID = "docid";
+
+        // offsets() reads and tokenizes the row again; only so many are
+        // ranked
+        private static final int MAX_RANKED = 500;
+
+        /**
+         * since db version 5
+         */
+        static void createTable(SQLiteDatabase db) {
+            // TODO a tokenizer for cjk; unicode61 is not there before
+            // sqlite 3.7.13
+            String sql = new StringBuilder()
+                    .append("CREATE VIRTUAL TABLE ").append(TABLE)
+                    .append(" USING fts4 (")
+                    .append(COLUMN_SUBJECT).append(',')
+                    .append(COLUMN_FROM).append(',')
+                    .append(COLUMN_SUMMARY).append(',')
+                    .append(COLUMN_BODY)
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
+        }
+
+        /**
+         * index what is there when upgraded
+         */
+        static void fill(SQLiteDatabase db) {
+            String sql = new StringBuilder()
+                    .append("INSERT INTO ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_DOCID).append(',')
+                    .append(COLUMN_SUBJECT).append(',')
+                    .append(COLUMN_FROM).append(',')
+                    .append(COLUMN_SUMMARY)
+                    .append(") SELECT ")
+                    .append(COLUMN_AUTO_ID).append(',')
+                    .append(Ent.COLUMN_SUBJECT).append(',')
+                    .append(Ent.COLUMN_FROM).append(',')
+                    .append(Ent.COLUMN_SUMMARY)
+                    .append(" FROM ").append(Ent.TABLE)
+                    .append(';')
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
+        }
+
+        /**
+         * to be called after the messages are inserted, i.e. with auto id
+         *
+         * @param bodies
+         *            one for each message, <code>null</code> for none; or
+         *            <code>null</code> for no bodies at all
+         */
+        static void insertAll(SQLiteDatabase db, Collection<MailEnt> ents,
+                Collection<String> bodies) {
+            String sql = new StringBuilder()
+                    .append("INSERT INTO ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_DOCID).append(',')
+                    .append(COLUMN_SUBJECT).append(',')
+                    .append(COLUMN_FROM).append(',')
+                    .append(COLUMN_SUMMARY).append(',')
+                    .append(COLUMN_BODY)
+                    .append(") VALUES (?,?,?,?,?);")
+                    .toString();
+            Iterator<String> bodyIt = bodies != null
+                    ? bodies.iterator()
+                    : null;
+            SQLiteStatement statement = db.compileStatement(sql);
+            try {
+                for (MailEnt ent : ents) {
+                    String body = bodyIt != null ? bodyIt.next() : null;
+                    if (ent.getAutoId() < 0) {
+                        continue;
+                    }
+                    statement.bindLong(1, ent.getAutoId());
+                    Ent.bindString(statement, 2, ent.getSubject());
+                    Ent.bindString(statement, 3, join(ent.getFrom()));
+                    Ent.bindString(statement, 4, ent.getSummary());
+                    Ent.bindString(statement, 5, body);
+                    statement.executeInsert();
+                    statement.clearBindings();
+                }
+            } finally {
+                statement.close();
+            }
+        }
+
+        /**
+         * of the latest {@link #MAX_RANKED} messages matching the words, i.e.
+         * the greatest docids, most hits first, then newest first; with
+         * "_id" for list adapters and {@link #COLUMN_HITS}
+         */
+        static Cursor query(SQLiteDatabase db, String addr, String text,
+                int offset, int limit) {
+            String match = toMatch(text);
+            if (match.isEmpty()) {
+                return null;
+            }
+            // no bm25() in this sqlite; the hit count comes from offsets(),
+            // four numbers a hit; fts gives docids in order, so the inner
+            // LIMIT stops the scan and offsets() runs on those taken only
+            StringBuilder sb = new StringBuilder()
+                    .append("SELECT e.").append(COLUMN_AUTO_ID)
+                    .append(" AS _id, e.*, f.").append(COLUMN_HITS)
+                    .append(" FROM (SELECT ").append(COLUMN_DOCID)
+                    .append(", (length(o) - length(replace(o, ' ', '')) + 1)")
+                    .append(" / 4 AS ").append(COLUMN_HITS)
+                    .append(" FROM (SELECT ").append(TABLE).append('.')
+                    .append(COLUMN_DOCID).append(" AS ").append(COLUMN_DOCID)
+                    .append(", offsets(").append(TABLE).append(") AS o")
+                    .append(" FROM ").append(TABLE);
+            String[] args;
+            if (addr == null) {
+                sb.append(" WHERE ").append(TABLE).append(" MATCH ?");
+                args = new String[] {
+                        match
+                };
+            } else {
+                sb.append(" JOIN ").append(Ent.TABLE).append(" m ON m.")
+                        .append(COLUMN_AUTO_ID).append(" = ").append(TABLE)
+                        .append('.').append(COLUMN_DOCID)
+                        .append(" WHERE ").append(TABLE).append(" MATCH ?")
+                        .append(" AND m.").append(Ent.COLUMN_ADDR).append("=?");
+                args = new String[] {
+                        match, addr
+                };
+            }
+            sb.append(" ORDER BY ").append(TABLE).append('.')
+                    .append(COLUMN_DOCID).append(" DESC LIMIT ")
+                    .append(MAX_RANKED).append(")) f")
+                    .append(" JOIN ").append(Ent.TABLE).append(" e ON e.")
+                    .append(COLUMN_AUTO_ID).append(" = f.").append(COLUMN_DOCID)
+                    .append(" ORDER BY ").append(COLUMN_HITS)
+                    .append(" DESC, e.").append(Ent.COLUMN_DATE).append(" DESC")
+                    .append(" LIMIT ").append(offset).append(',').append(limit)
+                    .append(';');
+            return db.rawQuery(sb.toString(), args);
+        }
+
+        /**
+         * drop the index of messages about to be replaced, found by remote id
+         */
+        static void removeAll(SQLiteDatabase db, Collection<MailEnt> ents) {
+            String sql = new StringBuilder()
+                    .append("DELETE FROM ").append(TABLE)
+                    .append(" WHERE ").append(COLUMN_DOCID)
+                    .append(" IN (SELECT ").append(COLUMN_AUTO_ID)
+                    .append(" FROM ").append(Ent.TABLE)
+                    .append(" WHERE ")
+                    .append(Ent.COLUMN_ADDR).append("=? AND ")
+                    .append(Ent.COLUMN_PATH).append("=? AND ")
+                    .append(Ent.COLUMN_REMOTE_ID).append("=?);")
+                    .toString();
+            SQLiteStatement statement = db.compileStatement(sql);
+            try {
+                for (MailEnt ent : ents) {
+                    if (ent.getRemoteId() <= 0) {
+                        continue;
+                    }
+                    Ent.bindString(statement, 1, ent.getMailAddr());
+                    Ent.bindString(statement, 2, ent.getMailPath());
+                    statement.bindLong(3, ent.getRemoteId());
+                    statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+            }
+        }
+
+        /**
+         * to be called before the messages are removed
+         */
+        static void removeAll(SQLiteDatabase db, String addr, String path) {
+            String sql = new StringBuilder()
+                    .append("DELETE FROM ").append(TABLE)
+                    .append(" WHERE ").append(COLUMN_DOCID)
+                    .append(" IN (SELECT ").append(COLUMN_AUTO_ID)
+                    .append(" FROM ").append(Ent.TABLE)
+                    .append(" WHERE ")
+                    .append(Ent.COLUMN_ADDR).append("=? AND ")
+                    .append(Ent.COLUMN_PATH).append("=?);")
+                    .toString();
+            db.execSQL(sql, new Object[] {
+                    addr, path
+            });
+        }
+
+        /**
+         * to be called before the messages are removed
+         */
+        static void removeAll(SQLiteDatabase db, String addr, String path,
+                List<long[]> remoteIdRanges) {
+            String sql = new StringBuilder()
+                    .append("DELETE FROM ").append(TABLE)
+                    .append(" WHERE ").append(COLUMN_DOCID)
+                    .append(" IN (SELECT ").append(COLUMN_AUTO_ID)
+                    .append(" FROM ").append(Ent.TABLE)
+                    .append(" WHERE ")
+                    .append(Ent.COLUMN_ADDR).append("=? AND ")
+                    .append(Ent.COLUMN_PATH).append("=? AND ")
+                    .append(Ent.COLUMN_REMOTE_ID).append(" BETWEEN ? AND ?);")
+                    .toString();
+            SQLiteStatement statement = db.compileStatement(sql);
+            try {
+                for (long[] range : remoteIdRanges) {
+                    statement.bindString(1, addr);
+                    statement.bindString(2, path);
+                    statement.bindLong(3, range[0]);
+                    statement.bindLong(4, range[1]);
+                    statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+            }
+        }
+
+        /**
+         * every word is taken as a prefix and quoted, so that user input is
+         * never parsed as query syntax
+         */
+        private static String toMatch(String text) {
+            if (text == null) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String word : text.trim().split("\\s+")) {
+                word = word.replace("\"", "");
+                if (word.isEmpty()) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append('"').append(word).append("*\"");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * e.g. when a message body is fetched
+         */
+        static int updateBody(SQLiteDatabase db, int autoId, String body) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_BODY, body);
+            return db.update(TABLE, cv, COLUMN_DOCID + "=?", new String[] {
+                    String.valueOf(autoId)
+            });
+        }
+    }
+
+    /**
+     * what is to be sent or to be synced up, kept until done so that a
+     * crash or a network drop loses nothing; keyed by the stable id of
+     * {@link Syncable}
+     */
+    private static class Outbox {
+
+        public static final String TABLE = "outbox";
+        public static final String COLUMN_SYNC_ID = "sync_id";
+        public static final String COLUMN_PRIORITY = "priority";
+        public static final String COLUMN_STATE = "state";
+        public static final String COLUMN_ATTEMPTS = "attempts";
+        public static final String COLUMN_NEXT_ATTEMPT = "next_attempt";
+        public static final String COLUMN_LAST_ERROR = "last_error";
+        public static final String COLUMN_PROTOCOL = ServerAuth.COLUMN_PROTOCOL;
+        public static final String COLUMN_ADDR = Acc.COLUMN_ADDR;
+        public static final String COLUMN_REQUEST = "request";
+        public static final String COLUMN_PATH = Dir.COLUMN_PATH;
+        public static final String COLUMN_UID = "uid";
+        public static final String COLUMN_TARGET_PATH = "target_path";
+        public static final String COLUMN_MESSAGE_ID = Ent.COLUMN_MESSAGE_ID;
+        public static final String COLUMN_FROM = Ent.COLUMN_FROM;
+        public static final String COLUMN_TO = Ent.COLUMN_TO;
+        public static final String COLUMN_CC = Ent.COLUMN_CC;
+        public static final String COLUMN_BCC = Ent.COLUMN_BCC;
+        public static final String COLUMN_SUBJECT = Ent.COLUMN_SUBJECT;
+        public static final String COLUMN_CONTENT = "content";
+        public static final String COLUMN_ATTACHMENTS = "attachments";
+
+        // one "mime-type\tpath-or-uri[\tsize\tname]" per line
+        private static final char ATTACHMENT_SEPARATOR = '\t';
+        private static final String ATTACHMENT_URI_SCHEME = "content:";
+
+        /**
+         * since db version 6
+         */
+        static void createTable(SQLiteDatabase db) {
+            String sql = new StringBuilder()
+                    .append("CREATE TABLE ").append(TABLE)
+                    .append(" (")
+                    .append(COLUMN_AUTO_ID)
+                    .append(" INTEGER PRIMARY KEY AUTOINCREMENT,")
+                    .append(COLUMN_SYNC_ID).append(" TEXT UNIQUE,")
+                    .append(COLUMN_PRIORITY).append(" INTEGER,")
+                    .append(COLUMN_STATE).append(" INTEGER,")
+                    .append(COLUMN_ATTEMPTS).append(" INTEGER,")
+                    .append(COLUMN_NEXT_ATTEMPT).append(" LONG,")
+                    .append(COLUMN_LAST_ERROR).append(" TEXT,")
+                    .append(COLUMN_PROTOCOL).append(" TEXT,")
+                    .append(COLUMN_ADDR).append(" TEXT,")
+                    .append(COLUMN_REQUEST).append(" INTEGER,")
+                    .append(COLUMN_PATH).append(" TEXT,")
+                    .append(COLUMN_UID).append(" LONG,")
+                    .append(COLUMN_TARGET_PATH).append(" TEXT,")
+                    .append(COLUMN_MESSAGE_ID).append(" TEXT,")
+                    .append(COLUMN_FROM).append(" TEXT,")
+                    .append(COLUMN_TO).append(" TEXT,")
+                    .append(COLUMN_CC).append(" TEXT,")
+                    .append(COLUMN_BCC).append(" TEXT,")
+                    .append(COLUMN_SUBJECT).append(" TEXT,")
+                    .append(COLUMN_CONTENT).append(" TEXT,")
+                    .append(COLUMN_ATTACHMENTS).append(" TEXT")
+                    .append(");")
+                    .toString();
+            Const.logd(TAG, "db run: " + sql);
+            db.execSQL(sql);
+        }
+
+        /**
+         * the server auth is a stub of login and protocol, to be looked up
+         */
+        private static Syncable fromCursor(Cursor c) {
+            MailServerAuth serverAuth = new MailServerAuth();
+            serverAuth.setProtocol(getCursorString(c, COLUMN_PROTOCOL));
+            serverAuth.setLogin(getCursorString(c, COLUMN_ADDR));
+
+            Syncable syncable;
+            if (Const.PROTOCOL_IMAP.equals(serverAuth.getProtocol())) {
+                ImapSyncable imapSyncable = new ImapSyncable();
+                imapSyncable.request = getCursorInt(c, COLUMN_REQUEST);
+                imapSyncable.path = getCursorString(c, COLUMN_PATH);
+                imapSyncable.uid = getCursorLong(c, COLUMN_UID);
+                imapSyncable.targetPath =
+                        getCursorString(c, COLUMN_TARGET_PATH);
+                syncable = imapSyncable;
+            } else if (Const.PROTOCOL_SMTP.equals(serverAuth.getProtocol())) {
+                syncable = new SmtpSyncable();
+            } else {
+                return null;
+            }
+            syncable.setServerAuth(serverAuth);
+
+            String from = getCursorString(c, COLUMN_FROM);
+            if (from != null) {
+                Message message = new Message();
+                message.setMessageId(getCursorString(c, COLUMN_MESSAGE_ID));
+                message.setSender(from);
+                message.setRecipient(getCursorString(c, COLUMN_TO));
+                message.setCarbonCopy(getCursorString(c, COLUMN_CC));
+                message.setBlindCarbonCopy(getCursorString(c, COLUMN_BCC));
+                message.setSubject(getCursorString(c, COLUMN_SUBJECT));
+                message.setContent(getCursorString(c, COLUMN_CONTENT));
+                for (String line : split(
+                        getCursorString(c, COLUMN_ATTACHMENTS))) {
+                    String[] a = line.split(
+                            String.valueOf(ATTACHMENT_SEPARATOR), 4);
+                    if (a.length < 2) {
+                        continue;
+                    }
+                    Message.Attachment attachment = new Message.Attachment();
+                    attachment.mimeType = a[0];
+                    if (a[1].startsWith(ATTACHMENT_URI_SCHEME)) {
+                        attachment.contentUri = Uri.parse(a[1]);
+                    } else {
+                        attachment.file = new File(a[1]);
+                    }
+                    if (a.length == 4) {
+                        attachment.size = Long.parseLong(a[2]);
+                        attachment.name = a[3];
+                    }
+                    message.attachments.add(attachment);
+                }
+                syncable.setMessage(message);
+            }
+
+            // after the message, which may set it
+            syncable.setId(getCursorString(c, COLUMN_SYNC_ID));
+            syncable.setPriority(getCursorInt(c, COLUMN_PRIORITY));
+            syncable.setAttempts(getCursorInt(c, COLUMN_ATTEMPTS));
+            syncable.setNextAttempt(getCursorLong(c, COLUMN_NEXT_ATTEMPT));
+            return syncable;
+        }
+
+        /**
+         * @return -1 if the id is there already
+         */
+        static long insert(SQLiteDatabase db, Syncable syncable) {
+            return db.insertWithOnConflict(TABLE, null,
+                    toContentValues(syncable), SQLiteDatabase.CONFLICT_IGNORE);
+        }
+
+        /**
+         * what is left to do, in lane order and first come first
+         */
+        static List<Syncable> queryAll(SQLiteDatabase db) {
+            Cursor c = db.query(TABLE, null,
+                    COLUMN_STATE + "!=?", new String[] {
+                            String.valueOf(Syncable.STATE_FAILED)
+                    }, null, null,
+                    COLUMN_PRIORITY + "," + COLUMN_AUTO_ID);
+            ArrayList<Syncable> a = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                Syncable syncable = fromCursor(c);
+                if (syncable != null) {
+                    a.add(syncable);
+                }
+            }
+            c.close();
+            return a;
+        }
+
+        static int remove(SQLiteDatabase db, String syncId) {
+            return db.delete(TABLE, COLUMN_SYNC_ID + "=?", new String[] {
+                    syncId
+            });
+        }
+
+        private static ContentValues toContentValues(Syncable syncable) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_SYNC_ID, syncable.getId());
+            cv.put(COLUMN_PRIORITY, syncable.getPriority());
+            cv.put(COLUMN_STATE, Syncable.STATE_QUEUED);
+            cv.put(COLUMN_ATTEMPTS, syncable.getAttempts());
+            cv.put(COLUMN_NEXT_ATTEMPT, syncable.getNextAttempt());
+            cv.put(COLUMN_PROTOCOL, syncable.getServerAuth().getProtocol());
+            cv.put(COLUMN_ADDR, syncable.getServerAuth().getLogin());
+            if (syncable instanceof ImapSyncable) {
+                ImapSyncable imapSyncable = (ImapSyncable) syncable;
+                cv.put(COLUMN_REQUEST, imapSyncable.request);
+                cv.put(COLUMN_PATH, imapSyncable.path);
+                cv.put(COLUMN_UID, imapSyncable.uid);
+                cv.put(COLUMN_TARGET_PATH, imapSyncable.targetPath);
+            }
+            Message message = syncable.getMessage();
+            if (message != null) {
+                cv.put(COLUMN_MESSAGE_ID, message.getMessageId());
+                cv.put(COLUMN_FROM, message.getSender());
+                cv.put(COLUMN_TO, message.getRecipient());
+                cv.put(COLUMN_CC, message.getCarbonCopy());
+                cv.put(COLUMN_BCC, message.getBlindCarbonCopy());
+                cv.put(COLUMN_SUBJECT, message.getSubject());
+                cv.put(COLUMN_CONTENT, message.getContent());
+                List<String> attachments = new ArrayList<>();
+                for (Message.Attachment attachment : message.attachments) {
+                    if (!attachment.isPersistable()) {
+                        // would be lost on restart; copy it into a file
+                        throw new IllegalArgumentException(
+                                "attachment not persistable: "
+                                        + attachment.getName());
+                    }
+                    String location = attachment.file != null
+                            ? attachment.file.getPath()
+                            : attachment.contentUri.toString();
+                    String line = attachment.mimeType
+                            + ATTACHMENT_SEPARATOR + location;
+                    String name = attachment.getName();
+                    if (name != null) {
+                        line += ATTACHMENT_SEPARATOR
+                                + Long.toString(attachment.size)
+                                + ATTACHMENT_SEPARATOR
+                                + name.replaceAll("[\t\r\n]", " ");
+                    }
+                    attachments.add(line);
+                }
+                cv.put(COLUMN_ATTACHMENTS, join(
+                        attachments.toArray(new String[attachments.size()])));
+            }
+            return cv;
+        }
+
+        static int updateState(SQLiteDatabase db, Syncable syncable,
+                int state, String error) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_STATE, state);
+            cv.put(COLUMN_ATTEMPTS, syncable.getAttempts());
+            cv.put(COLUMN_NEXT_ATTEMPT, syncable.getNextAttempt());
+            cv.put(COLUMN_LAST_ERROR, error);
+            return db.update(TABLE, cv, COLUMN_SYNC_ID + "=?", new String[] {
+                    syncable.getId()
+            });
+        }
+    }
+
     private static class SqliteDbHelper extends SQLiteOpenHelper {
 
-        private static final int DB_VERSION = 1;
+        // 2: imap sync state of mail_dir
+        // 3: mail_ent
+        // 4: lookup indexes of mail_dir and server_auth
+        // 5: mail_ent_fts
+        // 6: outbox
+        // 7: mail_dir remote_id and sync_key
+        private static final int DB_VERSION = 7;
 
         public SqliteDbHelper(Context context, String dbName) {
             super(context, dbName, null, DB_VERSION);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // readers see the last commit while the writer goes on; with
+            // it the framework pools connections for concurrent reads
+            db.enableWriteAheadLogging();
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             Const.logd(TAG, "create db");
             Acc.createTable(db);
             Dir.createTable(db);
             ServerAuth.createTable(db);
-            // TODO other tables
+            Ent.createTable(db);
+            Search.createTable(db);
+            Outbox.createTable(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion,
                 int newVersion) {
-            // dummy for now
+            Const.logd(TAG, "upgrade db " + oldVersion + " -> " + newVersion);
+            // fall through version by version
+            if (oldVersion < 2) {
+                Dir.addSyncStateColumns(db);
+            }
+            if (oldVersion < 3) {
+                Ent.createTable(db);
+            }
+            if (oldVersion < 4) {
+                Dir.createIndex(db);
+                ServerAuth.createIndex(db);
+            }
+            if (oldVersion < 5) {
+                Search.createTable(db);
+                Search.fill(db);
+            }
+            if (oldVersion < 6) {
+                Outbox.createTable(db);
+            }
+            if (oldVersion < 7) {
+                Dir.addEasColumns(db);
+            }
+        }
+    }
+
+    /**
+     * a write waiting for the writer thread
+     */
+    private static abstract class Write<T> {
+
+        private T result = null;
+        private RuntimeException error = null;
+        private boolean isDone = false;
+
+        private synchronized void done(RuntimeException e) {
+            if (e != null) {
+                result = null;
+                error = e;
+            }
+            isDone = true;
+            notifyAll();
+        }
+
+        private synchronized T get() {
+            boolean isInterrupted = false;
+            while (!isDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the write is queued anyway; wait for it
+                    isInterrupted = true;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+
+        abstract T onWrite(SQLiteDatabase db);
+
+        private void run(SQLiteDatabase db) {
+            result = onWrite(db);
         }
     }
 
     private static final String TAG = DbHeader.class.getName();
     private static final String DATABASE = "mail.db";
-    private static final Object LOCK = new Object();
-    private static SQLiteDatabase sSqliteDb;
+    private static volatile SQLiteDatabase sSqliteDb;
+
+    // writes queued meanwhile go into one transaction, up to this many
+    private static final int MAX_WRITES_PER_TRANSACTION = 64;
+
+    private static final Queue<Write<?>> sWrites =
+            new ConcurrentLinkedQueue<>();
+
+    // the only thread to write; readers go on their own
+    private static final ExecutorService sWriter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "mail-db-writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
     private static final String COLUMN_AUTO_ID = "auto_id";
 
+    // one address per line
+    private static final String ARRAY_SEPARATOR = "\n";
+
+    /**
+     * @return false if the batch is rolled back for one failed write, i.e.
+     *         the writes are not done
+     */
+    private static boolean commit(SQLiteDatabase db, List<Write<?>> batch) {
+        RuntimeException error = null;
+        db.beginTransactionNonExclusive();
+        try {
+            for (Write<?> write : batch) {
+                write.run(db);
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            try {
+                db.endTransaction();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null && batch.size() > 1) {
+            return false;
+        }
+        for (Write<?> write : batch) {
+            write.done(error);
+        }
+        return true;
+    }
+
+    private static void drainWrites(SQLiteDatabase db) {
+        List<Write<?>> batch = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            Write<?> write;
+            while (batch.size() < MAX_WRITES_PER_TRANSACTION
+                    && (write = sWrites.poll()) != null) {
+                batch.add(write);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (!commit(db, batch)) {
+                // do not fail the others for one; retry each alone
+                for (Write<?> w : batch) {
+                    commit(db, Collections.<Write<?>> singletonList(w));
+                }
+            }
+        }
+    }
+
     private static int getCursorInt(Cursor c, String columnName) {
         return c.getInt(c.getColumnIndex(columnName));
     }
@@ -290,37 +1450,266 @@ final class DbHeader {
         return Acc.queryAll(getSqliteDb(context));
     }
 
+    public static MailDir getMailDir(Context context, int autoId) {
+        return Dir.query(getSqliteDb(context), autoId);
+    }
+
     public static List<MailDir> getMailDirs(Context context) {
         return Dir.queryAll(getSqliteDb(context));
     }
 
+    public static List<MailDir> getMailDirs(Context context, String addr) {
+        return Dir.queryAll(getSqliteDb(context), addr);
+    }
+
+    public static List<MailEnt> getMailEnts(Context context, String addr,
+            String path, int offset, int limit) {
+        return Ent.query(getSqliteDb(context), addr, path, offset, limit);
+    }
+
+    public static Set<Long> getRemoteIds(Context context, String addr,
+            String path) {
+        return Ent.queryRemoteIds(getSqliteDb(context), addr, path);
+    }
+
+    public static MailServerAuth getServerAuth(Context context, String addr,
+            String protocol) {
+        return ServerAuth.query(getSqliteDb(context), addr, protocol);
+    }
+
+    public static List<Syncable> getOutbox(Context context) {
+        return Outbox.queryAll(getSqliteDb(context));
+    }
+
     public static List<MailServerAuth> getServerAuths(Context context) {
         return ServerAuth.queryAll(getSqliteDb(context));
     }
 
     private static SQLiteDatabase getSqliteDb(Context context) {
         if (sSqliteDb == null) {
-            SqliteDbHelper helper = new SqliteDbHelper(
-                    context.getApplicationContext(), DATABASE);
-            sSqliteDb = helper.getWritableDatabase();
-            // TODO fix any possible inconsistent in db
+            synchronized (DbHeader.class) {
+                if (sSqliteDb == null) {
+                    SqliteDbHelper helper = new SqliteDbHelper(
+                            context.getApplicationContext(), DATABASE);
+                    sSqliteDb = helper.getWritableDatabase();
+                    // TODO fix any possible inconsistent in db
+                }
+            }
         }
         return sSqliteDb;
     }
 
-    public static long insert(Context context, MailAcc acc) {
-        return Acc.insert(getSqliteDb(context), acc);
+    public static long insert(Context context, final MailAcc acc) {
+        return write(context, new Write<Long>() {
+
+            @Override
+            Long onWrite(SQLiteDatabase db) {
+                return Acc.insert(db, acc);
+            }
+        });
+    }
+
+    public static long insert(Context context, final MailDir dir) {
+        return write(context, new Write<Long>() {
+
+            @Override
+            Long onWrite(SQLiteDatabase db) {
+                return Dir.insert(db, dir);
+            }
+        });
+    }
+
+    public static long insert(Context context, final MailServerAuth auth) {
+        return write(context, new Write<Long>() {
+
+            @Override
+            Long onWrite(SQLiteDatabase db) {
+                return ServerAuth.insert(db, auth);
+            }
+        });
+    }
+
+    public static long insert(Context context, final Syncable syncable) {
+        return write(context, new Write<Long>() {
+
+            @Override
+            Long onWrite(SQLiteDatabase db) {
+                return Outbox.insert(db, syncable);
+            }
+        });
+    }
+
+    public static int insertAll(Context context,
+            Collection<MailEnt> ents) {
+        return insertAll(context, ents, null);
+    }
+
+    /**
+     * the bodies are indexed in the same write
+     */
+    public static int insertAll(Context context,
+            final Collection<MailEnt> ents, final Collection<String> bodies) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                Search.removeAll(db, ents);
+                int n = Ent.insertAll(db, ents);
+                Search.insertAll(db, ents, bodies);
+                return n;
+            }
+        });
+    }
+
+    private static String join(String[] a) {
+        if (a == null || a.length == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(a[0]);
+        for (int i = 1; i < a.length; ++i) {
+            sb.append(ARRAY_SEPARATOR).append(a[i]);
+        }
+        return sb.toString();
+    }
+
+    public static int remove(Context context, final MailAcc acc) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Acc.remove(db, acc);
+            }
+        });
+    }
+
+    /**
+     * with its messages
+     */
+    public static int remove(Context context, final MailDir dir) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                Search.removeAll(db, dir.getAddr(), dir.getPath());
+                Ent.removeAll(db, dir.getAddr(), dir.getPath());
+                return Dir.remove(db, dir);
+            }
+        });
+    }
+
+    public static int remove(Context context, final Syncable syncable) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Outbox.remove(db, syncable.getId());
+            }
+        });
+    }
+
+    public static int removeMailEnts(Context context, final String addr,
+            final String path) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                Search.removeAll(db, addr, path);
+                return Ent.removeAll(db, addr, path);
+            }
+        });
+    }
+
+    public static int removeMailEnts(Context context, final String addr,
+            final String path, final List<long[]> remoteIdRanges) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                Search.removeAll(db, addr, path, remoteIdRanges);
+                return Ent.removeAll(db, addr, path, remoteIdRanges);
+            }
+        });
+    }
+
+    public static Cursor searchMailEnts(Context context, String addr,
+            String text, int offset, int limit) {
+        return Search.query(getSqliteDb(context), addr, text, offset, limit);
+    }
+
+    private static String[] split(String s) {
+        if (s == null || s.isEmpty()) {
+            return new String[0];
+        }
+        return s.split(ARRAY_SEPARATOR);
     }
 
-    public static long insert(Context context, MailDir dir) {
-        return Dir.insert(getSqliteDb(context), dir);
+    public static int updateBody(Context context, final MailEnt ent,
+            final String body) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Search.updateBody(db, ent.getAutoId(), body);
+            }
+        });
     }
 
-    public static long insert(Context context, MailServerAuth auth) {
-        return ServerAuth.insert(getSqliteDb(context), auth);
+    public static int update(Context context, final MailDir dir) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Dir.update(db, dir);
+            }
+        });
     }
 
-    public static int remove(Context context, MailAcc acc) {
-        return Acc.remove(getSqliteDb(context), acc);
+    public static int updateFlagsAll(Context context,
+            final Collection<MailEnt> ents) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Ent.updateFlagsAll(db, ents);
+            }
+        });
+    }
+
+    public static int updateState(Context context, final Syncable syncable,
+            final int state, final String error) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Outbox.updateState(db, syncable, state, error);
+            }
+        });
+    }
+
+    public static int updateSyncState(Context context, final MailDir dir) {
+        return write(context, new Write<Integer>() {
+
+            @Override
+            Integer onWrite(SQLiteDatabase db) {
+                return Dir.updateSyncState(db, dir);
+            }
+        });
+    }
+
+    /**
+     * queue the write for the writer thread and wait for its transaction
+     */
+    private static <T> T write(Context context, Write<T> write) {
+        final SQLiteDatabase db = getSqliteDb(context);
+        sWrites.add(write);
+        sWriter.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                // may find the queue drained by an earlier run
+                drainWrites(db);
+            }
+        });
+        return write.get();
     }
 }
@@ -1,15 +1,22 @@
 package th.pd.mail.dao;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
 
 import th.pd.mail.Const;
-import th.pd.mail.fastsync.SyncController;
+import th.pd.mail.fastsync.SyncService;
 
 // TODO move the sync stuff into a service
 public class FastSyncAccess {
@@ -131,6 +138,27 @@ public class FastSyncAccess {
 
     private static MailAccSequence mailAccSequence;
 
+    /**
+     * read-through caches of indexed lookups, one set per process; dropped
+     * on any write to their tables, in every process by a change of
+     * {@link #CACHE_URI}
+     */
+    private static final Object CACHE_LOCK = new Object();
+    private static final Map<Integer, MailDir> sMailDirById =
+            new HashMap<>();
+    private static final Map<String, List<MailDir>> sMailDirsByAddr =
+            new HashMap<>();
+    private static final Map<String, MailServerAuth> sServerAuths =
+            new HashMap<>();
+
+    // not served by the provider; only observed
+    private static final Uri CACHE_URI = Uri.parse(
+            "content://" + Const.AUTHORITY + "/cache");
+
+    private static String getServerAuthKey(String addr, String protocol) {
+        return protocol + ":" + addr;
+    }
+
     public static void add(Context context, MailAcc acc) {
         if (DbHeader.insert(context, acc) != -1) {
             getMailAccSequence(context).add(acc);
@@ -138,50 +166,165 @@ public class FastSyncAccess {
     }
 
     public static void add(Context context, MailDir dir) {
-        if (DbHeader.insert(context, dir) != -1) {
-            // TODO cache
+        long id = DbHeader.insert(context, dir);
+        if (id != -1) {
+            dir.setAutoId((int) id);
+            synchronized (CACHE_LOCK) {
+                sMailDirsByAddr.remove(dir.getAddr());
+            }
+            notifyChanged(context);
         }
     }
 
     public static void add(Context context, MailServerAuth serverAuth) {
         if (DbHeader.insert(context, serverAuth) != -1) {
-            // deal with cache
+            synchronized (CACHE_LOCK) {
+                sServerAuths.remove(getServerAuthKey(serverAuth.getLogin(),
+                        serverAuth.getProtocol()));
+            }
+            notifyChanged(context);
         }
     }
 
-    public static void enqueueMessage(SmtpSyncable syncMessage) {
-        SyncController.getInstance().addTask(syncMessage);
+    /**
+     * into the outbox
+     *
+     * @return false if it is there already
+     */
+    public static boolean add(Context context, Syncable syncable) {
+        return DbHeader.insert(context, syncable) != -1;
+    }
+
+    /**
+     * in one transaction
+     */
+    public static int addAll(Context context, Collection<MailEnt> ents) {
+        return DbHeader.insertAll(context, ents);
+    }
+
+    /**
+     * in one transaction, each with its body indexed for search
+     *
+     * @param bodies
+     *            one for each message, <code>null</code> for none
+     */
+    public static int addAll(Context context, Collection<MailEnt> ents,
+            Collection<String> bodies) {
+        return DbHeader.insertAll(context, ents, bodies);
+    }
+
+    /**
+     * kept in the outbox, then sent by the sync process; a db write, so
+     * not on the main thread
+     *
+     * @return false if not kept, and not to be sent
+     */
+    public static boolean enqueueMessage(Context context,
+            SmtpSyncable syncMessage) {
+        try {
+            if (!add(context, syncMessage)) {
+                return false;
+            }
+        } catch (IllegalArgumentException e) {
+            // e.g. an attachment the outbox can not keep
+            Const.logd("cannot queue " + syncMessage.getId() + ": "
+                    + e.getMessage());
+            return false;
+        }
+        SyncService.sendOutbox(context);
+        return true;
     }
 
     public static MailDir findMailDir(Context context, int id) {
-        // XXX can i query directly from db?
-        for (MailDir dir : DbHeader.getMailDirs(context)) {
-            if (dir.getAutoId() == id) {
+        synchronized (CACHE_LOCK) {
+            MailDir dir = sMailDirById.get(id);
+            if (dir != null) {
                 return dir;
             }
         }
-        return null;
+        MailDir dir = DbHeader.getMailDir(context, id);
+        if (dir != null) {
+            synchronized (CACHE_LOCK) {
+                sMailDirById.put(id, dir);
+            }
+        }
+        return dir;
     }
 
     public static List<MailDir> findMailDirs(Context context, MailAcc acc) {
-        List<MailDir> l = new LinkedList<>();
-        for (MailDir dir : DbHeader.getMailDirs(context)) {
-            if (dir.getAddr().equals(acc.getAddr())) {
-                l.add(dir);
+        List<MailDir> cached;
+        synchronized (CACHE_LOCK) {
+            cached = sMailDirsByAddr.get(acc.getAddr());
+        }
+        if (cached == null) {
+            cached = DbHeader.getMailDirs(context, acc.getAddr());
+            synchronized (CACHE_LOCK) {
+                sMailDirsByAddr.put(acc.getAddr(), cached);
+                for (MailDir dir : cached) {
+                    // one object per row, whichever way it is found
+                    if (!sMailDirById.containsKey(dir.getAutoId())) {
+                        sMailDirById.put(dir.getAutoId(), dir);
+                    }
+                }
             }
         }
+        // the caller may change the list
+        return new LinkedList<>(cached);
+    }
+
+    /**
+     * newest first
+     */
+    public static List<MailEnt> findMailEnts(Context context, MailDir dir,
+            int offset, int limit) {
+        return DbHeader.getMailEnts(context, dir.getAddr(), dir.getPath(),
+                offset, limit);
+    }
+
+    /**
+     * what is left in the outbox, with server auths looked up; those whose
+     * server auth has gone are dropped
+     */
+    public static List<Syncable> findOutbox(Context context) {
+        List<Syncable> l = new LinkedList<>();
+        for (Syncable syncable : DbHeader.getOutbox(context)) {
+            MailServerAuth stub = syncable.getServerAuth();
+            MailServerAuth serverAuth = findServerAuth(context,
+                    stub.getLogin(), stub.getProtocol());
+            if (serverAuth == null) {
+                DbHeader.remove(context, syncable);
+                continue;
+            }
+            syncable.setServerAuth(serverAuth);
+            l.add(syncable);
+        }
         return l;
     }
 
+    /**
+     * of the messages in the mail directory
+     */
+    public static Set<Long> findRemoteIds(Context context, MailDir dir) {
+        return DbHeader.getRemoteIds(context, dir.getAddr(), dir.getPath());
+    }
+
     public static MailServerAuth findServerAuth(Context context,
             String addr, String protocol) {
-        for (MailServerAuth serverAuth : DbHeader.getServerAuths(context)) {
-            if (serverAuth.getLogin().equals(addr)
-                    && serverAuth.getProtocol().equals(protocol)) {
+        String key = getServerAuthKey(addr, protocol);
+        synchronized (CACHE_LOCK) {
+            MailServerAuth serverAuth = sServerAuths.get(key);
+            if (serverAuth != null) {
                 return serverAuth;
             }
         }
-        return null;
+        MailServerAuth serverAuth = DbHeader.getServerAuth(context, addr,
+                protocol);
+        if (serverAuth != null) {
+            synchronized (CACHE_LOCK) {
+                sServerAuths.put(key, serverAuth);
+            }
+        }
+        return serverAuth;
     }
 
     public static MailAccSequence getMailAccSequence(Context context) {
@@ -191,9 +334,139 @@ public class FastSyncAccess {
         return mailAccSequence;
     }
 
+    /**
+     * put the text of a fetched message body into the search index
+     */
+    public static int indexMailBody(Context context, MailEnt ent,
+            String body) {
+        return DbHeader.updateBody(context, ent, body);
+    }
+
+    /**
+     * drop the cached lookups, e.g. when another process may have written
+     * the db
+     */
+    public static void invalidate() {
+        synchronized (CACHE_LOCK) {
+            sMailDirById.clear();
+            sMailDirsByAddr.clear();
+            sServerAuths.clear();
+        }
+    }
+
+    /**
+     * the other processes drop their caches too; no sync is asked for
+     */
+    private static void notifyChanged(Context context) {
+        context.getContentResolver().notifyChange(CACHE_URI, null, false);
+    }
+
+    /**
+     * to be called once in every process, on start
+     */
+    public static void registerObserver(Context context) {
+        context.getContentResolver().registerContentObserver(CACHE_URI,
+                false, new ContentObserver(null) {
+
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
     public static void remove(Context context, MailAcc acc) {
         if (DbHeader.remove(context, acc) > 0) {
             getMailAccSequence(context).remove(acc.getAddr());
+            invalidate();
+            notifyChanged(context);
+        }
+    }
+
+    /**
+     * with its messages, e.g. deleted on server
+     */
+    public static void remove(Context context, MailDir dir) {
+        DbHeader.remove(context, dir);
+        synchronized (CACHE_LOCK) {
+            sMailDirById.remove(dir.getAutoId());
+            sMailDirsByAddr.remove(dir.getAddr());
+        }
+        notifyChanged(context);
+    }
+
+    /**
+     * from the outbox, i.e. done
+     */
+    public static void remove(Context context, Syncable syncable) {
+        DbHeader.remove(context, syncable);
+    }
+
+    public static int removeMailEnts(Context context, MailDir dir) {
+        return DbHeader.removeMailEnts(context, dir.getAddr(),
+                dir.getPath());
+    }
+
+    public static int removeMailEnts(Context context, MailDir dir,
+            List<long[]> remoteIdRanges) {
+        return DbHeader.removeMailEnts(context, dir.getAddr(),
+                dir.getPath(), remoteIdRanges);
+    }
+
+    /**
+     * full text search over subject, from, summary and body, best match
+     * first; one page in a cursor
+     *
+     * @param addr
+     *            null for all accounts
+     * @return null if nothing to search
+     */
+    public static Cursor searchMailEnts(Context context, String addr,
+            String text, int offset, int limit) {
+        return DbHeader.searchMailEnts(context, addr, text, offset, limit);
+    }
+
+    /**
+     * caption, path, flags and remote id
+     */
+    public static void update(Context context, MailDir dir) {
+        DbHeader.update(context, dir);
+        synchronized (CACHE_LOCK) {
+            sMailDirById.remove(dir.getAutoId());
+            sMailDirsByAddr.remove(dir.getAddr());
+        }
+        notifyChanged(context);
+    }
+
+    /**
+     * flags of known messages, in one transaction
+     */
+    public static int updateFlagsAll(Context context,
+            Collection<MailEnt> ents) {
+        return DbHeader.updateFlagsAll(context, ents);
+    }
+
+    /**
+     * @param state
+     *            one of Syncable.STATE_*
+     */
+    public static void updateOutbox(Context context, Syncable syncable,
+            int state, String error) {
+        DbHeader.updateState(context, syncable, state, error);
+    }
+
+    /**
+     * persist what a sync learned of the mail directory; written by the
+     * sync process only, and on every sync, so not told to the others
+     */
+    public static void updateSyncState(Context context, MailDir dir) {
+        DbHeader.updateSyncState(context, dir);
+        synchronized (CACHE_LOCK) {
+            MailDir cached = sMailDirById.get(dir.getAutoId());
+            if (cached != null && cached != dir) {
+                sMailDirById.remove(dir.getAutoId());
+                sMailDirsByAddr.remove(dir.getAddr());
+            }
         }
     }
 }
@@ -1,5 +1,7 @@
 package th.pd.mail.dao;
 
+import th.pd.mail.Const;
+
 /**
  * for IMAP, it cares command rather than the message itself<br/>
  */
@@ -24,19 +26,27 @@ public class ImapSyncable extends Syncable {
 
     public String path = "";
 
+    // of the message to move
+    public long uid = -1;
+
+    public String targetPath = "";
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
             return true;
         } else if (o instanceof ImapSyncable) {
-            // TODO
+            return getId().equals(((ImapSyncable) o).getId());
         }
         return false;
     }
 
     @Override
     public void setServerAuth(MailServerAuth serverAuth) {
-        // TODO Auto-generated method stub
-
+        if (Const.PROTOCOL_IMAP.equals(serverAuth.getProtocol())) {
+            this.serverAuth = serverAuth;
+            return;
+        }
+        throw new IllegalArgumentException("expect imap server auth");
     }
 }
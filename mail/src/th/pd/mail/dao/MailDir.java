@@ -5,6 +5,13 @@ package th.pd.mail.dao;
  */
 public class MailDir {
 
+    // kept up to date by server push, e.g. imap IDLE
+    public static final int FLAG_PUSH = 1 << 2;
+
+    // not a mail directory but the folder hierarchy of the account, e.g. eas
+    // folder "0", whose sync key is that of FolderSync
+    public static final int FLAG_HIERARCHY = 1 << 3;
+
     private int autoId = -1;
     private String addr;
     private String caption;
@@ -19,6 +26,14 @@ public class MailDir {
     private String remoteId;
     private String remotePath; // XXX or use remoteParentId
 
+    // imap sync state, rfc 3501 2.3.1.1 and rfc 7162; 0 for unknown
+    private long uidValidity;
+    private long uidNext;
+    private long highestModSeq;
+
+    // eas sync state, "0" or null for none
+    private String syncKey;
+
     public String getAddr() {
         return this.addr;
     }
@@ -39,6 +54,10 @@ public class MailDir {
         return this.flags;
     }
 
+    public long getHighestModSeq() {
+        return this.highestModSeq;
+    }
+
     public long getLastSync() {
         return this.lastSync;
     }
@@ -47,10 +66,34 @@ public class MailDir {
         return this.path;
     }
 
+    public String getRemoteId() {
+        return this.remoteId;
+    }
+
+    public String getSyncKey() {
+        return this.syncKey;
+    }
+
     public int getSyncStatus() {
         return this.syncStatus;
     }
 
+    public long getUidNext() {
+        return this.uidNext;
+    }
+
+    public long getUidValidity() {
+        return this.uidValidity;
+    }
+
+    public boolean isHierarchy() {
+        return (flags & FLAG_HIERARCHY) != 0;
+    }
+
+    public boolean isPush() {
+        return (flags & FLAG_PUSH) != 0;
+    }
+
     public void setAddr(String addr) {
         this.addr = addr;
     }
@@ -67,6 +110,10 @@ public class MailDir {
         this.flags = flags;
     }
 
+    public void setHighestModSeq(long highestModSeq) {
+        this.highestModSeq = highestModSeq;
+    }
+
     public void setLastSync(long lastSync) {
         this.lastSync = lastSync;
     }
@@ -83,7 +130,19 @@ public class MailDir {
         this.remotePath = remotePath;
     }
 
+    public void setSyncKey(String syncKey) {
+        this.syncKey = syncKey;
+    }
+
     public void setSyncStatus(int syncStatus) {
         this.syncStatus = syncStatus;
     }
+
+    public void setUidNext(long uidNext) {
+        this.uidNext = uidNext;
+    }
+
+    public void setUidValidity(long uidValidity) {
+        this.uidValidity = uidValidity;
+    }
 }
@@ -5,12 +5,36 @@ package th.pd.mail.dao;
  */
 public class MailEnt {
 
-    private int autoId;
+    public static final int FLAG_VISIBLE = 1 << 0;
+    public static final int FLAG_LOADED = 1 << 1;
+    public static final int FLAG_READ = 1 << 2;
+    public static final int FLAG_MARKED = 1 << 3;
+
+    /**
+     * for a server whose message ids are strings, e.g. pop3 uidl or eas
+     * server id: the 63-bit fnv-1a hash is kept as remote id, so the table
+     * holds their messages as it does imap ones
+     */
+    public static long toRemoteId(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i) & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h &= Long.MAX_VALUE;
+        // 0 and below mean none
+        return h == 0 ? 1 : h;
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private int autoId = -1;
     private String messageId; // from server
     private String mailAddr;
     private String mailPath;
 
-    private int lastSync; // timestamp in milliseconds
+    private long date; // timestamp in milliseconds, as the server received
+    private long lastSync; // timestamp in milliseconds
 
     private String caption; // sender/receiver display name, depends on its mailAcc
     private String subject;
@@ -23,8 +47,152 @@ public class MailEnt {
 
     private String attachmentId;
 
-    private int remoteId;
-    private int remoteSync;
+    private long remoteId; // e.g. imap uid
+    private long remoteSync; // e.g. imap modseq
 
     private int flags; // visible; loaded; read; marked;
+
+    public String getAttachmentId() {
+        return this.attachmentId;
+    }
+
+    public int getAutoId() {
+        return this.autoId;
+    }
+
+    public String[] getBcc() {
+        return this.bcc;
+    }
+
+    public String getCaption() {
+        return this.caption;
+    }
+
+    public String[] getCc() {
+        return this.cc;
+    }
+
+    public long getDate() {
+        return this.date;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    public String[] getFrom() {
+        return this.from;
+    }
+
+    public long getLastSync() {
+        return this.lastSync;
+    }
+
+    public String getMailAddr() {
+        return this.mailAddr;
+    }
+
+    public String getMailPath() {
+        return this.mailPath;
+    }
+
+    public String getMessageId() {
+        return this.messageId;
+    }
+
+    public long getRemoteId() {
+        return this.remoteId;
+    }
+
+    public long getRemoteSync() {
+        return this.remoteSync;
+    }
+
+    public String[] getReplyTo() {
+        return this.replyTo;
+    }
+
+    public String getSubject() {
+        return this.subject;
+    }
+
+    public String getSummary() {
+        return this.summary;
+    }
+
+    public String[] getTo() {
+        return this.to;
+    }
+
+    public void setAttachmentId(String attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+
+    public void setAutoId(int autoId) {
+        this.autoId = autoId;
+    }
+
+    public void setBcc(String[] bcc) {
+        this.bcc = bcc;
+    }
+
+    public void setCaption(String caption) {
+        this.caption = caption;
+    }
+
+    public void setCc(String[] cc) {
+        this.cc = cc;
+    }
+
+    public void setDate(long date) {
+        this.date = date;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public void setFrom(String[] from) {
+        this.from = from;
+    }
+
+    public void setLastSync(long lastSync) {
+        this.lastSync = lastSync;
+    }
+
+    public void setMailAddr(String mailAddr) {
+        this.mailAddr = mailAddr;
+    }
+
+    public void setMailPath(String mailPath) {
+        this.mailPath = mailPath;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public void setRemoteId(long remoteId) {
+        this.remoteId = remoteId;
+    }
+
+    public void setRemoteSync(long remoteSync) {
+        this.remoteSync = remoteSync;
+    }
+
+    public void setReplyTo(String[] replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    public void setSummary(String summary) {
+        this.summary = summary;
+    }
+
+    public void setTo(String[] to) {
+        this.to = to;
+    }
 }
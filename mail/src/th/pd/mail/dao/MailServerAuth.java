@@ -2,6 +2,12 @@ package th.pd.mail.dao;
 
 public class MailServerAuth {
 
+    // tls right after connected
+    public static final int FLAG_TLS_IMPLICIT = 1 << 0;
+
+    // refuse to go on if STARTTLS is not available
+    public static final int FLAG_TLS_REQUIRED = 1 << 1;
+
     private String protocol;
 
     private String host; // server host
@@ -36,6 +42,20 @@ public class MailServerAuth {
         return protocol;
     }
 
+    /**
+     * by flag, or by the well-known ports of smtps, imaps and pop3s
+     */
+    public boolean isImplicitTls() {
+        if ((flags & FLAG_TLS_IMPLICIT) != 0) {
+            return true;
+        }
+        return port == 443 || port == 465 || port == 993 || port == 995;
+    }
+
+    public boolean isTlsRequired() {
+        return (flags & FLAG_TLS_REQUIRED) != 0;
+    }
+
     public void setFlags(int flags) {
         this.flags = flags;
     }
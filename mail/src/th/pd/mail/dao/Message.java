@@ -1,24 +1,138 @@
 package th.pd.mail.dao;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.LinkedList;
+import java.util.UUID;
 
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 
+import th.pd.mail.Const;
+
 /**
  * basic mail message containing all info that human normally cares
  */
 public class Message {
 
+    /**
+     * the content is one of a file, a content uri or any source, opened only
+     * when exported and read straight onto the wire
+     */
     public static class Attachment {
 
+        /**
+         * e.g. of a {@link android.os.ParcelFileDescriptor}; opened again on
+         * each export, the stream closed by the reader
+         */
+        public interface Source {
+
+            InputStream open() throws IOException;
+        }
+
         /**
          * file to attach
          */
         public File file = null;
 
+        /**
+         * or content uri to attach, kept in the outbox; the read grant must
+         * outlive the composer, i.e. be persistable
+         */
+        public Uri contentUri = null;
+
+        /**
+         * or any other source, not kept in the outbox
+         */
+        public Source source = null;
+
         public String mimeType = null;
+
+        /**
+         * display name; the file name if null
+         */
+        public String name = null;
+
+        /**
+         * in bytes, -1 if unknown
+         */
+        public long size = -1;
+
+        public String getName() {
+            if (name != null) {
+                return name;
+            }
+            if (file != null) {
+                return file.getName();
+            }
+            if (contentUri != null) {
+                return contentUri.getLastPathSegment();
+            }
+            return null;
+        }
+
+        public long getSize() {
+            if (size < 0 && file != null) {
+                return file.length();
+            }
+            return size;
+        }
+
+        public boolean hasContent() {
+            return file != null || contentUri != null || source != null;
+        }
+
+        /**
+         * what the outbox can keep; a {@link Source} does not outlive the
+         * process
+         */
+        public boolean isPersistable() {
+            return file != null || contentUri != null;
+        }
+
+        /**
+         * a content uri is resolved in the context given
+         */
+        public InputStream open(Context context) throws IOException {
+            if (file != null) {
+                return new FileInputStream(file);
+            }
+            if (contentUri != null) {
+                InputStream istream = context.getContentResolver()
+                        .openInputStream(contentUri);
+                if (istream == null) {
+                    throw new FileNotFoundException(contentUri.toString());
+                }
+                return istream;
+            }
+            if (source != null) {
+                return source.open();
+            }
+            throw new FileNotFoundException("no content");
+        }
+
+        /**
+         * the persisted read grant of the content uri, when neither the
+         * outbox nor the composer needs it any more
+         */
+        public void releaseReadGrant(Context context) {
+            if (contentUri == null) {
+                return;
+            }
+            try {
+                context.getContentResolver().releasePersistableUriPermission(
+                        contentUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // not held, e.g. released already
+                Const.logd("no grant to release: " + contentUri);
+            }
+        }
     }
 
     private static String formalizeMailAddress(String addr) {
@@ -41,8 +155,30 @@ public class Message {
     private String subject;
     private String content;
 
+    // rfc 5322 3.6.4, e.g. "<uuid@example.com>"; kept through retries
+    private String messageId;
+
     public final LinkedList<Attachment> attachments = new LinkedList<>();
 
+    /**
+     * a new message id in the domain of the sender, unless there is one
+     */
+    public void ensureMessageId() {
+        if (messageId != null && !messageId.isEmpty()) {
+            return;
+        }
+        String domain = "localhost";
+        if (from != null) {
+            int at = from.lastIndexOf('@');
+            int end = from.indexOf('>', at);
+            if (at >= 0) {
+                domain = from.substring(at + 1,
+                        end < 0 ? from.length() : end).trim();
+            }
+        }
+        messageId = "<" + UUID.randomUUID() + "@" + domain + ">";
+    }
+
     public void formalizeMailAddress() {
         to = formalizeMailAddress(to);
         cc = formalizeMailAddress(cc);
@@ -61,6 +197,10 @@ public class Message {
         return content == null ? "" : content;
     }
 
+    public String getMessageId() {
+        return messageId;
+    }
+
     public String getRecipient() {
         return to;
     }
@@ -85,6 +225,10 @@ public class Message {
         this.content = content;
     }
 
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
     public void setRecipient(String recipient) {
         this.to = recipient;
     }
@@ -4,10 +4,19 @@ import th.pd.mail.Const;
 
 public class SmtpSyncable extends Syncable {
 
+    public SmtpSyncable() {
+        setPriority(PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * the same message, i.e. the same id, whichever retry it is
+     */
     @Override
     public boolean equals(Object o) {
-        if (o instanceof SmtpSyncable) {
-            // TODO
+        if (this == o) {
+            return true;
+        } else if (o instanceof SmtpSyncable) {
+            return getId().equals(((SmtpSyncable) o).getId());
         }
         return false;
     }
@@ -16,6 +25,18 @@ public class SmtpSyncable extends Syncable {
         return !getMessage().getContent().isEmpty();
     }
 
+    /**
+     * every attachment can be kept in the outbox till sent
+     */
+    public boolean hasPersistableAttachments() {
+        for (Message.Attachment attachment : getMessage().attachments) {
+            if (!attachment.isPersistable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean hasRecipient() {
         return !getMessage().getRecipient().isEmpty();
     }
@@ -28,6 +49,16 @@ public class SmtpSyncable extends Syncable {
         return !getMessage().getSubject().isEmpty();
     }
 
+    /**
+     * the message id is the key, so that a message is queued once
+     */
+    @Override
+    public void setMessage(Message message) {
+        super.setMessage(message);
+        message.ensureMessageId();
+        setId(message.getMessageId());
+    }
+
     @Override
     public void setServerAuth(MailServerAuth serverAuth) {
         if (Const.PROTOCOL_SMTP.equals(serverAuth.getProtocol())) {
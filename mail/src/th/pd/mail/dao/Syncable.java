@@ -1,24 +1,73 @@
 package th.pd.mail.dao;
 
+import java.util.UUID;
+
 /**
  * *have* a message not *be* a message
  */
 public abstract class Syncable {
 
+    // lanes of the outbox, served in this order
+    public static final int PRIORITY_INTERACTIVE = 0; // e.g. send
+    public static final int PRIORITY_USER_SYNC = 1;
+    public static final int PRIORITY_BACKGROUND_SYNC = 2;
+    public static final int NUM_PRIORITIES = 3;
+
+    // in the outbox; a sending one found at start is taken as queued, i.e.
+    // it may be sent twice but never lost
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_SENDING = 1;
+    public static final int STATE_FAILED = 2; // given up
+
+    // stable through retries and restarts; the key of the outbox
+    private String id = UUID.randomUUID().toString();
+    private int priority = PRIORITY_BACKGROUND_SYNC;
+    private int attempts = 0;
+    private long nextAttempt = 0; // timestamp in milliseconds
+
     private Message message;
     protected MailServerAuth serverAuth;
 
     @Override
     public abstract boolean equals(Object o);
 
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getId() {
+        return id;
+    }
+
     public Message getMessage() {
         return message;
     }
 
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
     public MailServerAuth getServerAuth() {
         return serverAuth;
     }
 
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public void setMessage(Message message) {
         // TODO from/to/cc/bcc should have been corrected when being typed
         // and should not trim user-typed subject and mail body
@@ -26,5 +75,13 @@ public abstract class Syncable {
         this.message = message;
     }
 
+    public void setNextAttempt(long nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     public abstract void setServerAuth(MailServerAuth serverAuth);
 }
@@ -1,13 +1,10 @@
 package th.pd.mail.fastsync;
 
-import android.accounts.Account;
 import android.content.ContentProvider;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Bundle;
 
 import th.pd.mail.Const;
 import th.pd.mail.dao.FastSyncAccess;
@@ -21,6 +18,15 @@ public class MailProvider extends ContentProvider {
     public static final String REQUEST_SYNC_DIR = "requestSyncDir";
     public static final int ACTION_SYNC_DIR = 1 << 11;
 
+    // full text search; words in selectionArgs[0], paged by query
+    // parameters, e.g. "search?addr=a@b.c&offset=0&limit=50"
+    public static final String REQUEST_SEARCH = "search";
+    public static final int ACTION_SEARCH = 1 << 12;
+    public static final String SEARCH_ADDR = "addr";
+    public static final String SEARCH_OFFSET = "offset";
+    public static final String SEARCH_LIMIT = "limit";
+    private static final int SEARCH_DEFAULT_LIMIT = 50;
+
     private static final UriMatcher sUriMatcher =
             new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -28,6 +34,8 @@ public class MailProvider extends ContentProvider {
         synchronized (sUriMatcher) {
             sUriMatcher.addURI(Const.AUTHORITY, REQUEST_SYNC_DIR
                     + "/#", ACTION_SYNC_DIR);
+            sUriMatcher.addURI(Const.AUTHORITY, REQUEST_SEARCH,
+                    ACTION_SEARCH);
         }
     }
 
@@ -51,21 +59,43 @@ public class MailProvider extends ContentProvider {
                 requestSyncDir(id);
                 break;
             }
+            case ACTION_SEARCH: {
+                if (selectionArgs == null || selectionArgs.length == 0) {
+                    return null;
+                }
+                return FastSyncAccess.searchMailEnts(getContext(),
+                        uri.getQueryParameter(SEARCH_ADDR), selectionArgs[0],
+                        getIntParameter(uri, SEARCH_OFFSET, 0),
+                        getIntParameter(uri, SEARCH_LIMIT,
+                                SEARCH_DEFAULT_LIMIT));
+            }
             case UriMatcher.NO_MATCH:
                 break;
         }
         return null;
     }
 
+    private static int getIntParameter(Uri uri, String key,
+            int defaultValue) {
+        String value = uri.getQueryParameter(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private void requestSyncDir(int id) {
         MailDir dir = FastSyncAccess.findMailDir(getContext(), id);
         if (dir == null) {
             return;
         }
 
-        Bundle extras = new Bundle();
-        ContentResolver.requestSync(new Account(dir.getAddr(),
-                Const.ACCOUNT_TYPE), Const.AUTHORITY, extras);
+        SyncRequester.getInstance().request(dir.getAddr(), id,
+                SyncRequester.PRIORITY_MANUAL);
     }
 
     @Override
@@ -1,76 +1,357 @@
 package th.pd.mail.fastsync;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import th.pd.mail.dao.SmtpSyncable;
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.FastSyncAccess;
+import th.pd.mail.dao.Message;
 import th.pd.mail.dao.Syncable;
+import th.pd.mail.fastsync.network.MessageSpool;
+import th.pd.mail.fastsync.network.MessengerException;
 
 /**
  * a dispatcher to manage queues, tasks and threads<br/>
  * we don't use handler/post if want to take the control of priority and number
- * of threads
+ * of threads: tasks wait in lanes of priority, round robin over accounts in
+ * a lane, and every offered task puts one {@link SyncTask} to the pool, so
+ * none is left behind while there are threads<br/>
+ * every task is kept in the outbox of db until done or given up, so it
+ * survives a crash or a network drop; a task found running at start is run
+ * again, i.e. a message may be sent twice but its Message-ID tells<br/>
+ * it lives in the sync process, kept by {@link SyncService} while the
+ * outbox is not empty; an alarm at the next retry brings the process back
+ * if killed
  */
 public class SyncController {
 
-    private static final int NUM_THREADS = 3;
+    /**
+     * round robin over accounts, first come first in one; not thread safe
+     */
+    private static class FairQueue {
+
+        // account to its tasks, the next in turn first
+        private final LinkedHashMap<String, ArrayDeque<Syncable>> queues =
+                new LinkedHashMap<>();
+
+        void offer(Syncable syncable) {
+            String key = syncable.getServerAuth().getLogin();
+            ArrayDeque<Syncable> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+            }
+            queue.offer(syncable);
+        }
+
+        Syncable poll() {
+            Iterator<Map.Entry<String, ArrayDeque<Syncable>>> it =
+                    queues.entrySet().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, ArrayDeque<Syncable>> entry = it.next();
+            it.remove();
+            Syncable syncable = entry.getValue().poll();
+            if (!entry.getValue().isEmpty()) {
+                // to the end of the turn
+                queues.put(entry.getKey(), entry.getValue());
+            }
+            return syncable;
+        }
+    }
+
+    private static final int DEFAULT_NUM_THREADS = 3;
+    private static final int MAX_NUM_THREADS = 16;
+
+    // an idle thread goes away after this
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF = 30 * 1000;
+    private static final long MAX_BACKOFF = 60 * 60 * 1000;
 
     private static SyncController controller = null;
 
-    public static SyncController getInstance() {
+    public static synchronized SyncController getInstance(Context context) {
         if (controller == null) {
-            controller = new SyncController();
+            controller = new SyncController(context.getApplicationContext());
         }
         return controller;
     }
 
     ////////////////////////////////////////////////////////
 
-    // TODO 3-priority waiting queues
-    // TODO work-in-progress set
-    // TODO done queue
-    private final LinkedBlockingQueue<Syncable> mTaskQueue =
-            new LinkedBlockingQueue<>();
-    private final LinkedBlockingQueue<SyncThread> mThreadPool =
-            new LinkedBlockingQueue<>();
+    private final Context mContext;
+
+    // one per priority, served in order; guarded by itself
+    private final List<FairQueue> mTaskQueues =
+            new ArrayList<>(Syncable.NUM_PRIORITIES);
+
+    // ids of what is queued, waiting for retry or running
+    private final Set<String> mWip = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    private final ThreadPoolExecutor mExecutor;
 
-    private SyncController() {
-        setupThreads(NUM_THREADS);
+    // also where the outbox is loaded, off the main thread
+    private final Timer mRetryTimer = new Timer("syncd-retry", true);
+    private final Random mRandom = new Random();
+
+    // when the alarm goes off; guarded by this
+    private long mAlarmTime = 0;
+
+    private SyncController(Context context) {
+        mContext = context;
+        for (int i = 0; i < Syncable.NUM_PRIORITIES; ++i) {
+            mTaskQueues.add(new FairQueue());
+        }
+        mExecutor = new ThreadPoolExecutor(DEFAULT_NUM_THREADS,
+                DEFAULT_NUM_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "syncd-#" + count.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
-    // would run in SyncThread
-    void addResult(SyncThread syncThread) {
-        // TODO parse/handle/save the result
-        // TODO tell UI
+    /**
+     * would run in SyncTask
+     *
+     * @param e
+     *            null if succeeded
+     */
+    void addResult(Syncable syncable, Exception e) {
+        if (e == null) {
+            removeSpool(syncable);
+            FastSyncAccess.remove(mContext, syncable);
+            releaseReadGrants(syncable);
+            mWip.remove(syncable.getId());
+            stopIfIdle();
+            // TODO tell UI
+            return;
+        }
+
+        int attempts = syncable.getAttempts() + 1;
+        syncable.setAttempts(attempts);
+        boolean isPermanent = e instanceof MessengerException
+                && ((MessengerException) e).isPermanent();
+        if (isPermanent || attempts >= MAX_ATTEMPTS) {
+            Const.logd("give up " + syncable.getId() + ": " + e.getMessage());
+            removeSpool(syncable);
+            syncable.setNextAttempt(0);
+            FastSyncAccess.updateOutbox(mContext, syncable,
+                    Syncable.STATE_FAILED, String.valueOf(e));
+            releaseReadGrants(syncable);
+            mWip.remove(syncable.getId());
+            stopIfIdle();
+            // TODO tell UI
+            return;
+        }
+
+        long delay = getBackoff(attempts);
+        Const.logd("retry " + syncable.getId() + " in " + delay + "ms: "
+                + e.getMessage());
+        syncable.setNextAttempt(System.currentTimeMillis() + delay);
+        FastSyncAccess.updateOutbox(mContext, syncable,
+                Syncable.STATE_QUEUED, String.valueOf(e));
+        schedule(syncable, delay);
     }
 
-    // would run in main thread
-    public void addTask(SmtpSyncable syncMessage) {
-        // TODO if wip set has such message then return
-        mTaskQueue.offer(syncMessage);
-        SyncThread t = getThread();
-        if (t != null) {
-            t.wakeUp();
+    /**
+     * exponential with jitter, so that retries do not come in a burst
+     */
+    private long getBackoff(int attempts) {
+        long backoff = MAX_BACKOFF;
+        if (attempts < 20) {
+            backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << (attempts - 1));
         }
+        return (long) (backoff * (0.5 + mRandom.nextDouble() * 0.5));
     }
 
-    // would run in SyncThread
+    public int getNumThreads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    // would run in SyncTask
     Syncable getTask() {
-        return mTaskQueue.poll();
+        Syncable syncable = null;
+        synchronized (mTaskQueues) {
+            for (FairQueue queue : mTaskQueues) {
+                if ((syncable = queue.poll()) != null) {
+                    break;
+                }
+            }
+        }
+        if (syncable != null) {
+            FastSyncAccess.updateOutbox(mContext, syncable,
+                    Syncable.STATE_SENDING, null);
+        }
+        return syncable;
+    }
+
+    private void offer(Syncable syncable) {
+        int priority = Math.max(0, Math.min(Syncable.NUM_PRIORITIES - 1,
+                syncable.getPriority()));
+        synchronized (mTaskQueues) {
+            mTaskQueues.get(priority).offer(syncable);
+        }
+        // not necessarily the one just offered, but one for one
+        mExecutor.execute(new SyncTask(this));
+    }
+
+    /**
+     * the encoded message is of no use once sent or given up
+     */
+    /**
+     * those of the message done with; a content uri still in the outbox, of
+     * another message, keeps its grant
+     */
+    private void releaseReadGrants(Syncable syncable) {
+        if (syncable.getMessage() == null) {
+            return;
+        }
+        Set<Uri> inUse = new HashSet<>();
+        for (Syncable queued : FastSyncAccess.findOutbox(mContext)) {
+            if (queued.getMessage() == null) {
+                continue;
+            }
+            for (Message.Attachment attachment
+                    : queued.getMessage().attachments) {
+                if (attachment.contentUri != null) {
+                    inUse.add(attachment.contentUri);
+                }
+            }
+        }
+        for (Message.Attachment attachment
+                : syncable.getMessage().attachments) {
+            if (attachment.contentUri != null
+                    && !inUse.contains(attachment.contentUri)) {
+                attachment.releaseReadGrant(mContext);
+            }
+        }
+    }
+
+    private void removeSpool(Syncable syncable) {
+        // smtp sending, or imap appending
+        if (syncable.getMessage() != null) {
+            MessageSpool.remove(syncable.getMessage());
+        }
     }
 
-    private SyncThread getThread() {
-        return mThreadPool.poll();
+    /**
+     * what is left in the outbox from last run, a sending one included, and
+     * what is queued since
+     */
+    private void restore() {
+        long now = System.currentTimeMillis();
+        for (Syncable syncable : FastSyncAccess.findOutbox(mContext)) {
+            if (mWip.add(syncable.getId())) {
+                schedule(syncable, syncable.getNextAttempt() - now);
+            } else if (syncable.getNextAttempt() > now) {
+                // a retry waiting in this process still needs its alarm
+                setAlarm(syncable.getNextAttempt());
+            }
+        }
+        stopIfIdle();
+    }
+
+    /**
+     * load the outbox, off the calling thread
+     */
+    void resume() {
+        mRetryTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                restore();
+            }
+        }, 0);
+    }
+
+    private void schedule(final Syncable syncable, long delay) {
+        if (delay <= 0) {
+            offer(syncable);
+            return;
+        }
+        setAlarm(System.currentTimeMillis() + delay);
+        mRetryTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                offer(syncable);
+            }
+        }, delay);
+    }
+
+    /**
+     * one alarm, at the earliest retry; inexact, so that the system may put
+     * it along with others
+     */
+    private synchronized void setAlarm(long time) {
+        if (mAlarmTime > System.currentTimeMillis() && mAlarmTime <= time) {
+            return;
+        }
+        mAlarmTime = time;
+        AlarmManager alarmManager = (AlarmManager) mContext
+                .getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, time,
+                SyncService.getOutboxIntent(mContext));
     }
 
-    // SyncThread may invoke
-    void putThread(SyncThread syncThread) {
-        mThreadPool.offer(syncThread);
+    /**
+     * takes effect as running tasks finish
+     */
+    public void setNumThreads(int numThreads) {
+        numThreads = Math.max(1, Math.min(MAX_NUM_THREADS, numThreads));
+        synchronized (mExecutor) {
+            // core never above max
+            if (numThreads > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(numThreads);
+                mExecutor.setCorePoolSize(numThreads);
+            } else {
+                mExecutor.setCorePoolSize(numThreads);
+                mExecutor.setMaximumPoolSize(numThreads);
+            }
+        }
     }
 
-    private void setupThreads(int numThreads) {
-        for (int i = 0; i < numThreads; ++i) {
-            SyncThread syncThread = new SyncThread("syncd-#" + i);
-            syncThread.start();
+    /**
+     * the service goes when nothing is left, so does the process at last
+     */
+    private void stopIfIdle() {
+        if (mWip.isEmpty()) {
+            Const.logd("outbox done");
+            mContext.stopService(new Intent(mContext, SyncService.class));
         }
     }
 }
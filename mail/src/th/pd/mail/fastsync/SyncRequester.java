@@ -0,0 +1,178 @@
+package th.pd.mail.fastsync;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import th.pd.mail.Const;
+
+/**
+ * sync requests coalesced before they reach the sync manager: one pending
+ * request per account and mail directory, held for a while so that more
+ * of the same join it; a request of the whole account takes in those of
+ * its directories, and a more urgent one upgrades what is pending<br/>
+ * a request covered by one just sent is dropped too, e.g. on rotation or
+ * repeated taps
+ */
+public class SyncRequester {
+
+    private class Request implements Runnable {
+
+        final String addr;
+        final int dirId;
+        int priority;
+
+        Request(String addr, int dirId, int priority) {
+            this.addr = addr;
+            this.dirId = dirId;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            send(this);
+        }
+    }
+
+    // lower is more urgent, as Syncable
+    public static final int PRIORITY_MANUAL = 0; // the user asks for it
+    public static final int PRIORITY_PUSH = 1; // the server tells a change
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    // the dir id of a request of the whole account
+    public static final int ALL_DIRS = -1;
+
+    private static final long WINDOW_MILLIS = 3000;
+
+    private static SyncRequester sInstance = null;
+
+    public static synchronized SyncRequester getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncRequester();
+        }
+        return sInstance;
+    }
+
+    private static String getKey(String addr, int dirId) {
+        return addr + "/" + dirId;
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // guarded by this
+    private final Map<String, Request> mPending = new HashMap<>();
+    // key to [time sent, priority]
+    private final Map<String, long[]> mSent = new HashMap<>();
+    private long mCollapsedCount = 0;
+
+    private SyncRequester() {
+        // dummy
+    }
+
+    /**
+     * @return number of requests merged into another or dropped so far
+     */
+    public synchronized long getCollapsedCount() {
+        return mCollapsedCount;
+    }
+
+    /**
+     * whether pending or just sent, as urgent or more
+     */
+    private boolean isCovered(String key, int priority, long now) {
+        Request pending = mPending.get(key);
+        if (pending != null && pending.priority <= priority) {
+            return true;
+        }
+        long[] sent = mSent.get(key);
+        return sent != null && now - sent[0] < WINDOW_MILLIS
+                && sent[1] <= priority;
+    }
+
+    /**
+     * @param dirId
+     *            auto id of the mail directory, or {@link #ALL_DIRS}
+     */
+    public synchronized void request(String addr, int dirId, int priority) {
+        long now = SystemClock.elapsedRealtime();
+        String key = getKey(addr, dirId);
+        if (isCovered(getKey(addr, ALL_DIRS), priority, now)
+                || isCovered(key, priority, now)) {
+            ++mCollapsedCount;
+            Const.logd("sync request collapsed: " + key + ", "
+                    + mCollapsedCount + " in all");
+            return;
+        }
+
+        Request request = mPending.get(key);
+        if (request != null) {
+            // upgraded
+            ++mCollapsedCount;
+            mHandler.removeCallbacks(request);
+            request.priority = priority;
+        } else {
+            request = new Request(addr, dirId, priority);
+            if (dirId == ALL_DIRS) {
+                // the whole account covers its directories
+                Iterator<Request> it = mPending.values().iterator();
+                while (it.hasNext()) {
+                    Request r = it.next();
+                    if (r.addr.equals(addr)) {
+                        ++mCollapsedCount;
+                        mHandler.removeCallbacks(r);
+                        request.priority = Math.min(request.priority,
+                                r.priority);
+                        it.remove();
+                    }
+                }
+            }
+            mPending.put(key, request);
+        }
+        // the user is not kept waiting
+        mHandler.postDelayed(request,
+                request.priority == PRIORITY_MANUAL ? 0 : WINDOW_MILLIS);
+    }
+
+    private void send(Request request) {
+        synchronized (this) {
+            String key = getKey(request.addr, request.dirId);
+            if (mPending.get(key) != request) {
+                return;
+            }
+            mPending.remove(key);
+            long now = SystemClock.elapsedRealtime();
+            Iterator<long[]> it = mSent.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next()[0] >= WINDOW_MILLIS) {
+                    it.remove();
+                }
+            }
+            mSent.put(key, new long[] {
+                    now, request.priority
+            });
+        }
+
+        Bundle extras = new Bundle();
+        if (request.dirId != ALL_DIRS) {
+            extras.putInt(SyncService.SYNC_EXTRAS_DIR_ID, request.dirId);
+        }
+        if (request.priority != PRIORITY_PUSH) {
+            // regardless of the auto sync setting, as the ui did
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        }
+        if (request.priority != PRIORITY_BACKGROUND) {
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        }
+        ContentResolver.requestSync(new Account(request.addr,
+                Const.ACCOUNT_TYPE), Const.AUTHORITY, extras);
+    }
+}
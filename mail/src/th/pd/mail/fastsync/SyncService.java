@@ -1,6 +1,21 @@
 package th.pd.mail.fastsync;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import android.accounts.Account;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
@@ -14,9 +29,23 @@ import th.pd.mail.Const;
 import th.pd.mail.dao.FastSyncAccess;
 import th.pd.mail.dao.MailAcc;
 import th.pd.mail.dao.MailDir;
+import th.pd.mail.dao.MailEnt;
+import th.pd.mail.dao.MailServerAuth;
+import th.pd.mail.dao.Message;
+import th.pd.mail.fastsync.network.EasPingEngine;
+import th.pd.mail.fastsync.network.EasWorker;
+import th.pd.mail.fastsync.network.ImapIdleEngine;
+import th.pd.mail.fastsync.network.ImapList;
+import th.pd.mail.fastsync.network.ImapMailEnt;
+import th.pd.mail.fastsync.network.ImapResponse;
+import th.pd.mail.fastsync.network.ImapWorker;
+import th.pd.mail.fastsync.network.MessengerException;
+import th.pd.mail.fastsync.network.Pop3Worker;
 
 /**
- * main entrance of the sync service
+ * main entrance of the sync service; also where the outbox is sent, when
+ * started with {@link #ACTION_SEND_OUTBOX}, and where imap idle is kept
+ * alive, when started with {@link #ACTION_IDLE_KEEPALIVE}
  */
 public class SyncService extends Service {
 
@@ -35,6 +64,9 @@ public class SyncService extends Service {
 
             Context context = getContext();
 
+            // the ui process may have changed mail dirs and server auths
+            FastSyncAccess.invalidate();
+
             MailAcc acc = FastSyncAccess.getMailAccSequence(
                     context).get(account.name);
             if (acc == null) {
@@ -44,17 +76,573 @@ public class SyncService extends Service {
 
             // TODO sync mail account
 
-            // TODO multi-thread and extract extras
+            int dirId = extras.getInt(SYNC_EXTRAS_DIR_ID, -1);
+            MailServerAuth easAuth = FastSyncAccess.findServerAuth(context,
+                    acc.getAddr(), Const.PROTOCOL_EAS);
+            if (easAuth != null && dirId < 0) {
+                // the collections to sync come from the hierarchy
+                syncFolders(context, acc, easAuth, syncResult);
+            }
+
+            List<MailDir> dirs = new ArrayList<>();
             for (MailDir dir : FastSyncAccess.findMailDirs(context, acc)) {
-                syncMailDir(context, dir, extras, syncResult);
+                if (dir.isHierarchy()) {
+                    continue;
+                }
+                if (dirId < 0 || dir.getAutoId() == dirId) {
+                    dirs.add(dir);
+                }
             }
+            syncMailDirs(context, dirs, extras, syncResult);
             Const.logd("performSync--end---- done");
         }
     }
 
+    /**
+     * writes what an imap sync brings down, in batches
+     */
+    private static class ImapDirStore implements ImapWorker.Listener {
+
+        private static final int BATCH_SIZE = 2000;
+
+        private final Context context;
+        private final MailDir dir;
+        private final SyncResult syncResult;
+        private final long now = System.currentTimeMillis();
+
+        private final List<MailEnt> newEnts = new ArrayList<>();
+        private final List<MailEnt> changedEnts = new ArrayList<>();
+
+        ImapDirStore(Context context, MailDir dir, SyncResult syncResult) {
+            this.context = context;
+            this.dir = dir;
+            this.syncResult = syncResult;
+        }
+
+        void flush() {
+            int numInserts = FastSyncAccess.addAll(context, newEnts);
+            newEnts.clear();
+            int numUpdates = FastSyncAccess.updateFlagsAll(context,
+                    changedEnts);
+            changedEnts.clear();
+            // shared by directories syncing at once
+            synchronized (syncResult) {
+                syncResult.stats.numInserts += numInserts;
+                syncResult.stats.numUpdates += numUpdates;
+            }
+        }
+
+        @Override
+        public void onUidValidityChanged(String selectedPath) {
+            newEnts.clear();
+            changedEnts.clear();
+            int numDeletes = FastSyncAccess.removeMailEnts(context, dir);
+            synchronized (syncResult) {
+                syncResult.stats.numDeletes += numDeletes;
+            }
+        }
+
+        @Override
+        public void onUidsListed(String selectedPath, long uidNext,
+                Set<Long> uids) {
+            if (!dir.getPath().equals(selectedPath)) {
+                return;
+            }
+            List<Long> goneIds = new ArrayList<>();
+            for (Long remoteId : FastSyncAccess.findRemoteIds(context, dir)) {
+                if (remoteId < uidNext && !uids.contains(remoteId)) {
+                    goneIds.add(remoteId);
+                }
+            }
+            if (goneIds.isEmpty()) {
+                return;
+            }
+            // in ranges, as VANISHED
+            Collections.sort(goneIds);
+            List<long[]> ranges = new ArrayList<>();
+            long[] range = null;
+            for (long remoteId : goneIds) {
+                if (range != null && range[1] + 1 == remoteId) {
+                    range[1] = remoteId;
+                } else {
+                    range = new long[] {
+                            remoteId, remoteId
+                    };
+                    ranges.add(range);
+                }
+            }
+            flush();
+            int numDeletes = FastSyncAccess.removeMailEnts(context, dir,
+                    ranges);
+            synchronized (syncResult) {
+                syncResult.stats.numDeletes += numDeletes;
+            }
+        }
+
+        @Override
+        public void onUntagged(String selectedPath, ImapResponse resp) {
+            if (!dir.getPath().equals(selectedPath)) {
+                return;
+            }
+            if ("FETCH".equals(resp.getType())) {
+                ImapList attrs = resp.getElements().getList(0);
+                if (attrs == null) {
+                    return;
+                }
+                MailEnt ent = ImapMailEnt.toMailEnt(attrs);
+                ent.setMailAddr(dir.getAddr());
+                ent.setMailPath(dir.getPath());
+                ent.setLastSync(now);
+                if (attrs.get("ENVELOPE") != null) {
+                    newEnts.add(ent);
+                } else {
+                    changedEnts.add(ent);
+                }
+                if (newEnts.size() + changedEnts.size() >= BATCH_SIZE) {
+                    flush();
+                }
+            } else if ("VANISHED".equals(resp.getType())) {
+                // "* VANISHED (EARLIER) 300:310,405"
+                ImapList elements = resp.getElements();
+                flush();
+                int numDeletes = FastSyncAccess.removeMailEnts(context, dir,
+                        ImapMailEnt.parseUidSet(
+                                elements.getString(elements.size() - 1)));
+                synchronized (syncResult) {
+                    syncResult.stats.numDeletes += numDeletes;
+                }
+            }
+            // an EXPUNGE takes sequence number; what it removes is found by
+            // the uids listed at the end of sync
+        }
+    }
+
+    /**
+     * writes what a pop3 download brings, in batches; a message is known by
+     * the remote id of its uidl
+     */
+    private static class Pop3DirStore implements Pop3Worker.Listener {
+
+        private static final int BATCH_SIZE = 100;
+
+        private final Context context;
+        private final MailDir dir;
+        private final SyncResult syncResult;
+        private final long now = System.currentTimeMillis();
+        private final Set<Long> knownIds;
+
+        private final List<MailEnt> ents = new ArrayList<>();
+        private final List<String> bodies = new ArrayList<>();
+
+        Pop3DirStore(Context context, MailDir dir, SyncResult syncResult) {
+            this.context = context;
+            this.dir = dir;
+            this.syncResult = syncResult;
+            this.knownIds = FastSyncAccess.findRemoteIds(context, dir);
+        }
+
+        void flush() {
+            int numInserts = FastSyncAccess.addAll(context, ents, bodies);
+            ents.clear();
+            bodies.clear();
+            synchronized (syncResult) {
+                syncResult.stats.numInserts += numInserts;
+            }
+        }
+
+        @Override
+        public File getSpoolDir(long remoteId) {
+            return new File(context.getFilesDir(), "attachments/"
+                    + dir.getAutoId() + "/" + remoteId);
+        }
+
+        @Override
+        public boolean isKnown(long remoteId) {
+            return knownIds.contains(remoteId);
+        }
+
+        @Override
+        public void onMessage(MailEnt ent, Message message) {
+            ent.setMailAddr(dir.getAddr());
+            ent.setMailPath(dir.getPath());
+            ent.setLastSync(now);
+            ents.add(ent);
+            bodies.add(message.getContent().isEmpty()
+                    ? null
+                    : message.getContent());
+            if (ents.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * writes what an eas sync of a collection brings, in batches; a message
+     * is known by the remote id of its server id
+     */
+    private static class EasDirStore implements EasWorker.Listener {
+
+        private static final int BATCH_SIZE = 500;
+
+        private final Context context;
+        private final MailDir dir;
+        private final SyncResult syncResult;
+        private final long now = System.currentTimeMillis();
+
+        private final List<MailEnt> newEnts = new ArrayList<>();
+        private final List<String> bodies = new ArrayList<>();
+        private final List<MailEnt> changedEnts = new ArrayList<>();
+        private final List<long[]> deletedIds = new ArrayList<>();
+
+        EasDirStore(Context context, MailDir dir, SyncResult syncResult) {
+            this.context = context;
+            this.dir = dir;
+            this.syncResult = syncResult;
+        }
+
+        private void stamp(MailEnt ent) {
+            ent.setMailAddr(dir.getAddr());
+            ent.setMailPath(dir.getPath());
+            ent.setLastSync(now);
+            if (newEnts.size() + changedEnts.size()
+                    + deletedIds.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            int numInserts = FastSyncAccess.addAll(context, newEnts,
+                    bodies);
+            newEnts.clear();
+            bodies.clear();
+            int numUpdates = FastSyncAccess.updateFlagsAll(context,
+                    changedEnts);
+            changedEnts.clear();
+            int numDeletes = FastSyncAccess.removeMailEnts(context, dir,
+                    deletedIds);
+            deletedIds.clear();
+            synchronized (syncResult) {
+                syncResult.stats.numInserts += numInserts;
+                syncResult.stats.numUpdates += numUpdates;
+                syncResult.stats.numDeletes += numDeletes;
+            }
+        }
+
+        @Override
+        public void onFolderAdded(String serverId, String parentId,
+                String displayName, int type) {
+            // dummy
+        }
+
+        @Override
+        public void onFolderDeleted(String serverId) {
+            // dummy
+        }
+
+        @Override
+        public void onFolderUpdated(String serverId, String parentId,
+                String displayName, int type) {
+            // dummy
+        }
+
+        @Override
+        public void onMessage(MailDir dir, MailEnt ent, String body) {
+            newEnts.add(ent);
+            bodies.add(body == null || body.isEmpty() ? null : body);
+            stamp(ent);
+        }
+
+        @Override
+        public void onMessageChanged(MailDir dir, MailEnt ent) {
+            changedEnts.add(ent);
+            stamp(ent);
+        }
+
+        @Override
+        public void onMessageDeleted(MailDir dir, long remoteId) {
+            deletedIds.add(new long[] {
+                    remoteId, remoteId
+            });
+            if (deletedIds.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onSyncReset(MailDir dir) {
+            newEnts.clear();
+            bodies.clear();
+            changedEnts.clear();
+            deletedIds.clear();
+            int numDeletes = FastSyncAccess.removeMailEnts(context, dir);
+            synchronized (syncResult) {
+                syncResult.stats.numDeletes += numDeletes;
+            }
+        }
+    }
+
+    /**
+     * keeps a mail dir per eas mail folder: the path of the inbox is
+     * {@link #INBOX}, that of any other its server id, which stays as it is
+     * renamed or moved
+     */
+    private static class EasFolderStore implements EasWorker.Listener {
+
+        private final Context context;
+        private final String addr;
+        private final SyncResult syncResult;
+
+        // by server id
+        private final Map<String, MailDir> dirs = new HashMap<>();
+
+        EasFolderStore(Context context, MailAcc acc, SyncResult syncResult) {
+            this.context = context;
+            this.addr = acc.getAddr();
+            this.syncResult = syncResult;
+            for (MailDir dir : FastSyncAccess.findMailDirs(context, acc)) {
+                if (dir.getRemoteId() != null && !dir.isHierarchy()) {
+                    dirs.put(dir.getRemoteId(), dir);
+                }
+            }
+        }
+
+        @Override
+        public void onFolderAdded(String serverId, String parentId,
+                String displayName, int type) {
+            if (!EasWorker.isMailFolder(type)) {
+                return;
+            }
+            MailDir dir = dirs.get(serverId);
+            if (dir != null) {
+                // the hierarchy starts over
+                onFolderUpdated(serverId, parentId, displayName, type);
+                return;
+            }
+            dir = new MailDir();
+            dir.setAddr(addr);
+            dir.setCaption(displayName);
+            dir.setPath(type == EasWorker.FOLDER_TYPE_INBOX
+                    ? INBOX
+                    : serverId);
+            dir.setRemoteId(serverId);
+            dir.setFlags(type == EasWorker.FOLDER_TYPE_INBOX
+                    ? MailDir.FLAG_PUSH
+                    : 0);
+            FastSyncAccess.add(context, dir);
+            dirs.put(serverId, dir);
+            synchronized (syncResult) {
+                ++syncResult.stats.numInserts;
+            }
+        }
+
+        @Override
+        public void onFolderDeleted(String serverId) {
+            MailDir dir = dirs.remove(serverId);
+            if (dir == null) {
+                return;
+            }
+            getPingEngine().unwatch(dir);
+            FastSyncAccess.remove(context, dir);
+            synchronized (syncResult) {
+                ++syncResult.stats.numDeletes;
+            }
+        }
+
+        @Override
+        public void onFolderUpdated(String serverId, String parentId,
+                String displayName, int type) {
+            MailDir dir = dirs.get(serverId);
+            if (dir == null) {
+                onFolderAdded(serverId, parentId, displayName, type);
+                return;
+            }
+            if (displayName != null && !displayName.equals(dir.getCaption())) {
+                dir.setCaption(displayName);
+                FastSyncAccess.update(context, dir);
+                synchronized (syncResult) {
+                    ++syncResult.stats.numUpdates;
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(MailDir dir, MailEnt ent, String body) {
+            // dummy
+        }
+
+        @Override
+        public void onMessageChanged(MailDir dir, MailEnt ent) {
+            // dummy
+        }
+
+        @Override
+        public void onMessageDeleted(MailDir dir, long remoteId) {
+            // dummy
+        }
+
+        @Override
+        public void onSyncReset(MailDir dir) {
+            // dummy
+        }
+    }
+
+    // sync only the mail directory of this auto id
+    public static final String SYNC_EXTRAS_DIR_ID = "dir-id";
+
+    public static final String ACTION_IDLE_KEEPALIVE =
+            "th.pd.mail.action.IDLE_KEEPALIVE";
+
+    public static final String ACTION_SEND_OUTBOX =
+            "th.pd.mail.action.SEND_OUTBOX";
+
+    // most imap servers take about this many sessions of a user at once
+    private static final int MAX_SESSIONS_PER_SERVER = 5;
+
+    // of those sessions, held by idle; inbox is pushed by default
+    private static final int MAX_WATCHES_PER_SERVER = 2;
+
+    private static final String INBOX = "INBOX";
+
+    // ms-ascmd 2.2.3.123.2: the parent id of a top level folder
+    private static final String EAS_ROOT_ID = "0";
+
+    /**
+     * inbox first, then the recently synced, i.e. those in use, then the rest
+     */
+    private static final Comparator<MailDir> SYNC_ORDER =
+            new Comparator<MailDir>() {
+
+                @Override
+                public int compare(MailDir a, MailDir b) {
+                    boolean isInboxA = INBOX.equalsIgnoreCase(a.getPath());
+                    boolean isInboxB = INBOX.equalsIgnoreCase(b.getPath());
+                    if (isInboxA != isInboxB) {
+                        return isInboxA ? -1 : 1;
+                    }
+                    return Long.compare(b.getLastSync(), a.getLastSync());
+                }
+            };
+
     private static ThreadedSyncAdapter sSyncAdapter;
     private static Object sSyncAdapterLock = new Object();
 
+    private static ImapIdleEngine sIdleEngine;
+    private static EasPingEngine sPingEngine;
+
+    /**
+     * a pushed change comes back as a sync of that very directory
+     */
+    private static synchronized ImapIdleEngine getIdleEngine(
+            Context context) {
+        if (sIdleEngine == null) {
+            context = context.getApplicationContext();
+            sIdleEngine = new ImapIdleEngine(context,
+                    PendingIntent.getService(context, 0,
+                            new Intent(context, SyncService.class)
+                                    .setAction(ACTION_IDLE_KEEPALIVE),
+                            PendingIntent.FLAG_UPDATE_CURRENT),
+                    MAX_WATCHES_PER_SERVER,
+                    new ImapIdleEngine.Listener() {
+
+                        @Override
+                        public void onMailDirChanged(MailDir dir) {
+                            SyncRequester.getInstance().request(
+                                    dir.getAddr(), dir.getAutoId(),
+                                    SyncRequester.PRIORITY_PUSH);
+                        }
+                    });
+        }
+        return sIdleEngine;
+    }
+
+    /**
+     * for an alarm to bring the sync process back at a retry
+     */
+    static PendingIntent getOutboxIntent(Context context) {
+        return PendingIntent.getService(context, 0,
+                new Intent(context, SyncService.class)
+                        .setAction(ACTION_SEND_OUTBOX),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * a pushed change comes back as a sync of that very directory, a
+     * change of folders as one of the whole account
+     */
+    private static synchronized EasPingEngine getPingEngine() {
+        if (sPingEngine == null) {
+            sPingEngine = new EasPingEngine(new EasPingEngine.Listener() {
+
+                @Override
+                public void onHierarchyChanged(String addr) {
+                    SyncRequester.getInstance().request(addr,
+                            SyncRequester.ALL_DIRS,
+                            SyncRequester.PRIORITY_PUSH);
+                }
+
+                @Override
+                public void onMailDirChanged(MailDir dir) {
+                    SyncRequester.getInstance().request(dir.getAddr(),
+                            dir.getAutoId(), SyncRequester.PRIORITY_PUSH);
+                }
+            });
+        }
+        return sPingEngine;
+    }
+
+    /**
+     * what is in the outbox goes out from the sync process, whichever
+     * process asks
+     */
+    public static void sendOutbox(Context context) {
+        context.startService(new Intent(context, SyncService.class)
+                .setAction(ACTION_SEND_OUTBOX));
+    }
+
+    /**
+     * eas FolderSync into mail dirs; its sync key is kept in the hierarchy
+     * dir of the account, made on first sync
+     */
+
+    private static void syncFolders(Context context, MailAcc acc,
+            MailServerAuth serverAuth, SyncResult syncResult) {
+        MailDir hierarchy = null;
+        for (MailDir dir : FastSyncAccess.findMailDirs(context, acc)) {
+            if (dir.isHierarchy()) {
+                hierarchy = dir;
+                break;
+            }
+        }
+        if (hierarchy == null) {
+            hierarchy = new MailDir();
+            hierarchy.setAddr(acc.getAddr());
+            hierarchy.setCaption("");
+            hierarchy.setPath(EAS_ROOT_ID);
+            hierarchy.setRemoteId(EAS_ROOT_ID);
+            hierarchy.setFlags(MailDir.FLAG_HIERARCHY);
+            hierarchy.setSyncKey(EasWorker.INITIAL_SYNC_KEY);
+            FastSyncAccess.add(context, hierarchy);
+        }
+
+        EasWorker worker = new EasWorker();
+        worker.setListener(new EasFolderStore(context, acc, syncResult));
+        try {
+            worker.folderSync(serverAuth, hierarchy);
+            hierarchy.setLastSync(System.currentTimeMillis());
+            FastSyncAccess.updateSyncState(context, hierarchy);
+        } catch (IOException e) {
+            Const.logd("sync folders: " + e.getMessage());
+            synchronized (syncResult) {
+                ++syncResult.stats.numIoExceptions;
+            }
+        } catch (MessengerException e) {
+            Const.logd("sync folders: " + e.getMessage());
+            synchronized (syncResult) {
+                ++syncResult.stats.numAuthExceptions;
+            }
+        }
+    }
+
     private static void syncMailDir(Context context, MailDir dir,
             Bundle extras, SyncResult syncResult) {
         if (dir == null) {
@@ -66,6 +654,147 @@ public class SyncService extends Service {
         // what to sync depends on the extras param
 
         // TODO to inform it's syncing
+
+        MailServerAuth serverAuth = FastSyncAccess.findServerAuth(context,
+                dir.getAddr(), Const.PROTOCOL_IMAP);
+        if (serverAuth == null) {
+            serverAuth = FastSyncAccess.findServerAuth(context,
+                    dir.getAddr(), Const.PROTOCOL_EAS);
+        }
+        if (serverAuth == null) {
+            serverAuth = FastSyncAccess.findServerAuth(context,
+                    dir.getAddr(), Const.PROTOCOL_POP3);
+            if (serverAuth == null || !INBOX.equalsIgnoreCase(dir.getPath())) {
+                return;
+            }
+        }
+
+        try {
+            if (Const.PROTOCOL_EAS.equals(serverAuth.getProtocol())) {
+                if (dir.getRemoteId() == null || dir.isHierarchy()) {
+                    // not an eas collection
+                    return;
+                }
+                EasWorker worker = new EasWorker();
+                EasDirStore store = new EasDirStore(context, dir,
+                        syncResult);
+                worker.setListener(store);
+                worker.syncMailDir(serverAuth, dir);
+                // the sync key is saved only after what it covers
+                store.flush();
+                dir.setLastSync(System.currentTimeMillis());
+                FastSyncAccess.updateSyncState(context, dir);
+                if (dir.isPush()) {
+                    // no-op if watched already
+                    getPingEngine().watch(serverAuth, dir);
+                }
+                return;
+            }
+
+
+            if (Const.PROTOCOL_POP3.equals(serverAuth.getProtocol())) {
+                Pop3Worker worker = new Pop3Worker();
+                Pop3DirStore store = new Pop3DirStore(context, dir,
+                        syncResult);
+                worker.setListener(store);
+                try {
+                    worker.syncMailDir(serverAuth, dir);
+                } finally {
+                    // what is downloaded is kept, even on failure
+                    store.flush();
+                }
+                dir.setLastSync(System.currentTimeMillis());
+                FastSyncAccess.updateSyncState(context, dir);
+                return;
+            }
+
+            if (!dir.isPush() && INBOX.equalsIgnoreCase(dir.getPath())
+                    && dir.getLastSync() == 0) {
+                // pushed by default; a flag cleared later is kept so
+                dir.setFlags(dir.getFlags() | MailDir.FLAG_PUSH);
+                FastSyncAccess.update(context, dir);
+            }
+            ImapWorker worker = new ImapWorker();
+            ImapDirStore store = new ImapDirStore(context, dir, syncResult);
+            worker.setListener(store);
+            worker.syncMailDir(serverAuth, dir);
+            // the state is saved only after what it covers
+            store.flush();
+            dir.setLastSync(System.currentTimeMillis());
+            FastSyncAccess.updateSyncState(context, dir);
+            if (dir.isPush()
+                    && !getIdleEngine(context).watch(serverAuth, dir)) {
+                Const.logd("IDLE too many watches: " + dir.getPath());
+            }
+        } catch (IOException e) {
+            Const.logd("sync " + dir.getPath() + ": " + e.getMessage());
+            synchronized (syncResult) {
+                ++syncResult.stats.numIoExceptions;
+            }
+        } catch (MessengerException e) {
+            // the server refuses the mail directory
+            Const.logd("sync " + dir.getPath() + ": " + e.getMessage());
+            synchronized (syncResult) {
+                ++syncResult.stats.numSkippedEntries;
+            }
+        }
+    }
+
+    /**
+     * at once, one session each, up to {@link #MAX_SESSIONS_PER_SERVER};
+     * an account is on one server and the sync manager runs one sync of it
+     * at a time, so the cap is per server<br/>
+     * returns when all are done, or cancelled
+     */
+    private static void syncMailDirs(final Context context,
+            List<MailDir> dirs, final Bundle extras,
+            final SyncResult syncResult) {
+        if (dirs.isEmpty()) {
+            return;
+        }
+        if (dirs.size() == 1) {
+            syncMailDir(context, dirs.get(0), extras, syncResult);
+            return;
+        }
+
+        Collections.sort(dirs, SYNC_ORDER);
+        final String threadName = Thread.currentThread().getName();
+        // idle connections hold sessions of their own
+        int numSessions = Math.max(1, MAX_SESSIONS_PER_SERVER
+                - getIdleEngine(context).getWatchCount(
+                        dirs.get(0).getAddr()));
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(numSessions, dirs.size()),
+                new ThreadFactory() {
+
+                    private int count = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        return new Thread(r, threadName + "-dir#" + count++);
+                    }
+                });
+        // taken in the order submitted
+        for (final MailDir dir : dirs) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    syncMailDir(context, dir, extras, syncResult);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // dummy
+            }
+        } catch (InterruptedException e) {
+            // the sync is cancelled
+            Const.logd("performSync cancelled");
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -83,4 +812,18 @@ public class SyncService extends Service {
             }
         }
     }
+
+    /**
+     * the intent is null when restarted after killed, and the outbox is
+     * loaded all the same; the service is stopped when the outbox is done
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null
+                && ACTION_IDLE_KEEPALIVE.equals(intent.getAction())) {
+            getIdleEngine(this).keepAliveAll();
+        }
+        SyncController.getInstance(this).resume();
+        return START_STICKY;
+    }
 }
@@ -0,0 +1,60 @@
+package th.pd.mail.fastsync;
+
+import java.io.IOException;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.MailServerAuth;
+import th.pd.mail.dao.SmtpSyncable;
+import th.pd.mail.dao.Syncable;
+import th.pd.mail.fastsync.network.ImapWorker;
+import th.pd.mail.fastsync.network.MessengerException;
+import th.pd.mail.fastsync.network.SmtpSessionPool;
+
+/**
+ * one per offered task: takes whichever task is next in turn, runs it and
+ * reports to the controller
+ */
+class SyncTask implements Runnable {
+
+    private final SyncController mController;
+
+    SyncTask(SyncController controller) {
+        mController = controller;
+    }
+
+    @Override
+    public void run() {
+        Syncable syncable = mController.getTask();
+        if (syncable == null) {
+            // dummy
+            return;
+        }
+
+        Exception error = null;
+        try {
+            sync(syncable);
+        } catch (Exception e) {
+            // the controller decides to retry or give up; a runtime failure
+            // too, or the task would be stranded till restart
+            error = e;
+        }
+
+        Const.logd(Thread.currentThread().getName() + " task done");
+        mController.addResult(syncable, error);
+    }
+
+    private void sync(Syncable syncable)
+            throws IOException, MessengerException {
+        MailServerAuth serverAuth = syncable.getServerAuth();
+        if (serverAuth.getProtocol().equals(Const.PROTOCOL_EAS)) {
+            // TODO
+        } else if (serverAuth.getProtocol().equals(Const.PROTOCOL_IMAP)) {
+            new ImapWorker().syncMessage(syncable);
+        } else if (serverAuth.getProtocol().equals(Const.PROTOCOL_POP3)) {
+            // TODO
+        } else if (syncable instanceof SmtpSyncable) {
+            SmtpSessionPool.getInstance().sendMessage(
+                    (SmtpSyncable) syncable);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.MailDir;
+import th.pd.mail.dao.MailServerAuth;
+
+/**
+ * ms-ascmd 2.2.2.13 push: one Ping of all watched collections of an
+ * account at a time, on a thread of its own, held by the server until one
+ * changes or the heartbeat expires, then re-issued<br/>
+ * a collection watched while a ping is held is taken in by the next
+ */
+public class EasPingEngine {
+
+    public interface Listener {
+
+        /**
+         * folders are added, renamed or deleted; called on the ping thread
+         */
+        void onHierarchyChanged(String addr);
+
+        /**
+         * called on the ping thread; do not block long
+         */
+        void onMailDirChanged(MailDir dir);
+    }
+
+    /**
+     * the ping loop of one account
+     */
+    private class Pinger extends Thread {
+
+        final MailServerAuth serverAuth;
+        final String addr;
+
+        // by server id; guarded by mPingers
+        final Map<String, MailDir> dirs = new LinkedHashMap<>();
+
+        boolean isStopped = false;
+
+        Pinger(MailServerAuth serverAuth, String addr) {
+            super("eas-ping-" + addr);
+            setDaemon(true);
+            this.serverAuth = serverAuth;
+            this.addr = addr;
+        }
+
+        @Override
+        public void run() {
+            EasWorker worker = new EasWorker();
+            int heartbeat = DEFAULT_HEARTBEAT;
+            long retryDelay = MIN_RETRY_DELAY;
+            List<String> changedIds = new ArrayList<>();
+            while (true) {
+                List<MailDir> watched;
+                synchronized (mPingers) {
+                    if (isStopped || dirs.isEmpty()) {
+                        // a later watch starts another
+                        if (mPingers.get(addr) == this) {
+                            mPingers.remove(addr);
+                        }
+                        return;
+                    }
+                    watched = new ArrayList<>(dirs.values());
+                }
+
+                int status;
+                changedIds.clear();
+                try {
+                    status = worker.ping(serverAuth, watched, heartbeat,
+                            changedIds);
+                    retryDelay = MIN_RETRY_DELAY;
+                } catch (IOException | MessengerException e) {
+                    // e.g. no network or bad pass; the next sync re-watches
+                    Const.logd("PING " + serverAuth.getHost() + ": "
+                            + e.getMessage());
+                    if (!pause(retryDelay)) {
+                        return;
+                    }
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                    continue;
+                }
+
+                Const.logd("PING status " + status + ", " + changedIds);
+                switch (status) {
+                    case EasWorker.PING_STATUS_EXPIRED:
+                        break;
+                    case EasWorker.PING_STATUS_CHANGED:
+                        for (String id : changedIds) {
+                            MailDir dir;
+                            synchronized (mPingers) {
+                                dir = dirs.get(id);
+                            }
+                            if (dir != null) {
+                                mListener.onMailDirChanged(dir);
+                            }
+                        }
+                        break;
+                    case EasWorker.PING_STATUS_BAD_HEARTBEAT:
+                        // the server tells its bound
+                        heartbeat = worker.getHeartbeat() > 0
+                                ? worker.getHeartbeat()
+                                : MIN_HEARTBEAT;
+                        break;
+                    case EasWorker.PING_STATUS_HIERARCHY_CHANGED:
+                        mListener.onHierarchyChanged(addr);
+                        if (!pause(MIN_RETRY_DELAY)) {
+                            return;
+                        }
+                        break;
+                    default:
+                        // e.g. a folder is gone; not again until re-watched
+                        synchronized (mPingers) {
+                            dirs.clear();
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return false if stopped meanwhile
+         */
+        private boolean pause(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            synchronized (mPingers) {
+                return !isStopped;
+            }
+        }
+    }
+
+    /**
+     * in seconds; ms-ascmd 2.2.3.79.1 takes 60 to 3540, and nat boxes of
+     * mobile networks may drop a flow silent longer than about 10 minutes
+     */
+    private static final int DEFAULT_HEARTBEAT = 8 * 60;
+    private static final int MIN_HEARTBEAT = 60;
+
+    private static final long MIN_RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 30 * 60 * 1000;
+
+    ////////////////////////////////////////////////////////
+
+    private final Listener mListener;
+
+    // by account
+    private final Map<String, Pinger> mPingers = new HashMap<>();
+
+    public EasPingEngine(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getWatchCount() {
+        synchronized (mPingers) {
+            int n = 0;
+            for (Pinger pinger : mPingers.values()) {
+                n += pinger.dirs.size();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * stop all ping threads; a held ping is dropped with its connection
+     */
+    public void stop() {
+        synchronized (mPingers) {
+            for (Pinger pinger : mPingers.values()) {
+                pinger.isStopped = true;
+                pinger.interrupt();
+            }
+            mPingers.clear();
+        }
+    }
+
+    public void unwatch(MailDir dir) {
+        synchronized (mPingers) {
+            Pinger pinger = mPingers.get(dir.getAddr());
+            if (pinger != null) {
+                pinger.dirs.remove(dir.getRemoteId());
+            }
+        }
+    }
+
+    /**
+     * start pushing changes of the mail directory; a watched one is kept
+     * as is
+     */
+    public void watch(MailServerAuth serverAuth, MailDir dir) {
+        if (dir.getRemoteId() == null) {
+            return;
+        }
+        synchronized (mPingers) {
+            Pinger pinger = mPingers.get(dir.getAddr());
+            if (pinger == null) {
+                pinger = new Pinger(serverAuth, dir.getAddr());
+                mPingers.put(dir.getAddr(), pinger);
+                pinger.dirs.put(dir.getRemoteId(), dir);
+                pinger.start();
+            } else {
+                pinger.dirs.put(dir.getRemoteId(), dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,671 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import android.util.Base64;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.MailDir;
+import th.pd.mail.dao.MailEnt;
+import th.pd.mail.dao.MailServerAuth;
+
+/**
+ * see <strong>Exchange ActiveSync</strong><br/>
+ * &emsp; ms-ascmd commands, ms-ashttp transport, ms-aswbxml encoding<br/>
+ * one command is one http post of wbxml; the state of a collection is the
+ * opaque sync key the server hands back, kept per {@link MailDir}, and the
+ * folder hierarchy has its own, kept in the hierarchy dir<br/>
+ * a sync key of "0" starts over
+ */
+public class EasWorker {
+
+    /**
+     * what ApplicationData tells besides the ent
+     */
+    private static class AppData {
+        String body = null;
+        boolean isTruncated = false;
+        boolean isReadTold = false;
+    }
+
+    public interface Listener {
+
+        /**
+         * also for a known server id after the hierarchy starts over
+         *
+         * @param type
+         *            one of FOLDER_TYPE_*
+         */
+        void onFolderAdded(String serverId, String parentId,
+                String displayName, int type);
+
+        void onFolderDeleted(String serverId);
+
+        void onFolderUpdated(String serverId, String parentId,
+                String displayName, int type);
+
+        /**
+         * @param body
+         *            plain text, maybe truncated; null if none
+         */
+        void onMessage(MailDir dir, MailEnt ent, String body);
+
+        /**
+         * only flags are known
+         */
+        void onMessageChanged(MailDir dir, MailEnt ent);
+
+        /**
+         * @param remoteId
+         *            of the server id, see {@link MailEnt#toRemoteId(String)}
+         */
+        void onMessageDeleted(MailDir dir, long remoteId);
+
+        /**
+         * the sync key is refused; forget what is known of the collection
+         * before it is filled again
+         */
+        void onSyncReset(MailDir dir);
+    }
+
+    // ms-ascmd 2.2.3.170.3
+    public static final int FOLDER_TYPE_USER_GENERIC = 1;
+    public static final int FOLDER_TYPE_INBOX = 2;
+    public static final int FOLDER_TYPE_DRAFTS = 3;
+    public static final int FOLDER_TYPE_DELETED = 4;
+    public static final int FOLDER_TYPE_SENT = 5;
+    public static final int FOLDER_TYPE_OUTBOX = 6;
+    public static final int FOLDER_TYPE_USER_MAIL = 12;
+
+    // ms-ascmd 2.2.3.162.10
+    public static final int PING_STATUS_EXPIRED = 1;
+    public static final int PING_STATUS_CHANGED = 2;
+    public static final int PING_STATUS_BAD_HEARTBEAT = 5;
+    public static final int PING_STATUS_HIERARCHY_CHANGED = 7;
+
+    public static final String INITIAL_SYNC_KEY = "0";
+
+    private static final String PROTOCOL_VERSION = "14.1";
+    private static final String CONTENT_TYPE =
+            "application/vnd.ms-sync.wbxml";
+    private static final String DEVICE_TYPE = "Android";
+
+    private static final int STATUS_OK = 1;
+    private static final int SYNC_STATUS_INVALID_KEY = 3;
+    private static final int FOLDER_STATUS_INVALID_KEY = 9;
+
+    // http 449: the device must provision before anything else
+    private static final int HTTP_RETRY_WITH = 449;
+
+    // messages per round trip; more come while MoreAvailable
+    private static final int WINDOW_SIZE = 100;
+
+    // bytes of plain text body, enough for summary and search
+    private static final int TRUNCATION_SIZE = 32 * 1024;
+
+    private static final int BODY_TYPE_PLAIN = 1;
+
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+    private static final int READ_TIMEOUT = 60 * 1000;
+
+    // a ping is held by the server for the heartbeat, plus this margin
+    private static final int PING_TIMEOUT_MARGIN = 30 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // ms-asemail 2.2.2.20, e.g. 2009-11-12T00:00:00.000Z
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    SimpleDateFormat format = new SimpleDateFormat(
+                            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+                    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    return format;
+                }
+            };
+
+    private static String encodeQuery(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * stable per login, up to 32 alphanumerics
+     */
+    private static String getDeviceId(MailServerAuth serverAuth) {
+        return "pd" + Long.toHexString(
+                MailEnt.toRemoteId(serverAuth.getLogin()));
+    }
+
+    public static boolean isMailFolder(int type) {
+        switch (type) {
+            case FOLDER_TYPE_USER_GENERIC:
+            case FOLDER_TYPE_INBOX:
+            case FOLDER_TYPE_DRAFTS:
+            case FOLDER_TYPE_DELETED:
+            case FOLDER_TYPE_SENT:
+            case FOLDER_TYPE_OUTBOX:
+            case FOLDER_TYPE_USER_MAIL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String nonEmpty(String syncKey) {
+        return syncKey == null || syncKey.isEmpty()
+                ? INITIAL_SYNC_KEY
+                : syncKey;
+    }
+
+    static long parseDate(String s) {
+        if (s == null || s.isEmpty()) {
+            return 0;
+        }
+        try {
+            return DATE_FORMAT.get().parse(s).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private Listener mListener = null;
+
+    // what the server takes, as told by the last ping
+    private int mHeartbeat = 0;
+
+    /**
+     * the folder hierarchy since the sync key of the hierarchy dir, which
+     * is then advanced
+     */
+    public void folderSync(MailServerAuth serverAuth, MailDir hierarchy)
+            throws IOException, MessengerException {
+        boolean isReset = false;
+        while (true) {
+            String syncKey = nonEmpty(hierarchy.getSyncKey());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new Wbxml.Encoder(body)
+                    .start(Wbxml.FOLDER_FOLDER_SYNC)
+                    .text(Wbxml.FOLDER_SYNC_KEY, syncKey)
+                    .end();
+            HttpURLConnection conn = post(serverAuth, "FolderSync",
+                    body.toByteArray(), READ_TIMEOUT);
+            int status;
+            try {
+                Wbxml.Parser parser = getParser(conn);
+                if (parser == null) {
+                    throw new IOException("FolderSync empty response");
+                }
+                status = parseFolderSync(parser, hierarchy);
+            } finally {
+                conn.disconnect();
+            }
+            if (status == FOLDER_STATUS_INVALID_KEY && !isReset) {
+                // again from scratch; known folders come as adds
+                isReset = true;
+                hierarchy.setSyncKey(INITIAL_SYNC_KEY);
+                continue;
+            }
+            if (status != STATUS_OK) {
+                throw new MessengerException("FolderSync status " + status,
+                        MessengerException.TYPE_EAS);
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return seconds, or 0 if not told
+     */
+    public int getHeartbeat() {
+        return mHeartbeat;
+    }
+
+    /**
+     * @return null if there is no content
+     */
+    private Wbxml.Parser getParser(HttpURLConnection conn)
+            throws IOException {
+        if (conn.getContentLength() == 0) {
+            return null;
+        }
+        InputStream istream = new BufferedInputStream(conn.getInputStream());
+        istream.mark(1);
+        if (istream.read() < 0) {
+            return null;
+        }
+        istream.reset();
+        return new Wbxml.Parser(istream);
+    }
+
+    /**
+     * ms-ascmd 2.2.2.4: add, update and delete of folders, in order
+     *
+     * @return status
+     */
+    private int parseFolderSync(Wbxml.Parser parser, MailDir hierarchy)
+            throws IOException {
+        int status = 0;
+        int event;
+        while ((event = parser.next()) != Wbxml.Parser.EOF) {
+            if (event != Wbxml.Parser.START) {
+                continue;
+            }
+            switch (parser.getTag()) {
+                case Wbxml.FOLDER_FOLDER_SYNC:
+                case Wbxml.FOLDER_CHANGES:
+                    // step in
+                    break;
+                case Wbxml.FOLDER_STATUS:
+                    status = parser.nextInt();
+                    break;
+                case Wbxml.FOLDER_SYNC_KEY:
+                    hierarchy.setSyncKey(parser.nextText());
+                    break;
+                case Wbxml.FOLDER_ADD:
+                case Wbxml.FOLDER_UPDATE:
+                case Wbxml.FOLDER_DELETE:
+                    parseFolderChange(parser, parser.getTag());
+                    break;
+                default:
+                    parser.skip();
+                    break;
+            }
+        }
+        return status;
+    }
+
+    private void parseFolderChange(Wbxml.Parser parser, int op)
+            throws IOException {
+        String serverId = null;
+        String parentId = null;
+        String displayName = null;
+        int type = 0;
+        int depth = parser.getDepth();
+        int event;
+        while ((event = parser.next()) != Wbxml.Parser.END
+                || parser.getDepth() >= depth) {
+            if (event != Wbxml.Parser.START) {
+                continue;
+            }
+            if (parser.getTag() == Wbxml.FOLDER_SERVER_ID) {
+                serverId = parser.nextText();
+            } else if (parser.getTag() == Wbxml.FOLDER_PARENT_ID) {
+                parentId = parser.nextText();
+            } else if (parser.getTag() == Wbxml.FOLDER_DISPLAY_NAME) {
+                displayName = parser.nextText();
+            } else if (parser.getTag() == Wbxml.FOLDER_TYPE) {
+                type = parser.nextInt();
+            } else {
+                parser.skip();
+            }
+        }
+        if (serverId == null) {
+            return;
+        }
+        if (op == Wbxml.FOLDER_DELETE) {
+            mListener.onFolderDeleted(serverId);
+        } else if (op == Wbxml.FOLDER_ADD) {
+            mListener.onFolderAdded(serverId, parentId, displayName, type);
+        } else {
+            mListener.onFolderUpdated(serverId, parentId, displayName, type);
+        }
+    }
+
+    /**
+     * ms-ascmd 2.2.3.7.2: Email and AirSyncBase of an add or change
+     */
+    private void parseApplicationData(Wbxml.Parser parser, MailEnt ent,
+            AppData data) throws IOException {
+        int depth = parser.getDepth();
+        int event;
+        while ((event = parser.next()) != Wbxml.Parser.END
+                || parser.getDepth() >= depth) {
+            if (event != Wbxml.Parser.START) {
+                continue;
+            }
+            switch (parser.getTag()) {
+                case Wbxml.EMAIL_SUBJECT:
+                    ent.setSubject(parser.nextText());
+                    break;
+                case Wbxml.EMAIL_FROM:
+                    ent.setFrom(Pop3Worker.splitAddrs(parser.nextText()));
+                    if (ent.getFrom().length > 0) {
+                        ent.setCaption(ent.getFrom()[0]);
+                    }
+                    break;
+                case Wbxml.EMAIL_TO:
+                    ent.setTo(Pop3Worker.splitAddrs(parser.nextText()));
+                    break;
+                case Wbxml.EMAIL_CC:
+                    ent.setCc(Pop3Worker.splitAddrs(parser.nextText()));
+                    break;
+                case Wbxml.EMAIL_REPLY_TO:
+                    ent.setReplyTo(Pop3Worker.splitAddrs(parser.nextText()));
+                    break;
+                case Wbxml.EMAIL_DATE_RECEIVED:
+                    ent.setDate(parseDate(parser.nextText()));
+                    break;
+                case Wbxml.EMAIL_READ:
+                    ent.setFlags(parser.nextBoolean()
+                            ? ent.getFlags() | MailEnt.FLAG_READ
+                            : ent.getFlags() & ~MailEnt.FLAG_READ);
+                    data.isReadTold = true;
+                    break;
+                case Wbxml.BASE_BODY:
+                    // step in
+                    break;
+                case Wbxml.BASE_TRUNCATED:
+                    data.isTruncated = parser.nextBoolean();
+                    break;
+                case Wbxml.BASE_DATA:
+                    data.body = parser.nextText();
+                    break;
+                default:
+                    parser.skip();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * ms-ascmd 2.2.3.24: add, change, delete or soft delete of a message
+     */
+    private void parseSyncCommand(Wbxml.Parser parser, int op, MailDir dir)
+            throws IOException {
+        MailEnt ent = new MailEnt();
+        ent.setFlags(MailEnt.FLAG_VISIBLE);
+        AppData data = new AppData();
+        String serverId = null;
+        int depth = parser.getDepth();
+        int event;
+        while ((event = parser.next()) != Wbxml.Parser.END
+                || parser.getDepth() >= depth) {
+            if (event != Wbxml.Parser.START) {
+                continue;
+            }
+            if (parser.getTag() == Wbxml.SYNC_SERVER_ID) {
+                serverId = parser.nextText();
+            } else if (parser.getTag() == Wbxml.SYNC_APPLICATION_DATA) {
+                parseApplicationData(parser, ent, data);
+            } else {
+                parser.skip();
+            }
+        }
+        if (serverId == null) {
+            return;
+        }
+        ent.setRemoteId(MailEnt.toRemoteId(serverId));
+        if (op == Wbxml.SYNC_ADD) {
+            if (data.body != null && !data.isTruncated) {
+                ent.setFlags(ent.getFlags() | MailEnt.FLAG_LOADED);
+            }
+            ent.setSummary(Pop3Worker.getSummary(data.body));
+            mListener.onMessage(dir, ent, data.body);
+        } else if (op == Wbxml.SYNC_CHANGE) {
+            // a change of anything else would clear the read flag
+            if (data.isReadTold) {
+                mListener.onMessageChanged(dir, ent);
+            }
+        } else {
+            mListener.onMessageDeleted(dir, ent.getRemoteId());
+        }
+    }
+
+    /**
+     * ms-ascmd 2.2.2.20
+     *
+     * @return [status, 1 if more available]
+     */
+    private int[] parseSync(Wbxml.Parser parser, MailDir dir)
+            throws IOException {
+        int[] result = new int[] {
+                0, 0
+        };
+        int event;
+        while ((event = parser.next()) != Wbxml.Parser.EOF) {
+            if (event != Wbxml.Parser.START) {
+                continue;
+            }
+            switch (parser.getTag()) {
+                case Wbxml.SYNC:
+                case Wbxml.SYNC_COLLECTIONS:
+                case Wbxml.SYNC_COLLECTION:
+                case Wbxml.SYNC_COMMANDS:
+                    // step in
+                    break;
+                case Wbxml.SYNC_STATUS:
+                    result[0] = parser.nextInt();
+                    break;
+                case Wbxml.SYNC_SYNC_KEY:
+                    dir.setSyncKey(parser.nextText());
+                    break;
+                case Wbxml.SYNC_MORE_AVAILABLE:
+                    parser.skip();
+                    result[1] = 1;
+                    break;
+                case Wbxml.SYNC_ADD:
+                case Wbxml.SYNC_CHANGE:
+                case Wbxml.SYNC_DELETE:
+                case Wbxml.SYNC_SOFT_DELETE:
+                    parseSyncCommand(parser, parser.getTag(), dir);
+                    break;
+                default:
+                    parser.skip();
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ms-ascmd 2.2.2.13: held by the server until a watched collection
+     * changes or the heartbeat expires
+     *
+     * @param heartbeat
+     *            in seconds
+     * @param changedIds
+     *            server ids of the changed collections go here
+     * @return one of PING_STATUS_*, or another for failure
+     */
+    public int ping(MailServerAuth serverAuth, List<MailDir> dirs,
+            int heartbeat, List<String> changedIds)
+            throws IOException, MessengerException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Wbxml.Encoder encoder = new Wbxml.Encoder(body)
+                .start(Wbxml.PING)
+                .text(Wbxml.PING_HEARTBEAT_INTERVAL,
+                        String.valueOf(heartbeat))
+                .start(Wbxml.PING_FOLDERS);
+        for (MailDir dir : dirs) {
+            encoder.start(Wbxml.PING_FOLDER)
+                    .text(Wbxml.PING_ID, dir.getRemoteId())
+                    .text(Wbxml.PING_CLASS, "Email")
+                    .end();
+        }
+        encoder.end().end();
+
+        HttpURLConnection conn = post(serverAuth, "Ping", body.toByteArray(),
+                heartbeat * 1000 + PING_TIMEOUT_MARGIN);
+        try {
+            Wbxml.Parser parser = getParser(conn);
+            if (parser == null) {
+                return PING_STATUS_EXPIRED;
+            }
+            int status = 0;
+            int event;
+            while ((event = parser.next()) != Wbxml.Parser.EOF) {
+                if (event != Wbxml.Parser.START) {
+                    continue;
+                }
+                switch (parser.getTag()) {
+                    case Wbxml.PING:
+                    case Wbxml.PING_FOLDERS:
+                        // step in
+                        break;
+                    case Wbxml.PING_STATUS:
+                        status = parser.nextInt();
+                        break;
+                    case Wbxml.PING_HEARTBEAT_INTERVAL:
+                        mHeartbeat = parser.nextInt();
+                        break;
+                    case Wbxml.PING_FOLDER:
+                        changedIds.add(parser.nextText());
+                        break;
+                    default:
+                        parser.skip();
+                        break;
+                }
+            }
+            return status;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * ms-ashttp 2.2.1: the command in the query, the auth in the header
+     */
+    private HttpURLConnection post(MailServerAuth serverAuth, String cmd,
+            byte[] body, int readTimeout)
+            throws IOException, MessengerException {
+        // the password goes along every request; plain http only when
+        // asked for by port 80 and no tls flag
+        String scheme = serverAuth.getPort() == 80
+                && !serverAuth.isImplicitTls()
+                && !serverAuth.isTlsRequired() ? "http" : "https";
+        URL url = new URL(scheme, serverAuth.getHost(), serverAuth.getPort(),
+                "/Microsoft-Server-ActiveSync?Cmd=" + cmd
+                        + "&User=" + encodeQuery(serverAuth.getLogin())
+                        + "&DeviceId=" + getDeviceId(serverAuth)
+                        + "&DeviceType=" + DEVICE_TYPE);
+        Const.logd("EAS CMND--- " + cmd + " " + serverAuth.getHost());
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(readTimeout);
+        conn.setDoOutput(true);
+        conn.setUseCaches(false);
+        conn.setFixedLengthStreamingMode(body.length);
+        conn.setRequestProperty("Authorization", "Basic " + Base64
+                .encodeToString((serverAuth.getLogin() + ":"
+                        + serverAuth.getPin()).getBytes(UTF_8),
+                        Base64.NO_WRAP));
+        conn.setRequestProperty("MS-ASProtocolVersion", PROTOCOL_VERSION);
+        conn.setRequestProperty("Content-Type", CONTENT_TYPE);
+        try {
+            OutputStream ostream = conn.getOutputStream();
+            ostream.write(body);
+            ostream.close();
+
+            int code = conn.getResponseCode();
+            Const.logd("EAS RESP--- " + cmd + " " + code);
+            if (code == HttpURLConnection.HTTP_OK) {
+                return conn;
+            }
+            if (code >= 500) {
+                // maybe better later
+                throw new IOException("EAS " + cmd + " http " + code);
+            }
+            if (code == HTTP_RETRY_WITH) {
+                // TODO Provision
+                throw new MessengerException("EAS provisioning required",
+                        MessengerException.TYPE_EAS);
+            }
+            throw new MessengerException("EAS " + cmd + " http " + code,
+                    MessengerException.TYPE_EAS);
+        } catch (IOException | MessengerException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * the changes of the collection since its sync key, in windows, until
+     * no more is available; the sync key is advanced as they come
+     */
+    public void syncMailDir(MailServerAuth serverAuth, MailDir dir)
+            throws IOException, MessengerException {
+        boolean isReset = false;
+        while (true) {
+            String syncKey = nonEmpty(dir.getSyncKey());
+            boolean isInitial = INITIAL_SYNC_KEY.equals(syncKey);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            Wbxml.Encoder encoder = new Wbxml.Encoder(body)
+                    .start(Wbxml.SYNC)
+                    .start(Wbxml.SYNC_COLLECTIONS)
+                    .start(Wbxml.SYNC_COLLECTION)
+                    .text(Wbxml.SYNC_SYNC_KEY, syncKey)
+                    .text(Wbxml.SYNC_COLLECTION_ID, dir.getRemoteId());
+            if (!isInitial) {
+                // ms-ascmd 2.2.3.79: not with the initial key
+                encoder.empty(Wbxml.SYNC_DELETES_AS_MOVES)
+                        .empty(Wbxml.SYNC_GET_CHANGES)
+                        .text(Wbxml.SYNC_WINDOW_SIZE,
+                                String.valueOf(WINDOW_SIZE))
+                        .start(Wbxml.SYNC_OPTIONS)
+                        .text(Wbxml.SYNC_FILTER_TYPE, "0")
+                        .start(Wbxml.BASE_BODY_PREFERENCE)
+                        .text(Wbxml.BASE_TYPE,
+                                String.valueOf(BODY_TYPE_PLAIN))
+                        .text(Wbxml.BASE_TRUNCATION_SIZE,
+                                String.valueOf(TRUNCATION_SIZE))
+                        .end()
+                        .end();
+            }
+            encoder.end().end().end();
+
+            HttpURLConnection conn = post(serverAuth, "Sync",
+                    body.toByteArray(), READ_TIMEOUT);
+            int[] result;
+            try {
+                Wbxml.Parser parser = getParser(conn);
+                if (parser == null) {
+                    // ms-ascmd 2.2.2.20: nothing changed
+                    return;
+                }
+                result = parseSync(parser, dir);
+            } finally {
+                conn.disconnect();
+            }
+            if (result[0] == SYNC_STATUS_INVALID_KEY && !isReset) {
+                isReset = true;
+                mListener.onSyncReset(dir);
+                dir.setSyncKey(INITIAL_SYNC_KEY);
+                continue;
+            }
+            if (result[0] != STATUS_OK) {
+                throw new MessengerException("Sync status " + result[0],
+                        MessengerException.TYPE_EAS);
+            }
+            if (!isInitial && result[1] == 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.SystemClock;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.MailDir;
+import th.pd.mail.dao.MailServerAuth;
+
+/**
+ * rfc 2177 push: one IDLE connection per watched mail directory, all of
+ * them driven by the {@link SocketReactor} thread<br/>
+ * an untagged EXISTS, EXPUNGE, FETCH or VANISHED marks the directory
+ * changed; a short delay later the {@link Listener} is told once for the
+ * whole burst, to run an incremental sync<br/>
+ * IDLE is re-issued and broken connections are re-opened on one shared
+ * inexact alarm, so every connection is kept alive in the same wakeup; a
+ * dropped one is re-opened at once and then with backoff<br/>
+ * the alarm comes as the pending intent given, to be handed back to
+ * {@link #keepAliveAll()}
+ */
+public class ImapIdleEngine {
+
+    public interface Listener {
+
+        /**
+         * called on the timer thread; do not block long
+         */
+        void onMailDirChanged(MailDir dir);
+    }
+
+    /**
+     * the line-driven state machine of one connection
+     */
+    private class Watch implements SocketReactor.Handler {
+
+        final MailServerAuth serverAuth;
+        final MailDir dir;
+
+        SocketReactor.Conn conn = null;
+        int state = STATE_CLOSED;
+        String pendingTag = null;
+        int tagSeq = 0;
+        boolean isIdleSupported = false;
+        boolean isStartTlsSupported = false;
+        boolean isChanged = false;
+        boolean isReconnected = false;
+        boolean isUnwatched = false;
+        int numRetries = 0;
+        boolean isRetryScheduled = false;
+
+        Watch(MailServerAuth serverAuth, MailDir dir) {
+            this.serverAuth = serverAuth;
+            this.dir = dir;
+        }
+
+        /**
+         * called on the timer thread
+         */
+        synchronized void keepAlive() {
+            if (isUnwatched) {
+                return;
+            }
+            if (state == STATE_CLOSED) {
+                if (!isRetryScheduled) {
+                    open();
+                }
+            } else if (state == STATE_IDLING) {
+                // a dead connection is closed if DONE is not answered
+                conn.setTimeout(COMMAND_TIMEOUT);
+                state = STATE_DONE;
+                putLine("DONE");
+            }
+        }
+
+        private void markChanged() {
+            if (!isChanged) {
+                isChanged = true;
+                scheduleNotify(this);
+            }
+        }
+
+        @Override
+        public synchronized void onClosed(SocketReactor.Conn conn,
+                IOException e) {
+            if (conn != this.conn) {
+                return;
+            }
+            this.conn = null;
+            state = STATE_CLOSED;
+            isReconnected = true;
+            if (!isUnwatched) {
+                scheduleRetry(this);
+            }
+        }
+
+        @Override
+        public synchronized void onConnected(SocketReactor.Conn conn) {
+            state = STATE_GREETING;
+        }
+
+        @Override
+        public synchronized void onLine(SocketReactor.Conn conn,
+                ByteBuffer line) {
+            if (conn != this.conn) {
+                return;
+            }
+            String s = conn.decode(line);
+            Const.logd("IDLE RESP--- " + dir.getPath() + ": " + s);
+            String[] words = s.split(" ", 4);
+            if (words.length < 2) {
+                return;
+            }
+
+            if (ImapResponse.TAG_UNTAGGED.equals(words[0])) {
+                onUntagged(s, words);
+            } else if (ImapResponse.TAG_CONTINUATION.equals(words[0])) {
+                if (state == STATE_IDLE) {
+                    state = STATE_IDLING;
+                    // keepalive timer is in charge
+                    conn.setTimeout(0);
+                }
+            } else if (words[0].equals(pendingTag)) {
+                pendingTag = null;
+                if ("OK".equalsIgnoreCase(words[1])) {
+                    onTaggedOk();
+                } else {
+                    // e.g. bad login or no such mailbox; retried later
+                    Const.logd("IDLE failed " + dir.getPath() + ": " + s);
+                    conn.close();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onTlsStarted(SocketReactor.Conn conn) {
+            putCommand(STATE_LOGIN, login());
+        }
+
+        private void onTaggedOk() {
+            switch (state) {
+                case STATE_CAPABILITY:
+                    if (!isIdleSupported) {
+                        Const.logd("IDLE not supported: "
+                                + serverAuth.getHost());
+                        isUnwatched = true;
+                        conn.close();
+                    } else if (!conn.isTls() && isStartTlsSupported) {
+                        putCommand(STATE_STARTTLS, "STARTTLS");
+                    } else if (!conn.isTls() && serverAuth.isTlsRequired()) {
+                        Const.logd("STARTTLS not supported: "
+                                + serverAuth.getHost());
+                        conn.close();
+                    } else {
+                        putCommand(STATE_LOGIN, login());
+                    }
+                    break;
+                case STATE_STARTTLS:
+                    // tls goes before the next line
+                    conn.startTls();
+                    break;
+                case STATE_LOGIN:
+                    putCommand(STATE_SELECT,
+                            "SELECT " + ImapWorker.quote(dir.getPath()));
+                    break;
+                case STATE_SELECT:
+                    if (isReconnected) {
+                        // what is missed while disconnected
+                        markChanged();
+                    }
+                    numRetries = 0;
+                    putCommand(STATE_IDLE, "IDLE");
+                    break;
+                case STATE_DONE:
+                    putCommand(STATE_IDLE, "IDLE");
+                    break;
+            }
+        }
+
+        private void onUntagged(String s, String[] words) {
+            if (state == STATE_GREETING) {
+                if ("BYE".equalsIgnoreCase(words[1])) {
+                    conn.close();
+                } else {
+                    putCommand(STATE_CAPABILITY, "CAPABILITY");
+                }
+                return;
+            }
+            if ("CAPABILITY".equalsIgnoreCase(words[1])) {
+                for (String capa : s.toUpperCase(Locale.US).split(" ")) {
+                    if ("IDLE".equals(capa)) {
+                        isIdleSupported = true;
+                    } else if ("STARTTLS".equals(capa)) {
+                        isStartTlsSupported = true;
+                    }
+                }
+                return;
+            }
+            if ("BYE".equalsIgnoreCase(words[1])) {
+                // server closes; re-opened after
+                return;
+            }
+            if (state < STATE_SELECT) {
+                return;
+            }
+            // "* VANISHED ..." or "* 23 EXISTS"
+            String type = words[1].toUpperCase(Locale.US);
+            if (words.length > 2 && Character.isDigit(words[1].charAt(0))) {
+                type = words[2].toUpperCase(Locale.US);
+            }
+            if (state >= STATE_IDLE && ("EXISTS".equals(type)
+                    || "EXPUNGE".equals(type) || "FETCH".equals(type)
+                    || "VANISHED".equals(type))) {
+                markChanged();
+            }
+        }
+
+        private void open() {
+            try {
+                state = STATE_CONNECTING;
+                isIdleSupported = false;
+                isStartTlsSupported = false;
+                conn = SocketReactor.getInstance().connect(
+                        new InetSocketAddress(serverAuth.getHost(),
+                                serverAuth.getPort()),
+                        serverAuth.isImplicitTls(), this);
+            } catch (IOException e) {
+                Const.logd("IDLE conn " + serverAuth.getHost() + ": "
+                        + e.getMessage());
+                conn = null;
+                state = STATE_CLOSED;
+                scheduleRetry(this);
+            }
+        }
+
+        private void putCommand(int nextState, String command) {
+            pendingTag = "I" + (++tagSeq);
+            state = nextState;
+            putLine(pendingTag + " " + command);
+        }
+
+        private void putLine(String line) {
+            Const.logd("IDLE CMND--- " + dir.getPath() + ": "
+                    + (state == STATE_LOGIN ? "LOGIN ..." : line));
+            conn.send(line);
+        }
+
+        private String login() {
+            return "LOGIN " + ImapWorker.quote(serverAuth.getLogin()) + " "
+                    + ImapWorker.quote(serverAuth.getPin());
+        }
+
+        synchronized void unwatch() {
+            isUnwatched = true;
+            if (conn != null) {
+                if (state == STATE_IDLING) {
+                    conn.send("DONE");
+                }
+                conn.send("Z LOGOUT");
+                conn.close();
+            }
+        }
+    }
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_GREETING = 2;
+    private static final int STATE_CAPABILITY = 3;
+    private static final int STATE_STARTTLS = 4;
+    private static final int STATE_LOGIN = 5;
+    private static final int STATE_SELECT = 6;
+    private static final int STATE_IDLE = 7; // IDLE sent
+    private static final int STATE_IDLING = 8; // "+ idling" received
+    private static final int STATE_DONE = 9; // DONE sent, IDLE to follow
+
+    /**
+     * rfc 2177: re-issue IDLE at least every 29 minutes; nat boxes of
+     * mobile networks may drop a silent flow even earlier<br/>
+     * an inexact alarm may come late, so it is well below
+     */
+    private static final long KEEPALIVE_INTERVAL =
+            AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+    // doubled on each failure, up to the keepalive
+    private static final long BASE_RETRY_DELAY = 5 * 1000;
+    private static final int MAX_RETRY_SHIFT = 8;
+
+    private static final long COMMAND_TIMEOUT = 30 * 1000;
+
+    // a new message often comes with EXISTS and FETCH and RECENT
+    private static final long NOTIFY_DELAY = 2000;
+
+    ////////////////////////////////////////////////////////
+
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mKeepAliveIntent;
+    private final int mMaxWatchesPerAddr;
+    private final Listener mListener;
+
+    // by auto id of mail dir
+    private final Map<Integer, Watch> mWatches = new HashMap<>();
+
+    // short delays while awake: notify and retry; guarded by mWatches
+    private Timer mTimer = null;
+
+    /**
+     * an idle connection takes a session of the account; at most
+     * <code>maxWatchesPerAddr</code> of them are held, to leave the rest to
+     * sync
+     */
+    public ImapIdleEngine(Context context, PendingIntent keepAliveIntent,
+            int maxWatchesPerAddr, Listener listener) {
+        mAlarmManager = (AlarmManager) context.getSystemService(
+                Context.ALARM_SERVICE);
+        mKeepAliveIntent = keepAliveIntent;
+        mMaxWatchesPerAddr = maxWatchesPerAddr;
+        mListener = listener;
+    }
+
+    public int getWatchCount() {
+        synchronized (mWatches) {
+            return mWatches.size();
+        }
+    }
+
+    /**
+     * the number of connections held for the account
+     */
+    public int getWatchCount(String addr) {
+        synchronized (mWatches) {
+            int n = 0;
+            for (Watch watch : mWatches.values()) {
+                if (watch.dir.getAddr().equals(addr)) {
+                    ++n;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * every connection is handled in the same tick; to be called when the
+     * keepalive intent comes, on any thread
+     */
+    public void keepAliveAll() {
+        final List<Watch> watches;
+        synchronized (mWatches) {
+            watches = new ArrayList<>(mWatches.values());
+            Const.logd("IDLE keepalive " + watches.size());
+            if (mTimer == null) {
+                // e.g. the process is killed and the alarm is left
+                mAlarmManager.cancel(mKeepAliveIntent);
+                return;
+            }
+            // a host name may be looked up
+            mTimer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    for (Watch watch : watches) {
+                        watch.keepAlive();
+                    }
+                }
+            }, 0);
+        }
+    }
+
+    /**
+     * a closed connection is re-opened at once, then at a longer delay on
+     * each failure, until it gets to IDLE
+     */
+    private void scheduleRetry(final Watch watch) {
+        long delay = Math.min(KEEPALIVE_INTERVAL, BASE_RETRY_DELAY
+                << Math.min(watch.numRetries, MAX_RETRY_SHIFT));
+        if (watch.numRetries++ == 0) {
+            delay = 0;
+        }
+        synchronized (mWatches) {
+            if (mTimer == null) {
+                return;
+            }
+            watch.isRetryScheduled = true;
+            mTimer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    synchronized (watch) {
+                        watch.isRetryScheduled = false;
+                        if (!watch.isUnwatched
+                                && watch.state == STATE_CLOSED) {
+                            watch.open();
+                        }
+                    }
+                }
+            }, delay);
+        }
+    }
+
+    private void scheduleNotify(final Watch watch) {
+        synchronized (mWatches) {
+            if (mTimer == null) {
+                return;
+            }
+            mTimer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    synchronized (watch) {
+                        watch.isChanged = false;
+                        if (watch.isUnwatched) {
+                            return;
+                        }
+                    }
+                    mListener.onMailDirChanged(watch.dir);
+                }
+            }, NOTIFY_DELAY);
+        }
+    }
+
+    /**
+     * close all connections
+     */
+    public void stop() {
+        List<Watch> watches;
+        synchronized (mWatches) {
+            watches = new ArrayList<>(mWatches.values());
+            mWatches.clear();
+            stopTimers();
+        }
+        for (Watch watch : watches) {
+            watch.unwatch();
+        }
+    }
+
+    /**
+     * guarded by mWatches
+     */
+    private void stopTimers() {
+        if (mTimer != null) {
+            mTimer.cancel();
+            mTimer = null;
+            mAlarmManager.cancel(mKeepAliveIntent);
+        }
+    }
+
+    public void unwatch(MailDir dir) {
+        Watch watch;
+        synchronized (mWatches) {
+            watch = mWatches.remove(dir.getAutoId());
+            if (mWatches.isEmpty()) {
+                stopTimers();
+            }
+        }
+        if (watch != null) {
+            watch.unwatch();
+        }
+    }
+
+    /**
+     * start pushing changes of the mail directory; a watched one is kept
+     * as is<br/>
+     * returns false if the account holds as many connections as it may
+     */
+    public boolean watch(MailServerAuth serverAuth, MailDir dir) {
+        Watch watch;
+        synchronized (mWatches) {
+            if (mWatches.containsKey(dir.getAutoId())) {
+                return true;
+            }
+            if (getWatchCount(dir.getAddr()) >= mMaxWatchesPerAddr) {
+                return false;
+            }
+            watch = new Watch(serverAuth, dir);
+            mWatches.put(dir.getAutoId(), watch);
+            if (mTimer == null) {
+                mTimer = new Timer("imap-idle", true);
+                // one wakeup for all, batched with others of the system
+                mAlarmManager.setInexactRepeating(
+                        AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                        SystemClock.elapsedRealtime() + KEEPALIVE_INTERVAL,
+                        KEEPALIVE_INTERVAL, mKeepAliveIntent);
+            }
+        }
+        synchronized (watch) {
+            watch.open();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package th.pd.mail.fastsync.network;
+
+import java.util.ArrayList;
+
+/**
+ * a parenthesized list of an imap response<br/>
+ * an element is a {@link String} (atom or quoted), an {@link ImapList}, a
+ * <code>byte[]</code> (literal kept in memory), whatever a
+ * {@link ImapParser.LiteralSink} returns for a big literal, or
+ * <code>null</code> for NIL
+ */
+public class ImapList extends ArrayList<Object> {
+
+    private static final long serialVersionUID = 4186915062981256416L;
+
+    /**
+     * for "key value" pairs, e.g. FETCH attributes; key is case-insensitive
+     */
+    public Object get(String key) {
+        for (int i = 0; i + 1 < size(); i += 2) {
+            Object o = get(i);
+            if (o instanceof String && key.equalsIgnoreCase((String) o)) {
+                return get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    public ImapList getList(int index) {
+        Object o = get(index);
+        return (o instanceof ImapList) ? (ImapList) o : null;
+    }
+
+    public ImapList getList(String key) {
+        Object o = get(key);
+        return (o instanceof ImapList) ? (ImapList) o : null;
+    }
+
+    public long getNumber(String key, long defaultValue) {
+        Object o = get(key);
+        if (o instanceof String) {
+            try {
+                return Long.parseLong((String) o);
+            } catch (NumberFormatException e) {
+                // dummy
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * a literal in memory is decoded as utf-8
+     */
+    public String getString(int index) {
+        return ImapParser.asString(get(index));
+    }
+
+    public String getString(String key) {
+        return ImapParser.asString(get(key));
+    }
+}
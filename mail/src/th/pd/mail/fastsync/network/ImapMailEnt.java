@@ -0,0 +1,156 @@
+package th.pd.mail.fastsync.network;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import th.pd.mail.dao.MailEnt;
+
+/**
+ * from the attributes of "* n FETCH (...)" to {@link MailEnt}
+ */
+public final class ImapMailEnt {
+
+    // rfc 3501 9. date-time, e.g. "17-Jul-1996 02:44:25 -0700"
+    private static final String INTERNAL_DATE_PATTERN =
+            "dd-MMM-yyyy HH:mm:ss Z";
+
+    private static final ThreadLocal<SimpleDateFormat> INTERNAL_DATE =
+            new ThreadLocal<SimpleDateFormat>() {
+
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(INTERNAL_DATE_PATTERN,
+                            Locale.US);
+                }
+            };
+
+    /**
+     * rfc 3501 7.4.2: (name adl mailbox host), the name rfc 2047 decoded
+     */
+    private static String[] getAddrs(ImapList envelope, int index) {
+        ImapList addrs = envelope.getList(index);
+        if (addrs == null) {
+            return new String[0];
+        }
+        List<String> l = new ArrayList<>(addrs.size());
+        for (int i = 0; i < addrs.size(); ++i) {
+            ImapList addr = addrs.getList(i);
+            if (addr == null || addr.size() < 4 || addr.get(3) == null) {
+                // group syntax is flattened
+                continue;
+            }
+            String mailbox = addr.getString(2) + "@" + addr.getString(3);
+            String name = MimeHeader.decode(addr.getString(0));
+            l.add(name == null || name.isEmpty()
+                    ? mailbox
+                    : name + " <" + mailbox + ">");
+        }
+        return l.toArray(new String[l.size()]);
+    }
+
+    public static int parseFlags(ImapList flags) {
+        int n = 0;
+        if (flags == null) {
+            return n;
+        }
+        for (int i = 0; i < flags.size(); ++i) {
+            String flag = flags.getString(i);
+            if ("\\Seen".equalsIgnoreCase(flag)) {
+                n |= MailEnt.FLAG_READ;
+            } else if ("\\Flagged".equalsIgnoreCase(flag)) {
+                n |= MailEnt.FLAG_MARKED;
+            }
+        }
+        return n;
+    }
+
+    private static long parseInternalDate(String s) {
+        if (s == null) {
+            return 0;
+        }
+        try {
+            return INTERNAL_DATE.get().parse(s.trim()).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * rfc 3501 9. sequence-set, e.g. "300:310,405"
+     *
+     * @return inclusive [first, last] pairs
+     */
+    public static List<long[]> parseUidSet(String s) {
+        List<long[]> l = new ArrayList<>();
+        if (s == null) {
+            return l;
+        }
+        for (String range : s.split(",")) {
+            int colon = range.indexOf(':');
+            try {
+                long first;
+                long last;
+                if (colon < 0) {
+                    first = last = Long.parseLong(range);
+                } else {
+                    first = Long.parseLong(range.substring(0, colon));
+                    last = Long.parseLong(range.substring(colon + 1));
+                }
+                l.add(new long[] {
+                        Math.min(first, last), Math.max(first, last)
+                });
+            } catch (NumberFormatException e) {
+                // "*" never comes from server
+            }
+        }
+        return l;
+    }
+
+    /**
+     * @param attrs
+     *            e.g. (UID 4827 FLAGS (\Seen) INTERNALDATE "..." ENVELOPE
+     *            (...) MODSEQ (12))
+     * @return what is there; the envelope part is left empty if not
+     *         fetched
+     */
+    public static MailEnt toMailEnt(ImapList attrs) {
+        MailEnt ent = new MailEnt();
+        ent.setRemoteId(attrs.getNumber("UID", -1));
+        ent.setFlags(MailEnt.FLAG_VISIBLE
+                | parseFlags(attrs.getList("FLAGS")));
+        ImapList modSeq = attrs.getList("MODSEQ");
+        if (modSeq != null && !modSeq.isEmpty()) {
+            try {
+                ent.setRemoteSync(Long.parseLong(modSeq.getString(0)));
+            } catch (NumberFormatException e) {
+                // dummy
+            }
+        }
+        ent.setDate(parseInternalDate(attrs.getString("INTERNALDATE")));
+
+        // (date subject from sender reply-to to cc bcc in-reply-to
+        // message-id)
+        ImapList envelope = attrs.getList("ENVELOPE");
+        if (envelope != null && envelope.size() >= 10) {
+            // rfc 3501 7.4.2: as in the header, encoded-words undecoded
+            ent.setSubject(MimeHeader.decode(envelope.getString(1)));
+            ent.setFrom(getAddrs(envelope, 2));
+            if (ent.getFrom().length > 0) {
+                ent.setCaption(ent.getFrom()[0]);
+            }
+            ent.setReplyTo(getAddrs(envelope, 4));
+            ent.setTo(getAddrs(envelope, 5));
+            ent.setCc(getAddrs(envelope, 6));
+            ent.setBcc(getAddrs(envelope, 7));
+            ent.setMessageId(envelope.getString(9));
+        }
+        return ent;
+    }
+
+    private ImapMailEnt() {
+        // dummy
+    }
+}
@@ -0,0 +1,339 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * rfc 3501 9. formal syntax, the response half<br/>
+ * a response is tokenized straight from the line views of
+ * {@link SocketConn}; a literal "{n}" is read right after its line, kept
+ * in memory if small, or else streamed to a {@link LiteralSink} so that a
+ * whole message never sits in memory; with no sink a big literal fails the
+ * response
+ */
+class ImapParser {
+
+    interface LiteralSink {
+
+        /**
+         * consume a big literal; what is left unread is skipped
+         *
+         * @return what takes the literal's place in the response, e.g. a
+         *         file
+         */
+        Object onLiteral(InputStream istream, long size) throws IOException;
+    }
+
+    /**
+     * exactly <code>size</code> bytes of the connection
+     */
+    private static class LiteralInputStream extends InputStream {
+
+        private final InputStream istream;
+        private long remaining;
+
+        LiteralInputStream(InputStream istream, long size) {
+            this.istream = istream;
+            this.remaining = size;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(remaining, istream.available());
+        }
+
+        @Override
+        public void close() {
+            // the connection is not ours
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = istream.read();
+            if (c < 0) {
+                throw new EOFException("literal truncated");
+            }
+            --remaining;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = istream.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("literal truncated");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        void skipRest() throws IOException {
+            byte[] a = new byte[4096];
+            while (read(a, 0, a.length) > 0) {
+                // dummy
+            }
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_LITERAL_IN_MEMORY = 64 * 1024;
+
+    static String asString(Object o) {
+        if (o instanceof String) {
+            return (String) o;
+        } else if (o instanceof byte[]) {
+            return new String((byte[]) o, UTF_8);
+        }
+        return null;
+    }
+
+    private static boolean isAtomEnd(byte c) {
+        return c == ' ' || c == '(' || c == ')' || c == '{' || c == '"';
+    }
+
+    private final SocketConn mConn;
+    private LiteralSink mLiteralSink = null;
+
+    // reused for atoms and quoted strings
+    private final ByteArrayOutputStream mToken = new ByteArrayOutputStream();
+
+    ImapParser(SocketConn conn) {
+        mConn = conn;
+    }
+
+    private ByteBuffer nextLine() throws IOException {
+        ByteBuffer b = mConn.getLineBytes();
+        if (b == null) {
+            throw new EOFException("connection closed");
+        }
+        return b;
+    }
+
+    /**
+     * atom, number, or flag like "\Seen"; a section like
+     * "BODY[HEADER.FIELDS (FROM)]<0>" is one atom, brackets included
+     */
+    private String readAtom(ByteBuffer b) {
+        mToken.reset();
+        int depth = 0;
+        while (b.hasRemaining()) {
+            byte c = b.get(b.position());
+            if (depth == 0 && isAtomEnd(c)) {
+                break;
+            }
+            if (c == '[') {
+                ++depth;
+            } else if (c == ']' && depth > 0) {
+                --depth;
+            }
+            mToken.write(b.get());
+        }
+        return new String(mToken.toByteArray(), UTF_8);
+    }
+
+    private String readCode(ByteBuffer b) {
+        // skip '['
+        b.get();
+        mToken.reset();
+        int depth = 1;
+        while (b.hasRemaining()) {
+            byte c = b.get();
+            if (c == '[') {
+                ++depth;
+            } else if (c == ']' && --depth == 0) {
+                break;
+            }
+            mToken.write(c);
+        }
+        return new String(mToken.toByteArray(), UTF_8);
+    }
+
+    private void readElements(ByteBuffer b, List<Object> top)
+            throws IOException {
+        ArrayDeque<List<Object>> stack = new ArrayDeque<>();
+        List<Object> current = top;
+        while (true) {
+            if (!b.hasRemaining()) {
+                if (!stack.isEmpty()) {
+                    throw new IOException("unbalanced parenthesis");
+                }
+                return;
+            }
+            switch (b.get(b.position())) {
+                case ' ':
+                    b.get();
+                    break;
+                case '(': {
+                    b.get();
+                    ImapList l = new ImapList();
+                    current.add(l);
+                    stack.push(current);
+                    current = l;
+                    break;
+                }
+                case ')':
+                    b.get();
+                    if (stack.isEmpty()) {
+                        throw new IOException("unbalanced parenthesis");
+                    }
+                    current = stack.pop();
+                    break;
+                case '"':
+                    current.add(readQuoted(b));
+                    break;
+                case '{': {
+                    long size = readLiteralSize(b);
+                    current.add(readLiteral(size));
+                    // the response goes on in the next line
+                    b = nextLine();
+                    break;
+                }
+                default: {
+                    String atom = readAtom(b);
+                    current.add("NIL".equalsIgnoreCase(atom) ? null : atom);
+                    break;
+                }
+            }
+        }
+    }
+
+    private Object readLiteral(long size) throws IOException {
+        if (size > MAX_LITERAL_IN_MEMORY && mLiteralSink == null) {
+            // not drained; the session is of no use after this
+            throw new IOException("literal too big: " + size);
+        }
+        LiteralInputStream istream = new LiteralInputStream(
+                mConn.getInputStream(), size);
+        try {
+            if (size > MAX_LITERAL_IN_MEMORY) {
+                return mLiteralSink.onLiteral(istream, size);
+            }
+            byte[] a = new byte[(int) size];
+            int n = 0;
+            while (n < a.length) {
+                n += istream.read(a, n, a.length - n);
+            }
+            return a;
+        } finally {
+            istream.skipRest();
+        }
+    }
+
+    /**
+     * "{123}" at the end of line
+     */
+    private long readLiteralSize(ByteBuffer b) throws IOException {
+        // skip '{'
+        b.get();
+        long size = 0;
+        while (b.hasRemaining()) {
+            byte c = b.get();
+            if (c >= '0' && c <= '9') {
+                if (size > (Long.MAX_VALUE - 9) / 10) {
+                    break;
+                }
+                size = size * 10 + (c - '0');
+            } else if (c == '}') {
+                if (b.hasRemaining()) {
+                    throw new IOException("literal not at end of line");
+                }
+                return size;
+            } else if (c != '+') {
+                break;
+            }
+        }
+        throw new IOException("bad literal");
+    }
+
+    private String readQuoted(ByteBuffer b) throws IOException {
+        // skip '"'
+        b.get();
+        mToken.reset();
+        while (b.hasRemaining()) {
+            byte c = b.get();
+            if (c == '"') {
+                return new String(mToken.toByteArray(), UTF_8);
+            }
+            if (c == '\\' && b.hasRemaining()) {
+                c = b.get();
+            }
+            mToken.write(c);
+        }
+        throw new IOException("unterminated quoted string");
+    }
+
+    /**
+     * read one complete response, literals included
+     */
+    ImapResponse readResponse() throws IOException {
+        ByteBuffer b = nextLine();
+        ImapResponse resp = new ImapResponse();
+        resp.tag = readAtom(b);
+        skipSpace(b);
+
+        if (resp.isContinuation()) {
+            resp.text = readText(b);
+            return resp;
+        }
+
+        String s = readAtom(b);
+        skipSpace(b);
+        if (!resp.isTagged() && !s.isEmpty() && Character.isDigit(s.charAt(0))) {
+            try {
+                resp.number = Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad number " + s);
+            }
+            s = readAtom(b);
+            skipSpace(b);
+        }
+        resp.type = s.toUpperCase(Locale.US);
+
+        if (resp.isStatus()) {
+            if (b.hasRemaining() && b.get(b.position()) == '[') {
+                resp.code = readCode(b);
+                skipSpace(b);
+            }
+            resp.text = readText(b);
+        } else {
+            readElements(b, resp.elements);
+        }
+        return resp;
+    }
+
+    private String readText(ByteBuffer b) {
+        mToken.reset();
+        while (b.hasRemaining()) {
+            mToken.write(b.get());
+        }
+        return new String(mToken.toByteArray(), UTF_8);
+    }
+
+    /**
+     * where literals bigger than in-memory limit go; <code>null</code> to
+     * reject them
+     */
+    void setLiteralSink(LiteralSink sink) {
+        mLiteralSink = sink;
+    }
+
+    private void skipSpace(ByteBuffer b) {
+        while (b.hasRemaining() && b.get(b.position()) == ' ') {
+            b.get();
+        }
+    }
+}
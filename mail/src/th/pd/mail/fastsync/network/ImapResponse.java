@@ -0,0 +1,114 @@
+package th.pd.mail.fastsync.network;
+
+/**
+ * rfc 3501 7. one server response<br/>
+ * e.g.<br/>
+ * <code>* 23 EXISTS</code><br/>
+ * <code>* OK [UIDVALIDITY 3857529045] UIDs valid</code><br/>
+ * <code>* 12 FETCH (UID 4827 FLAGS (\Seen))</code><br/>
+ * <code>A7 OK [READ-WRITE] SELECT completed</code><br/>
+ * <code>+ ready for literal</code>
+ */
+public class ImapResponse {
+
+    public static final String TAG_UNTAGGED = "*";
+    public static final String TAG_CONTINUATION = "+";
+
+    String tag;
+
+    /**
+     * the number before the type, e.g. of EXISTS, EXPUNGE and FETCH
+     */
+    long number = -1;
+
+    /**
+     * upper case, e.g. OK, NO, BAD, BYE, CAPABILITY, LIST, FETCH, EXISTS
+     */
+    String type;
+
+    /**
+     * response code without brackets, e.g. "UIDNEXT 4392"
+     */
+    String code;
+
+    /**
+     * human readable text of a status response
+     */
+    String text;
+
+    final ImapList elements = new ImapList();
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return the value of a response code "KEY value", or <code>null</code>
+     */
+    public String getCodeValue(String key) {
+        if (code == null || code.length() <= key.length()
+                || !code.regionMatches(true, 0, key, 0, key.length())
+                || code.charAt(key.length()) != ' ') {
+            return null;
+        }
+        return code.substring(key.length() + 1).trim();
+    }
+
+    public ImapList getElements() {
+        return elements;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isContinuation() {
+        return TAG_CONTINUATION.equals(tag);
+    }
+
+    public boolean isOk() {
+        return "OK".equals(type);
+    }
+
+    public boolean isStatus() {
+        return "OK".equals(type) || "NO".equals(type) || "BAD".equals(type)
+                || "BYE".equals(type) || "PREAUTH".equals(type);
+    }
+
+    public boolean isTagged() {
+        return !TAG_UNTAGGED.equals(tag) && !TAG_CONTINUATION.equals(tag);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(tag);
+        if (number >= 0) {
+            sb.append(' ').append(number);
+        }
+        if (type != null) {
+            sb.append(' ').append(type);
+        }
+        if (code != null) {
+            sb.append(" [").append(code).append(']');
+        }
+        if (!elements.isEmpty()) {
+            sb.append(' ').append(elements);
+        }
+        if (text != null) {
+            sb.append(' ').append(text);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,710 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Base64;
+
+import th.pd.mail.Const;
+import th.pd.mail.MailApp;
+import th.pd.mail.dao.ImapSyncable;
+import th.pd.mail.dao.MailDir;
+import th.pd.mail.dao.MailServerAuth;
+import th.pd.mail.dao.Message;
+import th.pd.mail.dao.Syncable;
+
+/**
+ * see <strong>Internet Message Access Protocol</strong><br/>
+ * &emsp; rfc 1730 -> rfc 2060 -> rfc 3501<br/>
+ * rfc 2595 starttls<br/>
+ * rfc 4315 uidplus<br/>
+ * rfc 5161 enable<br/>
+ * rfc 6851 move<br/>
+ * rfc 7162 condstore and qresync<br/>
+ * rfc 7888 literal+<br/>
+ * <br/>
+ * commands are tagged and may be pipelined: a command goes out by
+ * {@link #putCommand(String)} and its completion is collected by
+ * {@link #waitFor(String)}; untagged responses in between update the
+ * selected mailbox state and go to the {@link Listener}; a big literal,
+ * e.g. a message body, comes as a {@link File} which lives only till the
+ * listener returns
+ */
+public class ImapWorker {
+
+    public interface Listener {
+
+        /**
+         * e.g. "* 12 FETCH (...)", "* 3 EXPUNGE", "* LIST (...)"
+         */
+        void onUntagged(String selectedPath, ImapResponse resp);
+
+        /**
+         * the uids known of the mailbox are invalid; forget them before a
+         * full sync refills
+         */
+        void onUidValidityChanged(String selectedPath);
+
+        /**
+         * every uid below <code>uidNext</code> still on the server, when
+         * expunges are not told by VANISHED; a known one not in it is gone
+         */
+        void onUidsListed(String selectedPath, long uidNext, Set<Long> uids);
+    }
+
+    private static final String CAPA_AUTH_PLAIN = "AUTH=PLAIN";
+    private static final String CAPA_CONDSTORE = "CONDSTORE";
+    private static final String CAPA_LITERAL_PLUS = "LITERAL+";
+    private static final String CAPA_LOGINDISABLED = "LOGINDISABLED";
+    private static final String CAPA_MOVE = "MOVE";
+    private static final String CAPA_QRESYNC = "QRESYNC";
+    private static final String CAPA_STARTTLS = "STARTTLS";
+    private static final String CAPA_UIDPLUS = "UIDPLUS";
+
+    private static final String FETCH_ITEMS =
+            "(UID FLAGS INTERNALDATE RFC822.SIZE ENVELOPE)";
+    private static final String FETCH_ITEMS_MODSEQ =
+            "(UID FLAGS INTERNALDATE RFC822.SIZE ENVELOPE MODSEQ)";
+
+    private static final String INBOX = "INBOX";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * rfc 3501 4.3: a quoted string, or a literal if it can not be quoted
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+        // TODO modified utf-7 for non-ascii mailbox names, rfc 3501 5.1.3
+        return sb.toString();
+    }
+
+    private SocketConn mSocketConn = new SocketConn();
+    private ImapParser mParser = new ImapParser(mSocketConn);
+    private Set<String> mCapabilities = new HashSet<>();
+    private Listener mListener = null;
+
+    private int mTagSeq = 0;
+    private boolean mIsQresyncEnabled = false;
+
+    // completions which come while waiting for another tag
+    private Map<String, ImapResponse> mCompletions = new HashMap<>();
+
+    // the selected mailbox
+    private String mSelectedPath = null;
+    private long mExists = -1;
+    private long mUidNext = -1;
+    private long mUidValidity = -1;
+    private long mHighestModSeq = -1; // 0 for NOMODSEQ
+    private long mMaxUid = -1; // seen in FETCH
+    private Set<Long> mListedUids = null; // seen in FETCH and SEARCH
+
+    // big literals of the response being read, spooled to the cache
+    private List<File> mLiteralFiles = new ArrayList<>();
+
+    private final ImapParser.LiteralSink mLiteralSink =
+            new ImapParser.LiteralSink() {
+
+                @Override
+                public Object onLiteral(InputStream istream, long size)
+                        throws IOException {
+                    File dir = new File(MailApp.appContext.getCacheDir(),
+                            "imap");
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        throw new IOException("cannot make " + dir);
+                    }
+                    File file = File.createTempFile("literal", null, dir);
+                    mLiteralFiles.add(file);
+                    OutputStream ostream = new FileOutputStream(file);
+                    try {
+                        byte[] a = new byte[BUFFER_SIZE];
+                        int n;
+                        while ((n = istream.read(a)) > 0) {
+                            ostream.write(a, 0, n);
+                        }
+                    } finally {
+                        ostream.close();
+                    }
+                    return file;
+                }
+            };
+
+    public ImapWorker() {
+        mParser.setLiteralSink(mLiteralSink);
+    }
+
+    /**
+     * say goodbye politely and release the socket anyway
+     */
+    void close() {
+        try {
+            if (isConnected()) {
+                onCommand("LOGOUT");
+            }
+        } catch (IOException | MessengerException e) {
+            // dummy
+        } finally {
+            connEnd();
+        }
+    }
+
+    private void conn(SocketAddress remoteAddr, boolean isImplicitTls,
+            boolean isTlsRequired, String user, String pass)
+            throws IOException, MessengerException {
+        connEnd(); // start from a clean state
+
+        Const.logd("CONN--- " + remoteAddr);
+        mSocketConn.conn(remoteAddr, isImplicitTls);
+        if (!mSocketConn.isConnected()) {
+            throw new IOException("failed to connect " + remoteAddr);
+        }
+
+        // rfc 3501 7.1: greeting is OK, PREAUTH or BYE
+        ImapResponse greeting = readResponse();
+        if ("BYE".equals(greeting.getType())) {
+            throw new MessengerException(greeting.getText(),
+                    MessengerException.TYPE_IMAP);
+        }
+        if (mCapabilities.isEmpty()) {
+            onCommand("CAPABILITY");
+        }
+
+        if (!mSocketConn.isTls()) {
+            if (hasCapability(CAPA_STARTTLS)) {
+                // rfc 3501 6.2.1: forget everything learned before tls
+                onCommand("STARTTLS");
+                mSocketConn.startTls();
+                mCapabilities.clear();
+                onCommand("CAPABILITY");
+            } else if (isTlsRequired) {
+                throw new MessengerException("STARTTLS not supported.",
+                        MessengerException.TYPE_IMAP);
+            }
+        }
+
+        if ("PREAUTH".equals(greeting.getType())) {
+            return;
+        }
+        if (!user.isEmpty()) {
+            // rfc 3501 6.2.3: capabilities may change after login
+            Set<String> capabilities = mCapabilities;
+            mCapabilities = new HashSet<>();
+            if (!capabilities.contains(CAPA_LOGINDISABLED)) {
+                onCommand("LOGIN " + quote(user) + " " + quote(pass));
+            } else if (capabilities.contains(CAPA_AUTH_PLAIN)) {
+                onCommandAuthPlain(user, pass);
+            } else {
+                throw new MessengerException(
+                        "Unknown authentication mechanism.",
+                        MessengerException.TYPE_IMAP);
+            }
+            if (mCapabilities.isEmpty()) {
+                // not told along with the completion
+                onCommand("CAPABILITY");
+            }
+        } else {
+            // TODO no user
+        }
+        if (hasCapability(CAPA_QRESYNC)) {
+            // rfc 7162 3.2.3: qresync is off till enabled
+            onCommand("ENABLE " + CAPA_QRESYNC);
+        }
+    }
+
+    private void connEnd() {
+        Const.logd("CONN CLEAR--- ");
+        mSocketConn.connEnd();
+        mCapabilities.clear();
+        mCompletions.clear();
+        mIsQresyncEnabled = false;
+        resetSelected();
+    }
+
+    long getExists() {
+        return mExists;
+    }
+
+    long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    String getSelectedPath() {
+        return mSelectedPath;
+    }
+
+    long getUidNext() {
+        return mUidNext;
+    }
+
+    long getUidValidity() {
+        return mUidValidity;
+    }
+
+    boolean hasCapability(String capability) {
+        return mCapabilities.contains(capability.toUpperCase(Locale.US));
+    }
+
+    boolean isConnected() {
+        return mSocketConn.isConnected();
+    }
+
+    private ImapResponse onCommand(String command)
+            throws IOException, MessengerException {
+        return waitFor(putCommand(command));
+    }
+
+    /**
+     * rfc 3501 6.3.11 with the message as a literal<br/>
+     * with LITERAL+ the literal follows at once; otherwise it waits for
+     * the continuation
+     */
+    private void onCommandAppend(String path, Message message)
+            throws IOException, MessengerException {
+        // a big one is encoded once into its spool, which knows the size
+        // before the literal and streams from the mapped file
+        MessageSpool spool = null;
+        ByteArrayOutputStream buffer = null;
+        long size;
+        if (MessageSpool.isWorthSpooling(message)) {
+            spool = MessageSpool.open(message);
+            size = spool.getSize();
+        } else {
+            buffer = new ByteArrayOutputStream();
+            MessageExporter.putMessage(buffer, message);
+            size = buffer.size();
+        }
+        final boolean isLiteralPlus = hasCapability(CAPA_LITERAL_PLUS);
+
+        String tag = putCommand("APPEND " + quote(path) + " (\\Seen) {"
+                + size + (isLiteralPlus ? "+}" : "}"));
+        if (!isLiteralPlus) {
+            waitForContinuation(tag);
+        }
+        OutputStream os = mSocketConn.getBufferedOutputStream();
+        if (spool != null) {
+            spool.writeTo(os);
+        } else {
+            buffer.writeTo(os);
+        }
+        mSocketConn.writeLine("");
+        waitFor(tag);
+    }
+
+    private void onCommandAuthPlain(String user, String pass)
+            throws IOException, MessengerException {
+        byte[] bytes = Base64.encode(
+                ('\000' + user + '\000' + pass).getBytes(), Base64.NO_WRAP);
+        onCommand("AUTHENTICATE PLAIN " + new String(bytes));
+    }
+
+    /**
+     * rfc 6851 if supported; otherwise copy, flag deleted and expunge,
+     * where the copy must succeed before anything is deleted
+     */
+    private void onCommandMove(long uid, String targetPath)
+            throws IOException, MessengerException {
+        if (hasCapability(CAPA_MOVE)) {
+            onCommand("UID MOVE " + uid + " " + quote(targetPath));
+            return;
+        }
+        onCommand("UID COPY " + uid + " " + quote(targetPath));
+        String storeTag = putCommand("UID STORE " + uid
+                + " +FLAGS.SILENT (\\Deleted)");
+        String expungeTag = putCommand(hasCapability(CAPA_UIDPLUS)
+                ? "UID EXPUNGE " + uid
+                : "EXPUNGE");
+        waitFor(storeTag);
+        waitFor(expungeTag);
+    }
+
+    private void onCommandSelect(String path)
+            throws IOException, MessengerException {
+        if (path.equals(mSelectedPath)) {
+            return;
+        }
+        resetSelected();
+        onCommand("SELECT " + quote(path));
+        mSelectedPath = path;
+    }
+
+    /**
+     * connect and authenticate, leaving the session ready for commands
+     */
+    void open(MailServerAuth serverAuth)
+            throws IOException, MessengerException {
+        SocketAddress remoteAddr = new InetSocketAddress(
+                serverAuth.getHost(), serverAuth.getPort());
+        conn(remoteAddr, serverAuth.isImplicitTls(),
+                serverAuth.isTlsRequired(), serverAuth.getLogin(),
+                serverAuth.getPin());
+    }
+
+    /**
+     * buffer a tagged command without flushing
+     *
+     * @return the tag
+     */
+    String putCommand(String command) throws IOException {
+        String tag = "A" + (++mTagSeq);
+        String logged = command;
+        if (command.startsWith("LOGIN ")) {
+            logged = "LOGIN ***";
+        } else if (command.startsWith("AUTHENTICATE PLAIN ")) {
+            // base64 of the password
+            logged = "AUTHENTICATE PLAIN ***";
+        }
+        Const.logd("CMND--- " + tag + " " + logged);
+        mSocketConn.writeLine(tag + " " + command);
+        return tag;
+    }
+
+    private ImapResponse readResponse() throws IOException {
+        try {
+            ImapResponse resp = mParser.readResponse();
+            Const.logd("RESP--- " + resp);
+            if (resp.isTagged() || resp.isContinuation()) {
+                if (resp.getCode() != null) {
+                    updateState(resp);
+                }
+                return resp;
+            }
+            updateState(resp);
+            if (mListener != null) {
+                mListener.onUntagged(mSelectedPath, resp);
+            }
+            return resp;
+        } finally {
+            removeLiteralFiles();
+        }
+    }
+
+    private void removeLiteralFiles() {
+        for (File file : mLiteralFiles) {
+            file.delete();
+        }
+        mLiteralFiles.clear();
+    }
+
+    private void resetSelected() {
+        mSelectedPath = null;
+        mExists = -1;
+        mUidNext = -1;
+        mUidValidity = -1;
+        mHighestModSeq = -1;
+        mMaxUid = -1;
+        mListedUids = null;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * select the mailbox and fetch what a message list needs, in one
+     * round trip
+     */
+    void syncFolder(String path) throws IOException, MessengerException {
+        resetSelected();
+        String selectTag = putCommand("SELECT " + quote(path));
+        String fetchTag = putCommand("UID FETCH 1:* " + FETCH_ITEMS);
+        mSelectedPath = path;
+        try {
+            waitFor(selectTag);
+        } catch (MessengerException e) {
+            mSelectedPath = null;
+            // the fetch fails as well, with no mailbox selected
+            try {
+                waitFor(fetchTag);
+            } catch (MessengerException e1) {
+                // dummy
+            }
+            throw e;
+        }
+        waitFor(fetchTag);
+    }
+
+    /**
+     * rfc 7162 incremental sync: with the state of last sync, only changed
+     * flags, expunged uids and new messages come down<br/>
+     * QRESYNC reports changes and VANISHED uids along with SELECT;
+     * CONDSTORE alone needs a "CHANGEDSINCE" fetch, and "UID SEARCH ALL"
+     * for what is expunged; without either the flags of known messages are
+     * fetched, which is still far less than their envelopes, and whose
+     * uids tell what is expunged<br/>
+     * a changed UIDVALIDITY falls back to full sync<br/>
+     * on return <code>dir</code> holds the new state to persist
+     */
+    void syncFolder(MailDir dir) throws IOException, MessengerException {
+        final String path = dir.getPath();
+        final long uidValidity = dir.getUidValidity();
+        final long highestModSeq = dir.getHighestModSeq();
+        final long uidNext = dir.getUidNext();
+
+        StringBuilder sb = new StringBuilder("SELECT ").append(quote(path));
+        if (mIsQresyncEnabled && uidValidity > 0 && highestModSeq > 0) {
+            sb.append(" (QRESYNC (").append(uidValidity).append(' ')
+                    .append(highestModSeq).append("))");
+        } else if (hasCapability(CAPA_CONDSTORE)) {
+            sb.append(" (CONDSTORE)");
+        }
+        resetSelected();
+        mSelectedPath = path;
+        try {
+            waitFor(putCommand(sb.toString()));
+        } catch (MessengerException e) {
+            mSelectedPath = null;
+            throw e;
+        }
+
+        final boolean hasModSeq = mHighestModSeq > 0;
+        final String items = hasModSeq ? FETCH_ITEMS_MODSEQ : FETCH_ITEMS;
+        if (uidValidity <= 0 || uidValidity != mUidValidity
+                || uidNext <= 1) {
+            if (uidValidity > 0 && mListener != null) {
+                Const.logd("uid validity changed: " + path);
+                mListener.onUidValidityChanged(path);
+            }
+            if (mExists != 0) {
+                waitFor(putCommand("UID FETCH 1:* " + items));
+            }
+        } else {
+            String flagsTag = null;
+            String searchTag = null;
+            String newTag = null;
+            if (mIsQresyncEnabled && highestModSeq > 0) {
+                // changes have come along with SELECT
+            } else if (hasModSeq && highestModSeq > 0) {
+                if (mHighestModSeq != highestModSeq) {
+                    flagsTag = putCommand("UID FETCH 1:" + (uidNext - 1)
+                            + " (UID FLAGS) (CHANGEDSINCE " + highestModSeq
+                            + ")");
+                }
+                // expunged ones are missing from the uids of all
+                mListedUids = new HashSet<>();
+                searchTag = putCommand("UID SEARCH ALL");
+            } else {
+                // expunged ones are missing from the flags of all
+                mListedUids = new HashSet<>();
+                flagsTag = putCommand("UID FETCH 1:" + (uidNext - 1)
+                        + " (UID FLAGS)");
+            }
+            // "n:*" is never empty, so ask only when there are new ones
+            if (mUidNext < 0 || mUidNext > uidNext) {
+                newTag = putCommand("UID FETCH " + uidNext + ":* " + items);
+            }
+            if (flagsTag != null) {
+                waitFor(flagsTag);
+            }
+            if (searchTag != null) {
+                waitFor(searchTag);
+            }
+            if (newTag != null) {
+                waitFor(newTag);
+            }
+            if (mListedUids != null && mListener != null) {
+                mListener.onUidsListed(path, uidNext, mListedUids);
+            }
+            mListedUids = null;
+        }
+
+        dir.setUidValidity(mUidValidity);
+        dir.setUidNext(Math.max(mUidNext, mMaxUid + 1));
+        dir.setHighestModSeq(hasModSeq ? mHighestModSeq : 0);
+    }
+
+    /**
+     * one-shot: connect, sync the mail directory and logout
+     */
+    public void syncMailDir(MailServerAuth serverAuth, MailDir dir)
+            throws IOException, MessengerException {
+        try {
+            open(serverAuth);
+            syncFolder(dir);
+            onCommand("LOGOUT");
+        } finally {
+            connEnd();
+        }
+    }
+
+    /**
+     * one-shot: connect, run the request and logout
+     */
+    public void syncMessage(Syncable syncable)
+            throws IOException, MessengerException {
+        if (!(syncable instanceof ImapSyncable)) {
+            throw new IllegalArgumentException("expect imap syncable");
+        }
+        ImapSyncable imapSyncable = (ImapSyncable) syncable;
+        try {
+            open(imapSyncable.getServerAuth());
+            switch (imapSyncable.request) {
+                case ImapSyncable.REQUEST_SYNC:
+                    onCommand("LIST \"\" \"*\"");
+                    syncFolder(INBOX);
+                    break;
+                case ImapSyncable.REQUEST_CREATE_MESSAGE:
+                    onCommandAppend(imapSyncable.path,
+                            imapSyncable.getMessage());
+                    break;
+                case ImapSyncable.REQUEST_CREATE_FOLDER:
+                    onCommand("CREATE " + quote(imapSyncable.path));
+                    break;
+                case ImapSyncable.REQUEST_MOVE_MESSAGE:
+                    onCommandSelect(imapSyncable.path);
+                    onCommandMove(imapSyncable.uid, imapSyncable.targetPath);
+                    break;
+                case ImapSyncable.REQUEST_SYNC_FOLDER:
+                    syncFolder(imapSyncable.path);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "unknown request " + imapSyncable.request);
+            }
+            onCommand("LOGOUT");
+        } finally {
+            connEnd();
+        }
+    }
+
+    private void updateState(ImapResponse resp) {
+        String type = resp.getType();
+        if ("CAPABILITY".equals(type)) {
+            mCapabilities.clear();
+            for (int i = 0; i < resp.getElements().size(); ++i) {
+                String s = resp.getElements().getString(i);
+                if (s != null) {
+                    mCapabilities.add(s.toUpperCase(Locale.US));
+                }
+            }
+        } else if ("ENABLED".equals(type)) {
+            for (int i = 0; i < resp.getElements().size(); ++i) {
+                if (CAPA_QRESYNC.equalsIgnoreCase(
+                        resp.getElements().getString(i))) {
+                    mIsQresyncEnabled = true;
+                }
+            }
+        } else if ("EXISTS".equals(type)) {
+            mExists = resp.getNumber();
+        } else if ("FETCH".equals(type)) {
+            ImapList attrs = resp.getElements().getList(0);
+            if (attrs != null) {
+                long uid = attrs.getNumber("UID", -1);
+                mMaxUid = Math.max(mMaxUid, uid);
+                if (mListedUids != null && uid > 0) {
+                    mListedUids.add(uid);
+                }
+            }
+        } else if ("SEARCH".equals(type)) {
+            // "* SEARCH 2 84 882"
+            for (int i = 0; mListedUids != null
+                    && i < resp.getElements().size(); ++i) {
+                long uid = parseLong(resp.getElements().getString(i));
+                if (uid > 0) {
+                    mListedUids.add(uid);
+                }
+            }
+        } else if (resp.getCode() != null) {
+            String value = resp.getCodeValue("CAPABILITY");
+            if (value != null) {
+                mCapabilities.clear();
+                for (String s : value.split(" ")) {
+                    mCapabilities.add(s.toUpperCase(Locale.US));
+                }
+            }
+            value = resp.getCodeValue("UIDNEXT");
+            if (value != null) {
+                mUidNext = parseLong(value);
+            }
+            value = resp.getCodeValue("UIDVALIDITY");
+            if (value != null) {
+                mUidValidity = parseLong(value);
+            }
+            value = resp.getCodeValue("HIGHESTMODSEQ");
+            if (value != null) {
+                mHighestModSeq = parseLong(value);
+            } else if ("NOMODSEQ".equalsIgnoreCase(resp.getCode())) {
+                mHighestModSeq = 0;
+            }
+        }
+    }
+
+    /**
+     * flush, then read until the completion of <code>tag</code>; the
+     * completions of other pipelined commands are kept for their own turn
+     *
+     * @throws MessengerException
+     *             if the command is rejected (NO or BAD)
+     */
+    ImapResponse waitFor(String tag) throws IOException, MessengerException {
+        mSocketConn.flush();
+        ImapResponse resp = mCompletions.remove(tag);
+        while (resp == null) {
+            ImapResponse r = readResponse();
+            if (!r.isTagged()) {
+                // a BYE is followed by end of stream, which throws
+                continue;
+            }
+            if (tag.equals(r.getTag())) {
+                resp = r;
+            } else {
+                mCompletions.put(r.getTag(), r);
+            }
+        }
+        if (!resp.isOk()) {
+            throw new MessengerException(resp.getType() + " "
+                    + resp.getText(), MessengerException.TYPE_IMAP);
+        }
+        return resp;
+    }
+
+    /**
+     * a literal may follow only after "+"
+     */
+    private void waitForContinuation(String tag)
+            throws IOException, MessengerException {
+        mSocketConn.flush();
+        while (true) {
+            ImapResponse r = readResponse();
+            if (r.isContinuation()) {
+                return;
+            }
+            if (r.isTagged()) {
+                if (tag.equals(r.getTag())) {
+                    throw new MessengerException(r.getType() + " "
+                            + r.getText(), MessengerException.TYPE_IMAP);
+                }
+                mCompletions.put(r.getTag(), r);
+            }
+        }
+    }
+}
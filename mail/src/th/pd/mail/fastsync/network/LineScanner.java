@@ -0,0 +1,280 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * reads the socket in bulk into a growable buffer and hands out lines as
+ * views of that buffer<br/>
+ * a view is valid until the next call that reads; decode it or copy it out
+ * before that<br/>
+ * it is also the input stream of the connection: raw reads (e.g. an imap
+ * literal) drain what is already buffered first<br/>
+ * in push mode there is no stream; bytes are put through
+ * {@link #prepareWrite(int)} and {@link #commitWrite(int)}
+ */
+class LineScanner extends InputStream {
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // a protocol line longer than this is an attack or a broken server
+    private static final int MAX_CAPACITY = 8 * 1024 * 1024;
+
+    private final InputStream mIstream;
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private ByteBuffer mView = ByteBuffer.wrap(mBuffer);
+    private ByteBuffer mWriteView = ByteBuffer.wrap(mBuffer);
+    private int mPos = 0; // start of unconsumed bytes
+    private int mLimit = 0; // end of valid bytes
+
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8")
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer mChars = CharBuffer.allocate(256);
+
+    /**
+     * push mode
+     */
+    LineScanner() {
+        this(null);
+    }
+
+    LineScanner(InputStream istream) {
+        mIstream = istream;
+    }
+
+    @Override
+    public int available() throws IOException {
+        int n = mLimit - mPos;
+        return mIstream == null ? n : n + mIstream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIstream != null) {
+            mIstream.close();
+        }
+    }
+
+    /**
+     * make the bytes put into the view of {@link #prepareWrite(int)}
+     * visible to scan
+     */
+    void commitWrite(int n) {
+        mLimit += n;
+    }
+
+    /**
+     * decode utf-8 with a reused decoder; consumes the view
+     */
+    String decode(ByteBuffer bytes) {
+        if (bytes == null) {
+            return "";
+        }
+        int n = bytes.remaining();
+        // utf-8 never decodes to more chars than bytes
+        if (mChars.capacity() < n) {
+            mChars = CharBuffer.allocate(Math.max(n,
+                    mChars.capacity() * 2));
+        }
+        mChars.clear();
+        mDecoder.reset();
+        mDecoder.decode(bytes, mChars, true);
+        mDecoder.flush(mChars);
+        mChars.flip();
+        return mChars.toString();
+    }
+
+    /**
+     * compact and grow so that at least <code>minFree</code> bytes follow
+     * the valid ones
+     */
+    private void ensureFree(int minFree) throws IOException {
+        if (mPos > 0 && mBuffer.length - mLimit < minFree) {
+            System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+            mLimit -= mPos;
+            mPos = 0;
+        }
+        if (mBuffer.length - mLimit < minFree) {
+            int capacity = mBuffer.length;
+            while (capacity - mLimit < minFree) {
+                capacity *= 2;
+            }
+            if (capacity > MAX_CAPACITY) {
+                throw new IOException("line too long");
+            }
+            byte[] a = new byte[capacity];
+            System.arraycopy(mBuffer, mPos, a, 0, mLimit - mPos);
+            mLimit -= mPos;
+            mPos = 0;
+            mBuffer = a;
+            mView = ByteBuffer.wrap(mBuffer);
+            mWriteView = ByteBuffer.wrap(mBuffer);
+        }
+    }
+
+    /**
+     * @return <code>false</code> on end of stream
+     */
+    private boolean fill() throws IOException {
+        if (mIstream == null) {
+            return false;
+        }
+        if (mPos > 0) {
+            // compact
+            System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+            mLimit -= mPos;
+            mPos = 0;
+        }
+        ensureFree(1);
+        int n = mIstream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (n < 0) {
+            return false;
+        }
+        mLimit += n;
+        return true;
+    }
+
+    /**
+     * @return the next line without "\r\n" or "\n", or <code>null</code> at
+     *         end of stream
+     */
+    ByteBuffer nextLine() throws IOException {
+        int scanned = mPos;
+        while (true) {
+            for (int i = scanned; i < mLimit; ++i) {
+                if (mBuffer[i] == '\n') {
+                    int end = (i > mPos && mBuffer[i - 1] == '\r')
+                            ? i - 1
+                            : i;
+                    return take(end, i + 1);
+                }
+            }
+            scanned = mLimit - mPos;
+            if (!fill()) {
+                break;
+            }
+            scanned += mPos;
+        }
+        // TODO end of stream may be an error state, log it
+        if (mLimit > mPos) {
+            return take(mLimit, mLimit);
+        }
+        return null;
+    }
+
+    /**
+     * @return bytes till the next space, or <code>null</code> at end of
+     *         stream
+     */
+    ByteBuffer nextWord() throws IOException {
+        int scanned = mPos;
+        while (true) {
+            for (int i = scanned; i < mLimit; ++i) {
+                if (mBuffer[i] == ' ') {
+                    return take(i, i + 1);
+                }
+            }
+            scanned = mLimit - mPos;
+            if (!fill()) {
+                break;
+            }
+            scanned += mPos;
+        }
+        if (mLimit > mPos) {
+            return take(mLimit, mLimit);
+        }
+        return null;
+    }
+
+    /**
+     * complete lines only, never blocks
+     */
+    ByteBuffer pollLine() {
+        for (int i = mPos; i < mLimit; ++i) {
+            if (mBuffer[i] == '\n') {
+                int end = (i > mPos && mBuffer[i - 1] == '\r')
+                        ? i - 1
+                        : i;
+                return take(end, i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a view of the free space to put bytes into, e.g. by
+     *         <code>channel.read()</code> or <code>engine.unwrap()</code>;
+     *         call {@link #commitWrite(int)} with what was put
+     */
+    ByteBuffer prepareWrite(int minFree) throws IOException {
+        ensureFree(minFree);
+        mWriteView.clear();
+        mWriteView.position(mLimit);
+        return mWriteView;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int buffered = mLimit - mPos;
+        if (buffered == 0) {
+            if (mIstream == null) {
+                return -1;
+            }
+            // large reads bypass the buffer
+            return mIstream.read(b, off, len);
+        }
+        int n = Math.min(buffered, len);
+        System.arraycopy(mBuffer, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    /**
+     * @return <code>null</code> at end of stream
+     */
+    String readLine() throws IOException {
+        ByteBuffer line = nextLine();
+        return line == null ? null : decode(line);
+    }
+
+    /**
+     * @return <code>null</code> at end of stream
+     */
+    String readWord() throws IOException {
+        ByteBuffer word = nextWord();
+        return word == null ? null : decode(word);
+    }
+
+    /**
+     * @param end
+     *            end of the view
+     * @param next
+     *            where the next scan starts
+     */
+    private ByteBuffer take(int end, int next) {
+        mView.clear();
+        mView.position(mPos);
+        mView.limit(end);
+        mPos = next;
+        return mView;
+    }
+}
@@ -2,23 +2,594 @@ package th.pd.mail.fastsync.network;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import android.os.SystemClock;
-import android.util.Base64;
-import android.util.Base64OutputStream;
 
-import cc.typedef.io.FormatCodec;
+import cc.typedef.droid.common.CachedDateFormat;
 import th.pd.mail.MailApp;
 import th.pd.mail.dao.Message;
 import th.pd.mail.dao.Message.Attachment;
 
 class MessageExporter {
 
+    /**
+     * base64 body encoder; one per thread, its buffers reused by every
+     * export<br/>
+     * input is encoded in whole lines of {@link #LINE_INPUT} bytes straight
+     * into the output buffer, line breaks included; only a tail shorter
+     * than a line is carried over to the next chunk
+     */
+    private static class Encoder {
+
+        // rfc 2045 6.8: 76 characters a line, i.e. 57 bytes of input
+        private static final int LINE_INPUT = 57;
+        private static final int LINE_OUTPUT = 76 + 2;
+        private static final int LINES_PER_CHUNK = 1024;
+
+        private static final byte[] ALPHABET = getUtf8Bytes(
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+
+        // for file reads; a heap buffer would cost a temporary direct one
+        // each read
+        private final ByteBuffer direct = ByteBuffer.allocateDirect(
+                LINE_INPUT * LINES_PER_CHUNK);
+
+        private final byte[] input = new byte[LINE_INPUT * LINES_PER_CHUNK];
+        private final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        private int inputLength = 0;
+
+        private final byte[] output = new byte[LINE_OUTPUT * LINES_PER_CHUNK];
+
+        // for short header strings
+        private final byte[] line = new byte[1024];
+
+        private final CharsetEncoder utf8 = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private OutputStream ostream = null;
+
+        void begin(OutputStream ostream) {
+            this.ostream = ostream;
+            inputLength = 0;
+        }
+
+        /**
+         * put the tail, padded; every line ends with CRLF
+         */
+        void end() throws IOException {
+            int n = encodeLines(inputLength / LINE_INPUT);
+            int i = inputLength / LINE_INPUT * LINE_INPUT;
+            if (i < inputLength) {
+                for (; i + 3 <= inputLength; i += 3) {
+                    n = encodeGroup(i, n);
+                }
+                int rest = inputLength - i;
+                if (rest > 0) {
+                    int b0 = input[i] & 0xFF;
+                    int b1 = rest > 1 ? input[i + 1] & 0xFF : 0;
+                    output[n++] = ALPHABET[b0 >>> 2];
+                    output[n++] = ALPHABET[(b0 << 4 | b1 >>> 4) & 0x3F];
+                    output[n++] = rest > 1
+                            ? ALPHABET[(b1 << 2) & 0x3F]
+                            : (byte) '=';
+                    output[n++] = '=';
+                }
+                output[n++] = '\r';
+                output[n++] = '\n';
+            }
+            ostream.write(output, 0, n);
+            inputLength = 0;
+            ostream = null;
+        }
+
+        /**
+         * 3 bytes of input at i to 4 of output at n
+         *
+         * @return the next n
+         */
+        private int encodeGroup(int i, int n) {
+            int bits = (input[i] & 0xFF) << 16
+                    | (input[i + 1] & 0xFF) << 8
+                    | (input[i + 2] & 0xFF);
+            output[n++] = ALPHABET[bits >>> 18];
+            output[n++] = ALPHABET[(bits >>> 12) & 0x3F];
+            output[n++] = ALPHABET[(bits >>> 6) & 0x3F];
+            output[n++] = ALPHABET[bits & 0x3F];
+            return n;
+        }
+
+        /**
+         * @return length of output
+         */
+        private int encodeLines(int lines) {
+            int n = 0;
+            int i = 0;
+            for (int l = 0; l < lines; ++l) {
+                for (int end = i + LINE_INPUT; i < end; i += 3) {
+                    n = encodeGroup(i, n);
+                }
+                output[n++] = '\r';
+                output[n++] = '\n';
+            }
+            return n;
+        }
+
+        /**
+         * put the whole lines and keep the tail
+         */
+        private void flushLines() throws IOException {
+            int lines = inputLength / LINE_INPUT;
+            ostream.write(output, 0, encodeLines(lines));
+            int consumed = lines * LINE_INPUT;
+            System.arraycopy(input, consumed, input, 0,
+                    inputLength - consumed);
+            inputLength -= consumed;
+        }
+
+        /**
+         * utf-8 encoded right into the input buffer
+         */
+        void write(CharSequence s) throws IOException {
+            CharBuffer in = CharBuffer.wrap(s);
+            utf8.reset();
+            while (true) {
+                inputBuffer.limit(input.length).position(inputLength);
+                CoderResult result = utf8.encode(in, inputBuffer, true);
+                if (!result.isOverflow()) {
+                    result = utf8.flush(inputBuffer);
+                }
+                inputLength = inputBuffer.position();
+                if (!result.isOverflow()) {
+                    break;
+                }
+                flushLines();
+            }
+        }
+
+        /**
+         * the file read in big chunks
+         */
+        void write(FileChannel channel) throws IOException {
+            while (true) {
+                if (input.length - inputLength < LINE_INPUT) {
+                    flushLines();
+                }
+                direct.clear();
+                direct.limit(input.length - inputLength);
+                int n = channel.read(direct);
+                if (n < 0) {
+                    break;
+                }
+                direct.flip();
+                direct.get(input, inputLength, n);
+                inputLength += n;
+            }
+        }
+
+        /**
+         * any other stream read right into the input buffer
+         */
+        void write(InputStream istream) throws IOException {
+            while (true) {
+                if (input.length - inputLength < LINE_INPUT) {
+                    flushLines();
+                }
+                int n = istream.read(input, inputLength,
+                        input.length - inputLength);
+                if (n < 0) {
+                    break;
+                }
+                inputLength += n;
+            }
+        }
+
+        /**
+         * ascii as is; not for the body
+         */
+        void writeString(OutputStream ostream, String s)
+                throws IOException {
+            int n = 0;
+            for (int i = 0; i < s.length(); ++i) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // rare: such a value is mostly encoded before
+                    ostream.write(line, 0, n);
+                    ostream.write(getUtf8Bytes(s.substring(i)));
+                    return;
+                }
+                if (n == line.length) {
+                    ostream.write(line, 0, n);
+                    n = 0;
+                }
+                line[n++] = (byte) c;
+            }
+            ostream.write(line, 0, n);
+        }
+    }
+
+    /**
+     * rfc 2047 encoded-words and rfc 2231 parameter values; one per thread,
+     * its buffers reused by every header<br/>
+     * the value is turned into utf-8 in one pass, which also learns whether
+     * it may go as is; one to encode goes in whichever of B and Q is
+     * shorter, every line filled by arithmetic and cut only at character
+     * boundaries
+     */
+    private static class HeaderEncoder {
+
+        private static final byte[] B_PREFIX = getUtf8Bytes("=?UTF-8?B?");
+        private static final byte[] Q_PREFIX = getUtf8Bytes("=?UTF-8?Q?");
+        private static final byte[] SUFFIX = getUtf8Bytes("?=");
+        private static final byte[] FOLD = getUtf8Bytes("\r\n ");
+        private static final byte[] CHARSET_PREFIX =
+                getUtf8Bytes("utf-8''");
+
+        private static final byte[] HEX = getUtf8Bytes("0123456789ABCDEF");
+
+        // rfc 2047 5.(3): what a Q word may hold as is anywhere; space
+        // goes as '_'
+        private static final boolean[] Q_SAFE = new boolean[128];
+
+        // rfc 2231 7: attribute-char
+        private static final boolean[] ATTRIBUTE_CHAR = new boolean[128];
+
+        static {
+            for (int c = 0; c < 128; ++c) {
+                boolean isAlnum = (c >= 'a' && c <= 'z')
+                        || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+                Q_SAFE[c] = isAlnum || "!*+-/ ".indexOf(c) >= 0;
+                ATTRIBUTE_CHAR[c] = isAlnum || "!#$&+-.^_`|~".indexOf(c) >= 0;
+            }
+        }
+
+        /**
+         * of the character led by the byte
+         */
+        private static int getUtf8Length(byte lead) {
+            if ((lead & 0x80) == 0) {
+                return 1;
+            } else if ((lead & 0xE0) == 0xC0) {
+                return 2;
+            } else if ((lead & 0xF0) == 0xE0) {
+                return 3;
+            }
+            return 4;
+        }
+
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+
+        // of the last value
+        private boolean isPlain;
+        private boolean isQuotable;
+
+        // a word or a line at most
+        private final byte[] line = new byte[MAX_LINE_LENGTH + 16];
+
+        /**
+         * 3 bytes at i to 4 chars at n, or fewer padded
+         *
+         * @return the next n
+         */
+        private int encodeB(int i, int end, int n) {
+            for (; i + 3 <= end; i += 3) {
+                int bits = (bytes[i] & 0xFF) << 16
+                        | (bytes[i + 1] & 0xFF) << 8
+                        | (bytes[i + 2] & 0xFF);
+                line[n++] = Encoder.ALPHABET[bits >>> 18];
+                line[n++] = Encoder.ALPHABET[(bits >>> 12) & 0x3F];
+                line[n++] = Encoder.ALPHABET[(bits >>> 6) & 0x3F];
+                line[n++] = Encoder.ALPHABET[bits & 0x3F];
+            }
+            int rest = end - i;
+            if (rest > 0) {
+                int b0 = bytes[i] & 0xFF;
+                int b1 = rest > 1 ? bytes[i + 1] & 0xFF : 0;
+                line[n++] = Encoder.ALPHABET[b0 >>> 2];
+                line[n++] = Encoder.ALPHABET[(b0 << 4 | b1 >>> 4) & 0x3F];
+                line[n++] = rest > 1
+                        ? Encoder.ALPHABET[(b1 << 2) & 0x3F]
+                        : (byte) '=';
+                line[n++] = '=';
+            }
+            return n;
+        }
+
+        private int encodeEscaped(int b, int n) {
+            line[n++] = HEX[(b >>> 4) & 0xF];
+            line[n++] = HEX[b & 0xF];
+            return n;
+        }
+
+        private int encodeQ(int i, int end, int n) {
+            for (; i < end; ++i) {
+                int b = bytes[i] & 0xFF;
+                if (b == ' ') {
+                    line[n++] = '_';
+                } else if (b < 0x80 && Q_SAFE[b]) {
+                    line[n++] = (byte) b;
+                } else {
+                    line[n++] = '=';
+                    n = encodeEscaped(b, n);
+                }
+            }
+            return n;
+        }
+
+        /**
+         * as many whole characters from i as take no more than max chars
+         * when encoded, at 1 or 3 each byte
+         *
+         * @return the end
+         */
+        private int fit(int i, int max, boolean[] safe) {
+            int taken = 0;
+            while (i < length) {
+                int end = i + getUtf8Length(bytes[i]);
+                int cost = 0;
+                for (int k = i; k < end; ++k) {
+                    int b = bytes[k] & 0xFF;
+                    cost += b < 0x80 && safe[b] ? 1 : 3;
+                }
+                if (taken + cost > max) {
+                    break;
+                }
+                taken += cost;
+                i = end;
+            }
+            return i;
+        }
+
+        /**
+         * as many whole characters from i as fit in max chars of base64
+         */
+        private int fitB(int i, int max) {
+            int end = i + max / 4 * 3;
+            if (end >= length) {
+                return length;
+            }
+            while (end > i && (bytes[end] & 0xC0) == 0x80) {
+                --end;
+            }
+            return end;
+        }
+
+        /**
+         * of all the bytes, at 1 or 3 each; counted no further than the
+         * limit
+         */
+        private int getEncodedLength(boolean[] safe, int limit) {
+            int n = length;
+            for (int i = 0; i < length && n <= limit; ++i) {
+                int b = bytes[i] & 0xFF;
+                if (b >= 0x80 || !safe[b]) {
+                    n += 2;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * "key: value" and CRLF, the value encoded only if it has to be:
+         * not ascii, a control, a would-be encoded-word, or too long
+         */
+        void putHeader(OutputStream ostream, String key, String value)
+                throws IOException {
+            toUtf8(value);
+            int n = putString(key, 0);
+            line[n++] = ':';
+            line[n++] = ' ';
+            ostream.write(line, 0, n);
+            if (isPlain && n + length <= MAX_LINE_LENGTH) {
+                ostream.write(bytes, 0, length);
+            } else {
+                putWords(ostream, n);
+            }
+            ostream.write('\r');
+            ostream.write('\n');
+        }
+
+        /**
+         * rfc 2231 3 and 4: ";" CRLF and " attribute=value", quoted, or
+         * else percent-encoded utf-8 and continued over lines as needed
+         */
+        void putParam(OutputStream ostream, String attribute, String value)
+                throws IOException {
+            toUtf8(value);
+            int n = putString(";\r\n ", 0);
+            int start = n;
+            n = putString(attribute, n);
+            if (isQuotable
+                    && n - start + length + 3 <= MAX_LINE_LENGTH - 1) {
+                line[n++] = '=';
+                line[n++] = '"';
+                ostream.write(line, 0, n);
+                ostream.write(bytes, 0, length);
+                ostream.write('"');
+                return;
+            }
+            if (n - start + 2 + CHARSET_PREFIX.length
+                    + getEncodedLength(ATTRIBUTE_CHAR, MAX_LINE_LENGTH)
+                    <= MAX_LINE_LENGTH - 1) {
+                // one line, no section number
+                line[n++] = '*';
+                line[n++] = '=';
+                System.arraycopy(CHARSET_PREFIX, 0, line, n,
+                        CHARSET_PREFIX.length);
+                n = putPercentEncoded(0, length,
+                        n + CHARSET_PREFIX.length);
+                ostream.write(line, 0, n);
+                return;
+            }
+            int i = 0;
+            for (int section = 0; i < length; ++section) {
+                if (section > 0) {
+                    n = putString(";\r\n ", 0);
+                    n = putString(attribute, n);
+                }
+                line[n++] = '*';
+                n = putString(Integer.toString(section), n);
+                line[n++] = '*';
+                line[n++] = '=';
+                if (section == 0) {
+                    System.arraycopy(CHARSET_PREFIX, 0, line, n,
+                            CHARSET_PREFIX.length);
+                    n += CHARSET_PREFIX.length;
+                }
+                // past the line break; the ";" of the next section counts
+                int column = n - 3;
+                int end = fit(i, MAX_LINE_LENGTH - column - 1,
+                        ATTRIBUTE_CHAR);
+                if (end == i) {
+                    // a character longer than a line: never with utf-8
+                    end = i + getUtf8Length(bytes[i]);
+                }
+                n = putPercentEncoded(i, end, n);
+                ostream.write(line, 0, n);
+                i = end;
+            }
+        }
+
+        private int putPercentEncoded(int i, int end, int n) {
+            for (; i < end; ++i) {
+                int b = bytes[i] & 0xFF;
+                if (b < 0x80 && ATTRIBUTE_CHAR[b]) {
+                    line[n++] = (byte) b;
+                } else {
+                    line[n++] = '%';
+                    n = encodeEscaped(b, n);
+                }
+            }
+            return n;
+        }
+
+        /**
+         * ascii into the line at n
+         *
+         * @return the next n
+         */
+        private int putString(String s, int n) {
+            for (int i = 0; i < s.length(); ++i) {
+                line[n++] = (byte) s.charAt(i);
+            }
+            return n;
+        }
+
+        /**
+         * as is if it may, else encoded-words; for a quoted parameter
+         * value, i.e. no quote of its own
+         */
+        void putValue(OutputStream ostream, String value, int start)
+                throws IOException {
+            toUtf8(value);
+            if (isQuotable && start + length + 1 <= MAX_LINE_LENGTH) {
+                ostream.write(bytes, 0, length);
+            } else {
+                putWords(ostream, start);
+            }
+        }
+
+        /**
+         * the bytes as encoded-words from the column start, every line
+         * filled, folded with CRLF SP
+         */
+        private void putWords(OutputStream ostream, int start)
+                throws IOException {
+            int bLength = (length + 2) / 3 * 4;
+            boolean isQ = getEncodedLength(Q_SAFE, bLength) <= bLength;
+            byte[] prefix = isQ ? Q_PREFIX : B_PREFIX;
+            int column = start;
+            int i = 0;
+            while (i < length) {
+                int max = MAX_LINE_LENGTH - column - prefix.length
+                        - SUFFIX.length;
+                int end = isQ ? fit(i, max, Q_SAFE) : fitB(i, max);
+                if (end == i) {
+                    // not a character more on this line
+                    ostream.write(FOLD);
+                    column = 1;
+                    continue;
+                }
+                System.arraycopy(prefix, 0, line, 0, prefix.length);
+                int n = isQ
+                        ? encodeQ(i, end, prefix.length)
+                        : encodeB(i, end, prefix.length);
+                System.arraycopy(SUFFIX, 0, line, n, SUFFIX.length);
+                n += SUFFIX.length;
+                ostream.write(line, 0, n);
+                i = end;
+                if (i < length) {
+                    ostream.write(FOLD);
+                    column = 1;
+                }
+            }
+        }
+
+        /**
+         * into the byte buffer, learning on the way whether it may go as
+         * is; a lone surrogate becomes '?'
+         */
+        private void toUtf8(String s) {
+            if (s == null) {
+                s = "";
+            }
+            if (bytes.length < s.length() * 3) {
+                bytes = new byte[s.length() * 3];
+            }
+            int n = 0;
+            boolean isAscii = true;
+            boolean hasQuote = false;
+            boolean hasWordStart = false;
+            for (int i = 0; i < s.length(); ++i) {
+                int c = s.charAt(i);
+                if (c < 0x80) {
+                    if (c < 0x20 || c == 0x7F) {
+                        isAscii = false;
+                    } else if (c == '"' || c == '\\') {
+                        hasQuote = true;
+                    } else if (c == '?' && n > 0 && bytes[n - 1] == '=') {
+                        hasWordStart = true;
+                    }
+                    bytes[n++] = (byte) c;
+                    continue;
+                }
+                isAscii = false;
+                if (c < 0x800) {
+                    bytes[n++] = (byte) (0xC0 | c >>> 6);
+                    bytes[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate((char) c)
+                        && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    c = Character.toCodePoint((char) c, s.charAt(++i));
+                    bytes[n++] = (byte) (0xF0 | c >>> 18);
+                    bytes[n++] = (byte) (0x80 | ((c >>> 12) & 0x3F));
+                    bytes[n++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate((char) c)) {
+                    bytes[n++] = '?';
+                } else {
+                    bytes[n++] = (byte) (0xE0 | c >>> 12);
+                    bytes[n++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            length = n;
+            isPlain = isAscii && !hasWordStart;
+            isQuotable = isPlain && !hasQuote;
+        }
+    }
+
     /**
      * main text also forms Part
      */
@@ -36,21 +607,25 @@ class MessageExporter {
 
         public Part(Attachment attachment) {
             this.file = attachment.file;
+            this.contentUri = attachment.contentUri;
+            this.source = attachment.source;
             this.mimeType = attachment.mimeType;
+            this.name = attachment.name;
+            this.size = attachment.size;
         }
 
         private String getNameOfAttachment() {
             if (isCalendarEvent()) {
                 return "meeting.ics";
             } else if (!isMainText()) {
-                return file.getName();
+                return getName();
             }
             return null;
         }
 
         private long getSizeOfAttachment() {
-            if (!isMainText() && !isCalendarEvent() && file != null) {
-                return file.length();
+            if (!isMainText() && !isCalendarEvent()) {
+                return getSize();
             }
             return -1;
         }
@@ -59,7 +634,7 @@ class MessageExporter {
             if (!"text/calendar".equals(mimeType)) {
                 return false;
             }
-            if (file != null) {
+            if (hasContent()) {
                 return "meeting.ics".equals(text);
             } else {
                 return text != null && !text.isEmpty();
@@ -70,15 +645,32 @@ class MessageExporter {
          * part is either main text or attachment
          */
         public boolean isMainText() {
-            return file == null
+            return !hasContent()
                     && ("text/plain".equals(mimeType) || "text/html"
                             .equals(mimeType));
         }
 
     }
 
-    private static final SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<Encoder> ENCODER =
+            new ThreadLocal<Encoder>() {
+
+                @Override
+                protected Encoder initialValue() {
+                    return new Encoder();
+                }
+            };
+
+    private static final ThreadLocal<HeaderEncoder> HEADER_ENCODER =
+            new ThreadLocal<HeaderEncoder>() {
+
+                @Override
+                protected HeaderEncoder initialValue() {
+                    return new HeaderEncoder();
+                }
+            };
 
     // rfc 5322 2.1.1
     private static final int MAX_LINE_LENGTH = 78;
@@ -127,80 +719,14 @@ class MessageExporter {
         return MailApp.packageName;
     }
 
-    private static byte[] getUtf8Bytes(String s)
-            throws UnsupportedEncodingException {
-        return s.getBytes("UTF-8");
+    private static byte[] getUtf8Bytes(String s) {
+        return s.getBytes(UTF_8);
     }
 
     private static final String getVersionCode() {
         return Integer.toHexString(MailApp.versionCode);
     }
 
-    /**
-     * *this* byte will not be checked, allows -1 as start
-     */
-    private static int nextUtf8(byte[] bytes, int start) {
-        if (start < -1) {
-            return -1;
-        }
-        while (++start < bytes.length && ((bytes[start] & 0xC0) == 0x80)) {
-            // dummy
-        }
-        return (start < bytes.length) ? start : -1;
-    }
-
-    /**
-     * taking start position means it being header and obeying {@link #MAX_LINE_LENGTH}<br/>
-     * <br/>
-     * encapsulate with "<code> =?UTF-8?B?</code>" and "<code>?=</code>"<br/>
-     */
-    private static void putBase64Encoded(OutputStream ostream,
-            String s, int start) throws IOException {
-        // rfc 2047 section 2. Syntax of encoded-words
-        // encoded-word = "=?" charset "?" encoding "?" encoded-text "?="
-        final byte[] prefixBytes = getUtf8Bytes("=?UTF-8?B?");
-        final byte[] suffixBytes = getUtf8Bytes("?=");
-        final int maxLength =
-                MAX_LINE_LENGTH - prefixBytes.length - suffixBytes.length;
-
-        // we would decode each encoded-word respectively and then join them
-        // always use base64 rather than quoted-printable: very few people read the raw mail
-
-        byte[] utf8Bytes = getUtf8Bytes(s);
-        int capacity = (maxLength - start) * 3 / 4;
-        int i = 0;
-        int j = 0;
-        while (i < utf8Bytes.length) {
-            while (true) {
-                // make sure bytes from a single utf8 graph are in the same line
-                int next = nextUtf8(utf8Bytes, j);
-                if (next < 0) {
-                    // write the rest bytes
-                    j = utf8Bytes.length;
-                    break;
-                }
-                if (next - i > capacity) {
-                    // enough for this line
-                    break;
-                }
-                j = next;
-            }
-            if (j > i) {
-                if (i != 0) {
-                    putNewLine(ostream);
-                    ostream.write(' ');
-                }
-                ostream.write(prefixBytes);
-                ostream.write(Base64.encode(utf8Bytes, i, j - i,
-                        Base64.NO_WRAP));
-                ostream.write(suffixBytes);
-            }
-
-            capacity = (maxLength - 1) * 3 / 4; // SP
-            i = j;
-        }
-    }
-
     private static void putBoundary(OutputStream ostream, String boundary)
             throws UnsupportedEncodingException, IOException {
         ostream.write('-');
@@ -221,31 +747,22 @@ class MessageExporter {
 
     private static void putHeader(OutputStream ostream, String key,
             String value) throws IOException {
-        if (shouldEncode(key, value)) {
-            putHeaderEncoded(ostream, key, value);
-        } else {
-            putString(ostream, key);
-            ostream.write(':');
-            ostream.write(' ');
-            putString(ostream, value);
-            putNewLine(ostream);
-        }
+        HEADER_ENCODER.get().putHeader(ostream, key, value);
     }
 
     private static void putHeaderContentDisposition(OutputStream ostream,
             String filename, long size) throws IOException {
-        putString(ostream, "Content-Disposition: attachment;");
-        putNewLine(ostream);
+        putString(ostream, "Content-Disposition: attachment");
         if (filename != null && !filename.isEmpty()) {
-            putString(ostream, " filename*=utf-8''");
-            putUrlEncoded(ostream, getUtf8Bytes(filename));
-            putNewLine(ostream);
+            HEADER_ENCODER.get().putParam(ostream, "filename", filename);
         }
         if (size >= 0) {
+            ostream.write(';');
+            putNewLine(ostream);
             putString(ostream, " size=");
             putString(ostream, Long.toString(size));
-            putNewLine(ostream);
         }
+        putNewLine(ostream);
     }
 
     private static void putHeaderContentTransferEncoding(
@@ -269,7 +786,7 @@ class MessageExporter {
         if (name != null && !name.isEmpty()) {
             putNewLine(ostream);
             putString(ostream, " name=\"");
-            putBase64Encoded(ostream, name, 7);
+            HEADER_ENCODER.get().putValue(ostream, name, 7);
             ostream.write('"');
         }
         if (boundary != null && !boundary.isEmpty()) {
@@ -281,25 +798,21 @@ class MessageExporter {
         putNewLine(ostream);
     }
 
-    private static void putHeaderEncoded(OutputStream ostream, String key,
-            String value) throws IOException {
-        final byte[] keyBytes = getUtf8Bytes(key);
-        ostream.write(keyBytes);
-        ostream.write(':');
-        ostream.write(' ');
-        putBase64Encoded(ostream, value, keyBytes.length + 2);
-        putNewLine(ostream);
-    }
-
     static void putMessage(OutputStream ostream, Message message)
             throws IOException {
 
         // rfc 822 4.1
         // "Return-Path"
         // "Received"
-        putHeader(ostream, "Date", DATE_FORMAT.format(new Date()));
+        // shared by every sync thread; rendered once a second
+        putHeader(ostream, "Date",
+                CachedDateFormat.formatRfc5322(System.currentTimeMillis()));
         putHeader(ostream, "From", message.getSender());
         putHeader(ostream, "Subject", message.getSubject());
+        if (message.getMessageId() != null) {
+            // the same on every retry, so that a duplicate can be told
+            putHeader(ostream, "Message-ID", message.getMessageId());
+        }
         // "Sender",
         // "To"
         // "Cc"
@@ -326,8 +839,10 @@ class MessageExporter {
             putHeaderContentTransferEncoding(ostream);
             putNewLine(ostream);
 
-            ostream.write(Base64.encode(getUtf8Bytes(part.text),
-                    Base64.CRLF));
+            Encoder encoder = ENCODER.get();
+            encoder.begin(ostream);
+            encoder.write(part.text);
+            encoder.end();
             putNewLine(ostream);
         } else if (part.isCalendarEvent()) {
             // TODO
@@ -339,18 +854,21 @@ class MessageExporter {
             putHeaderContentTransferEncoding(ostream);
             putNewLine(ostream);
 
-            Base64OutputStream os =
-                    new Base64OutputStream(ostream, Base64.CRLF
-                            | Base64.NO_CLOSE);
-            FileInputStream is = new FileInputStream(part.file);
-            byte[] buffer = new byte[4096];
-            int n = -1;
-            while ((n = is.read(buffer)) != -1) {
-                os.write(buffer, 0, n);
-            }
-            is.close();
-            os.flush();
-            os.close();
+            // straight from the source onto the wire, no copy in between
+            Encoder encoder = ENCODER.get();
+            InputStream is = part.open(MailApp.appContext);
+            try {
+                encoder.begin(ostream);
+                if (is.getClass() == FileInputStream.class) {
+                    // not a subclass, which may bound what it reads
+                    encoder.write(((FileInputStream) is).getChannel());
+                } else {
+                    encoder.write(is);
+                }
+                encoder.end();
+            } finally {
+                is.close();
+            }
             putNewLine(ostream);
         }
         ostream.flush();
@@ -401,49 +919,6 @@ class MessageExporter {
 
     private static void putString(OutputStream ostream, String s)
             throws IOException {
-        // each short string translates to byte array
-        // cost much, but won't be the bottleneck
-        ostream.write(s.getBytes("UTF-8"));
-    }
-
-    private static void putUrlEncoded(OutputStream ostream, byte[] a)
-            throws IOException {
-        for (byte b : a) {
-            if (FormatCodec.Uri.shouldBeEncoded(b)) {
-                FormatCodec.Uri.encodeAndPut(b, ostream);
-            } else {
-                ostream.write(b);
-            }
-        }
-    }
-
-    /**
-     * a simple analysis that return <code>true</code> iff the bytes are in one
-     * line and all alphanum
-     */
-    private static boolean shouldEncode(String key, String value) {
-        if (key == null || value == null) {
-            return false;
-        }
-
-        // key should not be encoded
-        int taken = key.length() + 2;
-        if (taken + value.length() > MAX_LINE_LENGTH) {
-            return true;
-        }
-
-        if (value.length() > 1 && value.charAt(0) == '='
-                && value.charAt(1) == '?') {
-            // the literal is as if the encoded format
-            return true;
-        }
-
-        for (int i = 0; i < value.length(); i++) {
-            char ch = value.charAt(i);
-            if (ch < 0x20 || ch >= 0x7F) {
-                return true;
-            }
-        }
-        return false;
+        ENCODER.get().writeString(ostream, s);
     }
 }
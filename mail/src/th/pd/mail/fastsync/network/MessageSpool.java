@@ -0,0 +1,166 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import th.pd.mail.Const;
+import th.pd.mail.MailApp;
+import th.pd.mail.dao.Message;
+
+/**
+ * a message encoded once into a file and mapped, so that a retry sends the
+ * same bytes without reading and encoding the attachments again; its size
+ * is known before the envelope, for rfc 1870 SIZE and a single BDAT<br/>
+ * keyed by message id; kept until the message is sent or given up
+ */
+public class MessageSpool {
+
+    // below it encoding again costs less than the file
+    private static final long MIN_SPOOL_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String SPOOL_SUFFIX = ".eml";
+
+    private static File getFile(Message message) {
+        String id = message.getMessageId();
+        StringBuilder sb = new StringBuilder(id.length());
+        for (int i = 0; i < id.length(); ++i) {
+            char c = id.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '.' || c == '-'
+                    || c == '@') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        File dir = new File(MailApp.appContext.getCacheDir(), "outbox");
+        return new File(dir, sb.append(SPOOL_SUFFIX).toString());
+    }
+
+    /**
+     * big attachments, or any of unknown size
+     */
+    static boolean isWorthSpooling(Message message) {
+        long total = 0;
+        for (Message.Attachment attachment : message.attachments) {
+            long size = attachment.getSize();
+            if (size < 0) {
+                return true;
+            }
+            total += size;
+        }
+        return total >= MIN_SPOOL_SIZE;
+    }
+
+    /**
+     * the spool of an earlier attempt, or a new one
+     */
+    static MessageSpool open(Message message) throws IOException {
+        message.ensureMessageId();
+        File file = getFile(message);
+        if (file.isFile()) {
+            Const.logd("spool reused: " + file);
+        } else {
+            write(message, file);
+        }
+
+        FileInputStream istream = new FileInputStream(file);
+        try {
+            FileChannel channel = istream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("too big to spool: " + size);
+            }
+            // the mapping outlives the channel
+            return new MessageSpool(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            istream.close();
+        }
+    }
+
+    /**
+     * when sent or given up
+     */
+    public static void remove(Message message) {
+        if (message.getMessageId() == null) {
+            return;
+        }
+        File file = getFile(message);
+        if (file.delete()) {
+            Const.logd("spool removed: " + file);
+        }
+    }
+
+    /**
+     * to a temp file renamed when whole, so that a broken one is never
+     * taken for a spool
+     */
+    private static void write(Message message, File file)
+            throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot make " + dir);
+        }
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        boolean isDone = false;
+        try {
+            OutputStream ostream = new BufferedOutputStream(
+                    new FileOutputStream(tmpFile), BUFFER_SIZE);
+            try {
+                MessageExporter.putMessage(ostream, message);
+            } finally {
+                ostream.close();
+            }
+            isDone = tmpFile.renameTo(file);
+        } finally {
+            if (!isDone) {
+                tmpFile.delete();
+            }
+        }
+        if (!isDone) {
+            throw new IOException("cannot move to " + file);
+        }
+        Const.logd("spooled: " + file + ", " + file.length());
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private final MappedByteBuffer mMapped;
+
+    private MessageSpool(MappedByteBuffer mapped) {
+        mMapped = mapped;
+    }
+
+    /**
+     * in bytes, as it goes on the wire
+     */
+    long getSize() {
+        return mMapped.capacity();
+    }
+
+    /**
+     * the whole message from the mapped region; no dot-stuffing needed as
+     * every line is base64 or an encoded header
+     */
+    void writeTo(OutputStream ostream) throws IOException {
+        // a view of its own, so that a spool may be written again
+        ByteBuffer region = mMapped.duplicate();
+        region.clear();
+        WritableByteChannel channel = Channels.newChannel(ostream);
+        while (region.hasRemaining()) {
+            channel.write(region);
+        }
+    }
+}
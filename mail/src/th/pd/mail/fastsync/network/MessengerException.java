@@ -4,6 +4,9 @@ public class MessengerException extends Exception {
 
     public static final int TYPE_UNSEPCIFIED = 0;
     public static final int TYPE_SMTP = 1;
+    public static final int TYPE_IMAP = 2;
+    public static final int TYPE_POP3 = 3;
+    public static final int TYPE_EAS = 4;
 
     private static final long serialVersionUID = -4820996120153268657L;
 
@@ -18,6 +21,15 @@ public class MessengerException extends Exception {
         this.type = type;
     }
 
+    /**
+     * rfc 5321 4.2.1: a 5yz reply, i.e. the same request fails again
+     */
+    public boolean isPermanent() {
+        String msg = getMessage();
+        return type == TYPE_SMTP && msg != null && !msg.isEmpty()
+                && msg.charAt(0) == '5';
+    }
+
     public int isAuthFailed() {
         String msg = getMessage();
         if (msg == null || msg.isEmpty()) {
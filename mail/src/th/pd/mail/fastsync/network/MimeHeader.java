@@ -0,0 +1,393 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Base64;
+
+/**
+ * header fields of a mime entity, unfolded<br/>
+ * values are kept raw and decoded on get: rfc 2047 encoded-words in
+ * unstructured fields and rfc 2231 parameters in structured ones
+ */
+class MimeHeader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static void appendDecoded(StringBuilder sb,
+            ByteArrayOutputStream bytes, String charset) {
+        if (bytes.size() > 0) {
+            sb.append(new String(bytes.toByteArray(), getCharset(charset)));
+            bytes.reset();
+        }
+    }
+
+    /**
+     * rfc 2047 6.1: encoded-words decoded; white space between two of them
+     * is dropped, and their bytes are joined before decoding so that a
+     * character split across words survives
+     */
+    static String decode(String s) {
+        if (s == null || s.indexOf("=?") < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String charset = null;
+        int i = 0;
+        int lastEnd = -1;
+        int start;
+        while ((start = s.indexOf("=?", i)) >= 0) {
+            // =?charset?encoding?encoded-text?=
+            int q1 = s.indexOf('?', start + 2);
+            int q2 = q1 < 0 ? -1 : s.indexOf('?', q1 + 1);
+            int end = q2 < 0 ? -1 : s.indexOf("?=", q2 + 1);
+            if (end < 0 || q2 != q1 + 2) {
+                break;
+            }
+            byte[] decoded = decodeWord(s.charAt(q1 + 1),
+                    s.substring(q2 + 1, end));
+            if (decoded == null) {
+                // not an encoded-word after all
+                appendDecoded(sb, bytes, charset);
+                sb.append(s, i, start + 2);
+                i = start + 2;
+                lastEnd = -1;
+                continue;
+            }
+            if (lastEnd != i || !s.substring(i, start).trim().isEmpty()) {
+                appendDecoded(sb, bytes, charset);
+                sb.append(s, i, start);
+            }
+            // rfc 2231 5. "charset*language"
+            String wordCharset = s.substring(start + 2, q1);
+            int star = wordCharset.indexOf('*');
+            if (star >= 0) {
+                wordCharset = wordCharset.substring(0, star);
+            }
+            if (!wordCharset.equalsIgnoreCase(charset)) {
+                appendDecoded(sb, bytes, charset);
+                charset = wordCharset;
+            }
+            bytes.write(decoded, 0, decoded.length);
+            i = end + 2;
+            lastEnd = i;
+        }
+        appendDecoded(sb, bytes, charset);
+        sb.append(s, i, s.length());
+        return sb.toString();
+    }
+
+    /**
+     * @return null if malformed
+     */
+    private static byte[] decodeWord(char encoding, String text) {
+        if (encoding == 'B' || encoding == 'b') {
+            try {
+                return Base64.decode(text, Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        } else if (encoding == 'Q' || encoding == 'q') {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    text.length());
+            for (int i = 0; i < text.length(); ++i) {
+                char c = text.charAt(i);
+                if (c == '_') {
+                    bytes.write(' ');
+                } else if (c == '=' && i + 2 < text.length()
+                        && getHexValue(text.charAt(i + 1)) >= 0
+                        && getHexValue(text.charAt(i + 2)) >= 0) {
+                    bytes.write(getHexValue(text.charAt(i + 1)) << 4
+                            | getHexValue(text.charAt(i + 2)));
+                    i += 2;
+                } else {
+                    bytes.write(c);
+                }
+            }
+            return bytes.toByteArray();
+        }
+        return null;
+    }
+
+    static Charset getCharset(String charset) {
+        if (charset != null) {
+            try {
+                return Charset.forName(charset.trim());
+            } catch (IllegalArgumentException e) {
+                // unknown or illegal name
+            }
+        }
+        return UTF_8;
+    }
+
+    static int getHexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * rfc 2045 5.1 parameters of a structured field, with rfc 2231
+     * continuations and charset joined
+     *
+     * @return lower case name to decoded value
+     */
+    static Map<String, String> parseParameters(String value) {
+        Map<String, String> params = new HashMap<>();
+        if (value == null) {
+            return params;
+        }
+        // name -> section -> [raw value, is extended]
+        Map<String, TreeMap<Integer, Object[]>> sections = new HashMap<>();
+        for (String param : splitParameters(value)) {
+            int eq = param.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String name = param.substring(0, eq).trim()
+                    .toLowerCase(Locale.US);
+            String v = unquote(param.substring(eq + 1).trim());
+            boolean isExtended = name.endsWith("*");
+            if (isExtended) {
+                name = name.substring(0, name.length() - 1);
+            }
+            int section = 0;
+            int star = name.indexOf('*');
+            if (star > 0) {
+                try {
+                    section = Integer.parseInt(name.substring(star + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                name = name.substring(0, star);
+            } else if (!isExtended) {
+                // plain; often rfc 2047 inside quotes, against the rules
+                params.put(name, decode(v));
+                continue;
+            }
+            TreeMap<Integer, Object[]> m = sections.get(name);
+            if (m == null) {
+                m = new TreeMap<>();
+                sections.put(name, m);
+            }
+            m.put(section, new Object[] {
+                    v, isExtended
+            });
+        }
+        for (Map.Entry<String, TreeMap<Integer, Object[]>> entry : sections
+                .entrySet()) {
+            String charset = null;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (Object[] section : entry.getValue().values()) {
+                String v = (String) section[0];
+                if ((Boolean) section[1]) {
+                    if (charset == null) {
+                        // charset'language'value
+                        int q1 = v.indexOf('\'');
+                        int q2 = q1 < 0 ? -1 : v.indexOf('\'', q1 + 1);
+                        if (q2 >= 0) {
+                            charset = v.substring(0, q1);
+                            v = v.substring(q2 + 1);
+                        }
+                    }
+                    percentDecode(v, bytes);
+                } else {
+                    byte[] a = v.getBytes(UTF_8);
+                    bytes.write(a, 0, a.length);
+                }
+            }
+            params.put(entry.getKey(), new String(bytes.toByteArray(),
+                    getCharset(charset)));
+        }
+        return params;
+    }
+
+    private static void percentDecode(String s, ByteArrayOutputStream bytes) {
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length()
+                    && getHexValue(s.charAt(i + 1)) >= 0
+                    && getHexValue(s.charAt(i + 2)) >= 0) {
+                bytes.write(getHexValue(s.charAt(i + 1)) << 4
+                        | getHexValue(s.charAt(i + 2)));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+    }
+
+    /**
+     * what follows the first ';', split at ';' out of quotes
+     */
+    private static List<String> splitParameters(String value) {
+        List<String> l = new ArrayList<>();
+        int start = value.indexOf(';');
+        if (start < 0) {
+            return l;
+        }
+        boolean isQuoted = false;
+        StringBuilder sb = new StringBuilder();
+        for (int i = start + 1; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '\\' && isQuoted && i + 1 < value.length()) {
+                sb.append(c).append(value.charAt(++i));
+                continue;
+            }
+            if (c == '"') {
+                isQuoted = !isQuoted;
+            } else if (c == ';' && !isQuoted) {
+                l.add(sb.toString());
+                sb.setLength(0);
+                continue;
+            }
+            sb.append(c);
+        }
+        l.add(sb.toString());
+        return l;
+    }
+
+    private static String unquote(String s) {
+        if (s.length() < 2 || s.charAt(0) != '"'
+                || s.charAt(s.length() - 1) != '"') {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 1; i < s.length() - 1; ++i) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length() - 1) {
+                c = s.charAt(++i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    ////////////////////////////////////////////////////////
+
+    // [name, raw value] in order of appearance
+    private final List<String[]> mFields = new ArrayList<>();
+
+    private Map<String, String> mContentTypeParams = null;
+    private Map<String, String> mDispositionParams = null;
+
+    void add(String name, String value) {
+        mFields.add(new String[] {
+                name, value
+        });
+    }
+
+    /**
+     * @return the first such field, decoded
+     */
+    public String get(String name) {
+        return decode(getRaw(name));
+    }
+
+    public String getBoundary() {
+        return getContentTypeParams().get("boundary");
+    }
+
+    public String getCharset() {
+        return getContentTypeParams().get("charset");
+    }
+
+    private Map<String, String> getContentTypeParams() {
+        if (mContentTypeParams == null) {
+            mContentTypeParams = parseParameters(getRaw("Content-Type"));
+        }
+        return mContentTypeParams;
+    }
+
+    private Map<String, String> getDispositionParams() {
+        if (mDispositionParams == null) {
+            mDispositionParams = parseParameters(
+                    getRaw("Content-Disposition"));
+        }
+        return mDispositionParams;
+    }
+
+    /**
+     * @return the filename of disposition, or else the name of content type
+     */
+    public String getFileName() {
+        String name = getDispositionParams().get("filename");
+        if (name == null || name.isEmpty()) {
+            name = getContentTypeParams().get("name");
+        }
+        return name;
+    }
+
+    public List<String[]> getFields() {
+        return mFields;
+    }
+
+    /**
+     * rfc 2045 5.2: "text/plain" if missing
+     */
+    public String getMimeType() {
+        String value = getValue("Content-Type");
+        if (value == null || value.indexOf('/') < 0) {
+            return "text/plain";
+        }
+        return value.toLowerCase(Locale.US);
+    }
+
+    public String getRaw(String name) {
+        for (String[] field : mFields) {
+            if (field[0].equalsIgnoreCase(name)) {
+                return field[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * rfc 2045 6.1: "7bit" if missing
+     */
+    public String getTransferEncoding() {
+        String value = getValue("Content-Transfer-Encoding");
+        return value == null ? "7bit" : value.toLowerCase(Locale.US);
+    }
+
+    /**
+     * the part before parameters
+     */
+    private String getValue(String name) {
+        String value = getRaw(name);
+        if (value == null) {
+            return null;
+        }
+        int semicolon = value.indexOf(';');
+        return (semicolon < 0 ? value : value.substring(0, semicolon))
+                .trim();
+    }
+
+    /**
+     * rfc 2183; a named part is taken as attachment if not said inline
+     */
+    public boolean isAttachment() {
+        String disposition = getValue("Content-Disposition");
+        if (disposition != null) {
+            return "attachment".equalsIgnoreCase(disposition);
+        }
+        return getFileName() != null;
+    }
+
+    public boolean isMultipart() {
+        return getMimeType().startsWith("multipart/")
+                && getBoundary() != null;
+    }
+}
@@ -0,0 +1,427 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Base64;
+import android.util.Base64InputStream;
+
+/**
+ * rfc 2045/2046 mime, parsed as it streams in and told to a
+ * {@link Handler} part by part, sax-like<br/>
+ * the body of a leaf part is handed out as a stream cut at its boundary
+ * and decoded on the fly from base64 or quoted-printable; the parser holds
+ * no more than a line, so a big attachment goes wherever the handler puts
+ * it
+ */
+class MimeParser {
+
+    interface Handler {
+
+        /**
+         * @param depth
+         *            0 for the message itself
+         */
+        void onPartStart(MimeHeader header, int depth);
+
+        /**
+         * a leaf part, decoded; what is left unread is skipped
+         */
+        void onBody(MimeHeader header, InputStream istream)
+                throws IOException;
+
+        void onPartEnd(MimeHeader header, int depth);
+    }
+
+    /**
+     * the body of the current leaf part; line ends come out as CRLF, and
+     * the one before the delimiter, which belongs to it, is held back
+     */
+    private class BodyInputStream extends InputStream {
+
+        private boolean isEnd = false;
+        private boolean isStarted = false;
+        private int pos = 0;
+        private int end = 0;
+        private int newLineRemaining = 0;
+
+        private final byte[] one = new byte[1];
+
+        void drain() throws IOException {
+            while (!isEnd) {
+                pos = end;
+                newLineRemaining = 0;
+                fetch();
+            }
+        }
+
+        private boolean fetch() throws IOException {
+            if (isEnd) {
+                return false;
+            }
+            if (!nextChunk()) {
+                isEnd = true;
+                return false;
+            }
+            if ((mDelimiter = matchDelimiter()) >= 0) {
+                isEnd = true;
+                return false;
+            }
+            if (mIsLineStart && isStarted) {
+                newLineRemaining = 2;
+            }
+            isStarted = true;
+            pos = 0;
+            end = mLineLength;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len) {
+                if (newLineRemaining > 0) {
+                    b[off + n++] = (byte) (newLineRemaining == 2 ? '\r'
+                            : '\n');
+                    --newLineRemaining;
+                } else if (pos < end) {
+                    int count = Math.min(len - n, end - pos);
+                    System.arraycopy(mLine, pos, b, off + n, count);
+                    pos += count;
+                    n += count;
+                } else if (n > 0 || !fetch()) {
+                    // do not block for more if there is some
+                    break;
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    /**
+     * rfc 2045 6.7
+     */
+    private static class QuotedPrintableInputStream extends InputStream {
+
+        private final InputStream istream;
+        private final byte[] buffer = new byte[4096];
+        private int pos = 0;
+        private int end = 0;
+
+        // what is read ahead and given back, last in first out
+        private final int[] pushedBack = new int[2];
+        private int pushedBackCount = 0;
+
+        QuotedPrintableInputStream(InputStream istream) {
+            this.istream = istream;
+        }
+
+        private int next() throws IOException {
+            if (pushedBackCount > 0) {
+                return pushedBack[--pushedBackCount];
+            }
+            if (pos == end) {
+                end = istream.read(buffer, 0, buffer.length);
+                pos = 0;
+                if (end <= 0) {
+                    end = 0;
+                    return -1;
+                }
+            }
+            return buffer[pos++] & 0xFF;
+        }
+
+        private void pushBack(int c) {
+            if (c >= 0) {
+                pushedBack[pushedBackCount++] = c;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                int c = next();
+                if (c != '=') {
+                    return c;
+                }
+                int c1 = next();
+                if (c1 == '\r' || c1 == '\n') {
+                    // soft line break
+                    if (c1 == '\r') {
+                        int c2 = next();
+                        if (c2 != '\n') {
+                            pushBack(c2);
+                        }
+                    }
+                    continue;
+                }
+                int c2 = next();
+                int hi = MimeHeader.getHexValue(c1);
+                int lo = MimeHeader.getHexValue(c2);
+                if (hi < 0 || lo < 0) {
+                    // not encoded, e.g. a lone "="; keep it as is
+                    pushBack(c2);
+                    pushBack(c1);
+                    return c;
+                }
+                return hi << 4 | lo;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len) {
+                int c = read();
+                if (c < 0) {
+                    break;
+                }
+                b[off + n++] = (byte) c;
+                if (pos == end && pushedBackCount == 0) {
+                    // do not block for more if there is some
+                    break;
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // rfc 2046 5.1.1: a boundary has no more than 70 characters, so its
+    // delimiter line always fits in one chunk
+    private static final int MAX_CHUNK_LENGTH = 8192;
+
+    // a header field longer than this is cut
+    private static final int MAX_FIELD_LENGTH = 64 * 1024;
+
+    // a multipart nested deeper is taken as a leaf
+    private static final int MAX_DEPTH = 16;
+
+    ////////////////////////////////////////////////////////
+
+    private final InputStream mIStream;
+    private final Handler mHandler;
+
+    private final byte[] mBuffer = new byte[8192];
+    private int mPos = 0;
+    private int mEnd = 0;
+    private boolean mIsEof = false;
+
+    // the current chunk of a line, without CRLF
+    private final byte[] mLine = new byte[MAX_CHUNK_LENGTH];
+    private int mLineLength = 0;
+    private boolean mIsLineStart = false;
+    private boolean mIsLineEnd = true;
+
+    // of nested multiparts, outermost first
+    private final List<byte[]> mBoundaries = new ArrayList<>();
+
+    // index into mBoundaries of the delimiter that ends current region, or
+    // -1 for eof
+    private int mDelimiter = -1;
+    private boolean mIsCloseDelimiter = false;
+
+    private final ByteArrayOutputStream mField = new ByteArrayOutputStream();
+
+    MimeParser(InputStream istream, Handler handler) {
+        mIStream = istream;
+        mHandler = handler;
+    }
+
+    private void addField(MimeHeader header) {
+        if (mField.size() == 0) {
+            return;
+        }
+        String field = new String(mField.toByteArray(), UTF_8);
+        mField.reset();
+        int colon = field.indexOf(':');
+        if (colon <= 0) {
+            // e.g. the mbox "From " line
+            return;
+        }
+        header.add(field.substring(0, colon).trim(),
+                field.substring(colon + 1).trim());
+    }
+
+    /**
+     * @return index into {@link #mBoundaries} if the chunk is a delimiter
+     *         line, or -1
+     */
+    private int matchDelimiter() {
+        if (!mIsLineStart || !mIsLineEnd || mLineLength < 2
+                || mLine[0] != '-' || mLine[1] != '-') {
+            return -1;
+        }
+        for (int i = mBoundaries.size() - 1; i >= 0; --i) {
+            byte[] boundary = mBoundaries.get(i);
+            int n = 2 + boundary.length;
+            if (mLineLength < n) {
+                continue;
+            }
+            int j = 2;
+            while (j < n && mLine[j] == boundary[j - 2]) {
+                ++j;
+            }
+            if (j < n) {
+                continue;
+            }
+            boolean isClose = false;
+            if (mLineLength >= n + 2 && mLine[n] == '-'
+                    && mLine[n + 1] == '-') {
+                isClose = true;
+                j += 2;
+            }
+            // transport padding
+            while (j < mLineLength && (mLine[j] == ' ' || mLine[j] == '\t')) {
+                ++j;
+            }
+            if (j == mLineLength) {
+                mIsCloseDelimiter = isClose;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * next piece of a line into {@link #mLine}, line end stripped
+     *
+     * @return false on eof
+     */
+    private boolean nextChunk() throws IOException {
+        mIsLineStart = mIsLineEnd;
+        mIsLineEnd = false;
+        mLineLength = 0;
+        while (mLineLength < mLine.length) {
+            if (mPos == mEnd) {
+                if (!mIsEof) {
+                    mEnd = mIStream.read(mBuffer, 0, mBuffer.length);
+                    mPos = 0;
+                }
+                if (mIsEof || mEnd <= 0) {
+                    mEnd = 0;
+                    mIsEof = true;
+                    // the last line may go without line end
+                    mIsLineEnd = true;
+                    return mLineLength > 0;
+                }
+            }
+            int limit = Math.min(mEnd, mPos + mLine.length - mLineLength);
+            int i = mPos;
+            while (i < limit && mBuffer[i] != '\n') {
+                ++i;
+            }
+            System.arraycopy(mBuffer, mPos, mLine, mLineLength, i - mPos);
+            mLineLength += i - mPos;
+            mPos = i;
+            if (i < limit) {
+                ++mPos;
+                if (mLineLength > 0 && mLine[mLineLength - 1] == '\r') {
+                    --mLineLength;
+                }
+                mIsLineEnd = true;
+                return true;
+            }
+        }
+        return true;
+    }
+
+    public void parse() throws IOException {
+        parseEntity(0);
+    }
+
+    private void parseBody(MimeHeader header) throws IOException {
+        BodyInputStream body = new BodyInputStream();
+        String encoding = header.getTransferEncoding();
+        InputStream istream = body;
+        if ("base64".equals(encoding)) {
+            istream = new Base64InputStream(body, Base64.DEFAULT);
+        } else if ("quoted-printable".equals(encoding)) {
+            istream = new QuotedPrintableInputStream(body);
+        }
+        mHandler.onBody(header, istream);
+        body.drain();
+    }
+
+    private void parseEntity(int depth) throws IOException {
+        mDelimiter = -1;
+        MimeHeader header = readHeader();
+        mHandler.onPartStart(header, depth);
+        if (mDelimiter < 0) {
+            if (header.isMultipart() && mBoundaries.size() < MAX_DEPTH) {
+                parseMultipart(header, depth);
+            } else {
+                parseBody(header);
+            }
+        }
+        mHandler.onPartEnd(header, depth);
+    }
+
+    private void parseMultipart(MimeHeader header, int depth)
+            throws IOException {
+        int index = mBoundaries.size();
+        mBoundaries.add(header.getBoundary().getBytes(UTF_8));
+        // the preamble
+        skipRegion();
+        while (mDelimiter == index && !mIsCloseDelimiter) {
+            parseEntity(depth + 1);
+        }
+        mBoundaries.remove(index);
+        if (mDelimiter == index) {
+            // the epilogue, up to the outer delimiter
+            skipRegion();
+        }
+        // else eof or an outer delimiter, i.e. the close one is missing
+    }
+
+    /**
+     * rfc 5322 2.2: fields unfolded, up to the empty line
+     */
+    private MimeHeader readHeader() throws IOException {
+        MimeHeader header = new MimeHeader();
+        mField.reset();
+        while (nextChunk()) {
+            if ((mDelimiter = matchDelimiter()) >= 0) {
+                break;
+            }
+            if (mIsLineStart) {
+                if (mLineLength == 0) {
+                    break;
+                }
+                if (mLine[0] != ' ' && mLine[0] != '\t') {
+                    addField(header);
+                }
+            }
+            if (mField.size() + mLineLength <= MAX_FIELD_LENGTH) {
+                mField.write(mLine, 0, mLineLength);
+            }
+        }
+        addField(header);
+        return header;
+    }
+
+    private void skipRegion() throws IOException {
+        mDelimiter = -1;
+        while (nextChunk()) {
+            if ((mDelimiter = matchDelimiter()) >= 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import th.pd.mail.dao.Message;
+
+/**
+ * a {@link MimeParser.Handler} that builds a {@link Message}: the first
+ * plain and html text are kept in memory, up to a limit; anything else is
+ * an attachment, spilled into a file as it streams in
+ */
+class MimeSpooler implements MimeParser.Handler {
+
+    // in chars; the rest of a longer text is dropped
+    private static final int MAX_TEXT_LENGTH = 1 << 20;
+
+    private static final int MAX_FILE_NAME_LENGTH = 128;
+
+    /**
+     * keep the name a plain file name under the spool directory
+     */
+    private static String toFileName(String name, int index) {
+        if (name == null) {
+            return "part-" + index;
+        }
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length()
+                && sb.length() < MAX_FILE_NAME_LENGTH; ++i) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c == '/' || c == '\\' || c == ':') {
+                c = '_';
+            }
+            sb.append(c);
+        }
+        String s = sb.toString().trim();
+        while (s.startsWith(".")) {
+            s = s.substring(1);
+        }
+        return s.isEmpty() ? "part-" + index : s;
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private final File mDir;
+    private final Message mMessage = new Message();
+    private String mText = null;
+    private String mHtml = null;
+    private int mAttachmentCount = 0;
+
+    // reused for every part
+    private final byte[] mBuffer = new byte[8192];
+    private final char[] mChars = new char[4096];
+
+    /**
+     * @param dir
+     *            where attachments go, one sub directory each so that
+     *            their names are kept
+     */
+    MimeSpooler(File dir) {
+        mDir = dir;
+    }
+
+    public String getHtml() {
+        return mHtml;
+    }
+
+    /**
+     * content is the plain text; attachments are files under the spool
+     * directory
+     */
+    public Message getMessage() {
+        return mMessage;
+    }
+
+    @Override
+    public void onBody(MimeHeader header, InputStream istream)
+            throws IOException {
+        if (!header.isAttachment()) {
+            String mimeType = header.getMimeType();
+            if (mText == null && mimeType.equals("text/plain")) {
+                mText = readText(header, istream);
+                mMessage.setContent(mText);
+                return;
+            }
+            if (mHtml == null && mimeType.equals("text/html")) {
+                mHtml = readText(header, istream);
+                return;
+            }
+        }
+        spill(header, istream);
+    }
+
+    @Override
+    public void onPartEnd(MimeHeader header, int depth) {
+        // dummy
+    }
+
+    @Override
+    public void onPartStart(MimeHeader header, int depth) {
+        if (depth == 0) {
+            mMessage.setSender(header.get("From"));
+            mMessage.setRecipient(header.get("To"));
+            mMessage.setCarbonCopy(header.get("Cc"));
+            mMessage.setBlindCarbonCopy(header.get("Bcc"));
+            mMessage.setSubject(header.get("Subject"));
+        }
+    }
+
+    private String readText(MimeHeader header, InputStream istream)
+            throws IOException {
+        Reader reader = new InputStreamReader(istream,
+                MimeHeader.getCharset(header.getCharset()));
+        StringBuilder sb = new StringBuilder();
+        int n;
+        while (sb.length() < MAX_TEXT_LENGTH
+                && (n = reader.read(mChars, 0, Math.min(mChars.length,
+                        MAX_TEXT_LENGTH - sb.length()))) != -1) {
+            sb.append(mChars, 0, n);
+        }
+        return sb.toString();
+    }
+
+    private void spill(MimeHeader header, InputStream istream)
+            throws IOException {
+        int index = mAttachmentCount++;
+        File dir = new File(mDir, String.valueOf(index));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot make " + dir);
+        }
+        File file = new File(dir, toFileName(header.getFileName(), index));
+        FileOutputStream ostream = new FileOutputStream(file);
+        try {
+            int n;
+            while ((n = istream.read(mBuffer)) != -1) {
+                ostream.write(mBuffer, 0, n);
+            }
+        } finally {
+            ostream.close();
+        }
+
+        Message.Attachment attachment = new Message.Attachment();
+        attachment.file = file;
+        attachment.mimeType = header.getMimeType();
+        mMessage.attachments.add(attachment);
+    }
+}
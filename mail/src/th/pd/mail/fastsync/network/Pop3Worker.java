@@ -0,0 +1,565 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.text.util.Rfc822Token;
+import android.text.util.Rfc822Tokenizer;
+import android.util.Base64;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.MailDir;
+import th.pd.mail.dao.MailEnt;
+import th.pd.mail.dao.MailServerAuth;
+import th.pd.mail.dao.Message;
+
+/**
+ * see <strong>Post Office Protocol - Version 3</strong><br/>
+ * &emsp; rfc 1939<br/>
+ * rfc 2449 capabilities and pipelining<br/>
+ * rfc 2595 STLS<br/>
+ * rfc 5034 SASL<br/>
+ * only what UIDL says is new is downloaded; each message streams from the
+ * socket through {@link MimeParser}, attachments into files
+ */
+public class Pop3Worker {
+
+    public interface Listener {
+
+        /**
+         * @param remoteId
+         *            of the uidl, see {@link Pop3Worker#toRemoteId(String)}
+         */
+        boolean isKnown(long remoteId);
+
+        /**
+         * where the attachments of the message go
+         */
+        File getSpoolDir(long remoteId);
+
+        /**
+         * @param message
+         *            text content and attachments; the whole of it only if
+         *            the ent is {@link MailEnt#FLAG_LOADED}
+         */
+        void onMessage(MailEnt ent, Message message);
+    }
+
+    /**
+     * rfc 1939 3: a multi-line response, dot-unstuffed, up to the line of a
+     * single "."
+     */
+    private static class DotInputStream extends InputStream {
+
+        private final SocketConn conn;
+        private ByteBuffer line = null;
+        private boolean isEnd = false;
+        private int newLineRemaining = 0;
+
+        private final byte[] one = new byte[1];
+
+        DotInputStream(SocketConn conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * skip what the reader left
+         */
+        void drain() throws IOException {
+            while (!isEnd) {
+                line = null;
+                newLineRemaining = 0;
+                nextLine();
+            }
+        }
+
+        private boolean nextLine() throws IOException {
+            if (isEnd) {
+                return false;
+            }
+            line = conn.getLineBytes();
+            if (line == null) {
+                throw new IOException("connection closed in response");
+            }
+            if (line.remaining() > 0 && line.get(line.position()) == '.') {
+                if (line.remaining() == 1) {
+                    isEnd = true;
+                    line = null;
+                    return false;
+                }
+                line.position(line.position() + 1);
+            }
+            newLineRemaining = 2;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len) {
+                if (line != null && line.hasRemaining()) {
+                    int count = Math.min(len - n, line.remaining());
+                    line.get(b, off + n, count);
+                    n += count;
+                } else if (line != null && newLineRemaining > 0) {
+                    b[off + n++] = (byte) (newLineRemaining == 2 ? '\r'
+                            : '\n');
+                    --newLineRemaining;
+                } else if (n > 0 || !nextLine()) {
+                    // a line is a view of the buffer, valid until next read
+                    break;
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    /**
+     * a {@link MimeSpooler} that also keeps the header of the message
+     */
+    private static class EntSpooler extends MimeSpooler {
+
+        private MimeHeader header = null;
+
+        EntSpooler(File dir) {
+            super(dir);
+        }
+
+        @Override
+        public void onPartStart(MimeHeader header, int depth) {
+            if (depth == 0) {
+                this.header = header;
+            }
+            super.onPartStart(header, depth);
+        }
+    }
+
+    private static final String CAPA_PIPELINING = "PIPELINING";
+    private static final String CAPA_SASL = "SASL";
+    private static final String CAPA_STLS = "STLS";
+    private static final String CAPA_TOP = "TOP";
+
+    // commands in flight when pipelining; small enough not to fill the send
+    // buffer while responses are not read
+    private static final int PIPELINE_WINDOW = 32;
+
+    // a bigger message comes as its header only, if TOP is there
+    private static final long MAX_RETR_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAX_SUMMARY_LENGTH = 128;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // rfc 5322 3.3, day of week optional
+    private static final String[] DATE_PATTERNS = {
+            "EEE, d MMM yyyy HH:mm:ss Z", "d MMM yyyy HH:mm:ss Z",
+            "EEE, d MMM yyyy HH:mm Z", "d MMM yyyy HH:mm Z"
+    };
+
+    private static final ThreadLocal<SimpleDateFormat[]> DATE_FORMATS =
+            new ThreadLocal<SimpleDateFormat[]>() {
+
+                @Override
+                protected SimpleDateFormat[] initialValue() {
+                    SimpleDateFormat[] a =
+                            new SimpleDateFormat[DATE_PATTERNS.length];
+                    for (int i = 0; i < a.length; ++i) {
+                        a[i] = new SimpleDateFormat(DATE_PATTERNS[i],
+                                Locale.US);
+                        a[i].setLenient(true);
+                    }
+                    return a;
+                }
+            };
+
+    private static String[] getAddrs(MimeHeader header, String name) {
+        return splitAddrs(header.get(name));
+    }
+
+    /**
+     * rfc 5322 3.4 address-list, e.g. "a" &lt;a@b.c&gt;, d@e.f
+     */
+    static String[] splitAddrs(String value) {
+        if (value == null) {
+            return new String[0];
+        }
+        Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(value);
+        String[] a = new String[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) {
+            a[i] = tokens[i].toString();
+        }
+        return a;
+    }
+
+    static String getSummary(String content) {
+        if (content == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(MAX_SUMMARY_LENGTH);
+        boolean isSpace = true;
+        for (int i = 0; i < content.length()
+                && sb.length() < MAX_SUMMARY_LENGTH; ++i) {
+            char c = content.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!isSpace) {
+                    sb.append(' ');
+                }
+                isSpace = true;
+            } else {
+                sb.append(c);
+                isSpace = false;
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static boolean isPositive(String resp) {
+        return resp != null && resp.startsWith("+OK");
+    }
+
+    /**
+     * rfc 5322 3.3 date-time, comments dropped
+     */
+    static long parseDate(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int paren = s.indexOf('(');
+        if (paren >= 0) {
+            s = s.substring(0, paren);
+        }
+        s = s.trim();
+        for (SimpleDateFormat format : DATE_FORMATS.get()) {
+            try {
+                return format.parse(s).getTime();
+            } catch (ParseException e) {
+                // next
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * a uidl is up to 70 printable characters
+     */
+    public static long toRemoteId(String uidl) {
+        return MailEnt.toRemoteId(uidl);
+    }
+
+    private SocketConn mSocketConn = new SocketConn();
+    private Set<String> mCapabilities = new HashSet<>();
+    private Map<String, String> mCapabilityParams = new HashMap<>();
+    private Listener mListener = null;
+
+    private void conn(SocketAddress remoteAddr, boolean isImplicitTls,
+            boolean isTlsRequired, String user, String pass)
+            throws IOException, MessengerException {
+        connEnd(); // start from a clean state
+
+        Const.logd("CONN--- " + remoteAddr);
+        mSocketConn.conn(remoteAddr, isImplicitTls);
+        if (!mSocketConn.isConnected()) {
+            throw new IOException("failed to connect " + remoteAddr);
+        }
+
+        // the greeting
+        getResp();
+        onCommandCapa();
+
+        if (!mSocketConn.isTls()) {
+            if (hasCapability(CAPA_STLS)) {
+                // rfc 2595 4: forget everything learned before tls
+                onCommand("STLS");
+                mSocketConn.startTls();
+                onCommandCapa();
+            } else if (isTlsRequired) {
+                throw new MessengerException("STLS not supported.",
+                        MessengerException.TYPE_POP3);
+            }
+        }
+
+        if (!user.isEmpty()) {
+            if (hasSaslMechanism("PLAIN")) {
+                // rfc 5034 4: with initial response
+                byte[] bytes = Base64.encode(
+                        ('\000' + user + '\000' + pass).getBytes(UTF_8),
+                        Base64.NO_WRAP);
+                onCommand("AUTH PLAIN " + new String(bytes, UTF_8));
+            } else {
+                onCommand("USER " + user);
+                onCommand("PASS " + pass);
+            }
+        }
+    }
+
+    private void connEnd() {
+        Const.logd("CONN CLEAR--- ");
+        mSocketConn.connEnd();
+        mCapabilities.clear();
+        mCapabilityParams.clear();
+    }
+
+    /**
+     * rfc 1939 7: commands sent, not yet answered, in order
+     */
+    private void fetch(List<String> uidls, Map<String, Integer> msgNums,
+            Map<String, Long> sizes) throws IOException {
+        final boolean isPipelining = hasCapability(CAPA_PIPELINING);
+        final boolean hasTop = hasCapability(CAPA_TOP);
+        ArrayDeque<String> inFlight = new ArrayDeque<>();
+        ArrayDeque<Boolean> isWholes = new ArrayDeque<>();
+        int next = 0;
+        while (next < uidls.size() || !inFlight.isEmpty()) {
+            while (next < uidls.size() && (inFlight.isEmpty()
+                    || isPipelining && inFlight.size() < PIPELINE_WINDOW)) {
+                String uidl = uidls.get(next++);
+                Long size = sizes.get(uidl);
+                boolean isWhole = !hasTop || size == null
+                        || size <= MAX_RETR_SIZE;
+                String command = (isWhole ? "RETR " : "TOP ")
+                        + msgNums.get(uidl) + (isWhole ? "" : " 0");
+                Const.logd("CMND--- " + command);
+                mSocketConn.writeLine(command);
+                inFlight.offer(uidl);
+                isWholes.offer(isWhole);
+            }
+            mSocketConn.flush();
+            onMessage(inFlight.poll(), isWholes.poll());
+        }
+    }
+
+    private String getResp() throws IOException, MessengerException {
+        String resp = mSocketConn.getLine();
+        if (resp == null) {
+            throw new IOException("connection closed");
+        }
+        Const.logd("RESP--- " + resp);
+        if (!isPositive(resp)) {
+            throw new MessengerException(resp, MessengerException.TYPE_POP3);
+        }
+        return resp;
+    }
+
+    private boolean hasCapability(String keyword) {
+        return mCapabilities.contains(keyword);
+    }
+
+    private boolean hasSaslMechanism(String mechanism) {
+        String mechanisms = mCapabilityParams.get(CAPA_SASL);
+        if (mechanisms == null) {
+            return false;
+        }
+        for (String s : mechanisms.split(" ")) {
+            if (s.equalsIgnoreCase(mechanism)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String onCommand(String command)
+            throws IOException, MessengerException {
+        Const.logd("CMND--- "
+                + (command.startsWith("PASS ") || command.startsWith("AUTH ")
+                        ? command.substring(0, 4) + " ***"
+                        : command));
+        mSocketConn.putLine(command);
+        return getResp();
+    }
+
+    /**
+     * rfc 2449 5: absent on an rfc 1939 only server
+     */
+    private void onCommandCapa() throws IOException {
+        mCapabilities.clear();
+        mCapabilityParams.clear();
+        mSocketConn.putLine("CAPA");
+        String resp = mSocketConn.getLine();
+        if (resp == null) {
+            throw new IOException("connection closed");
+        }
+        if (!isPositive(resp)) {
+            return;
+        }
+        for (String line : readLines()) {
+            String s = line.trim();
+            int sp = s.indexOf(' ');
+            String keyword = (sp < 0 ? s : s.substring(0, sp))
+                    .toUpperCase(Locale.US);
+            mCapabilities.add(keyword);
+            mCapabilityParams.put(keyword,
+                    sp < 0 ? "" : s.substring(sp + 1).trim());
+        }
+    }
+
+    /**
+     * the response of a RETR, or of a TOP if not whole, sent before
+     */
+    private void onMessage(String uidl, boolean isWhole)
+            throws IOException {
+        String resp = mSocketConn.getLine();
+        if (resp == null) {
+            throw new IOException("connection closed");
+        }
+        if (!isPositive(resp)) {
+            // e.g. deleted by another session since UIDL
+            Const.logd("RESP--- " + resp);
+            return;
+        }
+        long remoteId = toRemoteId(uidl);
+
+        DotInputStream istream = new DotInputStream(mSocketConn);
+        EntSpooler spooler = new EntSpooler(mListener.getSpoolDir(remoteId));
+        try {
+            new MimeParser(istream, spooler).parse();
+        } finally {
+            istream.drain();
+        }
+
+        MimeHeader header = spooler.header;
+        if (header == null) {
+            return;
+        }
+        Message message = spooler.getMessage();
+        MailEnt ent = new MailEnt();
+        ent.setRemoteId(remoteId);
+        ent.setFlags(MailEnt.FLAG_VISIBLE
+                | (isWhole ? MailEnt.FLAG_LOADED : 0));
+        ent.setMessageId(header.get("Message-ID"));
+        ent.setDate(parseDate(header.get("Date")));
+        ent.setSubject(header.get("Subject"));
+        ent.setFrom(getAddrs(header, "From"));
+        if (ent.getFrom().length > 0) {
+            ent.setCaption(ent.getFrom()[0]);
+        }
+        ent.setReplyTo(getAddrs(header, "Reply-To"));
+        ent.setTo(getAddrs(header, "To"));
+        ent.setCc(getAddrs(header, "Cc"));
+        ent.setBcc(getAddrs(header, "Bcc"));
+        ent.setSummary(getSummary(message.getContent()));
+        mListener.onMessage(ent, message);
+    }
+
+    /**
+     * connect and authenticate
+     */
+    void open(MailServerAuth serverAuth)
+            throws IOException, MessengerException {
+        SocketAddress remoteAddr = new InetSocketAddress(
+                serverAuth.getHost(), serverAuth.getPort());
+        conn(remoteAddr, serverAuth.isImplicitTls(),
+                serverAuth.isTlsRequired(), serverAuth.getLogin(),
+                serverAuth.getPin());
+    }
+
+    /**
+     * the lines of a multi-line response after its status line; cut short
+     * by the end of stream is a failure
+     */
+    private List<String> readLines() throws IOException {
+        List<String> l = new ArrayList<>();
+        while (true) {
+            String line = mSocketConn.getLine();
+            if (line == null) {
+                throw new IOException("connection closed");
+            }
+            if (line.equals(".")) {
+                return l;
+            }
+            // no line of these starts with "."
+            l.add(line);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * one-shot: connect, download what is new and quit<br/>
+     * pop3 has the inbox only; messages are left on the server
+     */
+    public void syncMailDir(MailServerAuth serverAuth, MailDir dir)
+            throws IOException, MessengerException {
+        try {
+            open(serverAuth);
+            syncInbox();
+            onCommand("QUIT");
+        } finally {
+            connEnd();
+        }
+    }
+
+    private void syncInbox() throws IOException, MessengerException {
+        // "msg uidl" per line
+        onCommand("UIDL");
+        Map<String, Integer> msgNums = new HashMap<>();
+        List<String> uidls = new ArrayList<>();
+        for (String line : readLines()) {
+            String[] a = line.trim().split(" +", 2);
+            if (a.length < 2) {
+                continue;
+            }
+            try {
+                Integer msgNum = Integer.valueOf(a[0]);
+                if (!mListener.isKnown(toRemoteId(a[1]))
+                        && !msgNums.containsKey(a[1])) {
+                    msgNums.put(a[1], msgNum);
+                    uidls.add(a[1]);
+                }
+            } catch (NumberFormatException e) {
+                // dummy
+            }
+        }
+        Const.logd("pop3 new messages: " + uidls.size());
+        if (uidls.isEmpty()) {
+            return;
+        }
+
+        // "msg octets" per line
+        Map<String, Long> sizes = new HashMap<>();
+        if (hasCapability(CAPA_TOP)) {
+            Map<Integer, String> uidlsByMsgNum = new HashMap<>();
+            for (Map.Entry<String, Integer> entry : msgNums.entrySet()) {
+                uidlsByMsgNum.put(entry.getValue(), entry.getKey());
+            }
+            onCommand("LIST");
+            for (String line : readLines()) {
+                String[] a = line.trim().split(" +", 3);
+                try {
+                    String uidl = uidlsByMsgNum.get(Integer.valueOf(a[0]));
+                    if (uidl != null && a.length > 1) {
+                        sizes.put(uidl, Long.valueOf(a[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    // dummy
+                }
+            }
+        }
+
+        fetch(uidls, msgNums, sizes);
+    }
+}
@@ -0,0 +1,243 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+import th.pd.mail.Const;
+import th.pd.mail.dao.MailServerAuth;
+import th.pd.mail.dao.SmtpSyncable;
+
+/**
+ * keeps authenticated smtp sessions alive between queued messages<br/>
+ * sessions are keyed by host, port and login; a reused session is "RSET"
+ * before its next transaction; idle sessions are closed after
+ * {@link #IDLE_TIMEOUT}
+ */
+public class SmtpSessionPool {
+
+    private static class Session {
+
+        final String key;
+        final SmtpWorker worker;
+        long lastUsed;
+
+        Session(String key, SmtpWorker worker) {
+            this.key = key;
+            this.worker = worker;
+        }
+    }
+
+    // well below the 5 minutes server timeout suggested by rfc 5321 4.5.3.2
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private static final int MAX_IDLE_PER_KEY = 3;
+
+    private static SmtpSessionPool pool = null;
+
+    public static synchronized SmtpSessionPool getInstance() {
+        if (pool == null) {
+            pool = new SmtpSessionPool();
+        }
+        return pool;
+    }
+
+    private static String getKey(MailServerAuth serverAuth) {
+        return new StringBuilder()
+                .append(serverAuth.getHost().toLowerCase(Locale.US))
+                .append(':').append(serverAuth.getPort())
+                .append(':').append(serverAuth.getLogin())
+                .toString();
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private final Map<String, LinkedList<Session>> mIdleSessions =
+            new HashMap<>();
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mEvictCount = new AtomicInteger();
+
+    private Timer mEvictTimer = null;
+
+    private SmtpSessionPool() {
+        // dummy
+    }
+
+    /**
+     * reuse an idle session if any, or open a new one
+     */
+    private Session acquire(MailServerAuth serverAuth)
+            throws IOException, MessengerException {
+        String key = getKey(serverAuth);
+        while (true) {
+            Session session = pollIdle(key);
+            if (session == null) {
+                break;
+            }
+            try {
+                session.worker.reset();
+                mHitCount.incrementAndGet();
+                return session;
+            } catch (IOException | MessengerException e) {
+                // server has dropped it silently; nothing to say goodbye to
+                Const.logd("stale session " + key + ": " + e.getMessage());
+                session.worker.abort();
+            }
+        }
+
+        mMissCount.incrementAndGet();
+        Session session = new Session(key, new SmtpWorker());
+        try {
+            session.worker.open(serverAuth);
+        } catch (IOException e) {
+            session.worker.abort();
+            throw e;
+        } catch (MessengerException e) {
+            // e.g. refused login; the server is still there
+            session.worker.close();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * close every idle session, e.g. on network change
+     */
+    public void clear() {
+        LinkedList<Session> sessions = new LinkedList<>();
+        synchronized (mIdleSessions) {
+            for (LinkedList<Session> l : mIdleSessions.values()) {
+                sessions.addAll(l);
+            }
+            mIdleSessions.clear();
+        }
+        for (Session session : sessions) {
+            session.worker.close();
+        }
+    }
+
+    private void evictIdle() {
+        final long now = SystemClock.elapsedRealtime();
+        LinkedList<Session> expired = new LinkedList<>();
+        synchronized (mIdleSessions) {
+            Iterator<LinkedList<Session>> it =
+                    mIdleSessions.values().iterator();
+            while (it.hasNext()) {
+                LinkedList<Session> l = it.next();
+                Iterator<Session> sit = l.iterator();
+                while (sit.hasNext()) {
+                    Session session = sit.next();
+                    if (now - session.lastUsed >= IDLE_TIMEOUT) {
+                        sit.remove();
+                        expired.add(session);
+                    }
+                }
+                if (l.isEmpty()) {
+                    it.remove();
+                }
+            }
+            if (mIdleSessions.isEmpty() && mEvictTimer != null) {
+                mEvictTimer.cancel();
+                mEvictTimer = null;
+            }
+        }
+        for (Session session : expired) {
+            mEvictCount.incrementAndGet();
+            session.worker.close();
+        }
+    }
+
+    public int getEvictCount() {
+        return mEvictCount.get();
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    private Session pollIdle(String key) {
+        synchronized (mIdleSessions) {
+            LinkedList<Session> l = mIdleSessions.get(key);
+            if (l == null) {
+                return null;
+            }
+            // most recently used first, the least likely to be timed out
+            Session session = l.pollLast();
+            if (l.isEmpty()) {
+                mIdleSessions.remove(key);
+            }
+            return session;
+        }
+    }
+
+    private void release(Session session) {
+        if (!session.worker.isConnected()) {
+            session.worker.close();
+            return;
+        }
+        session.lastUsed = SystemClock.elapsedRealtime();
+        Session overflow = null;
+        synchronized (mIdleSessions) {
+            LinkedList<Session> l = mIdleSessions.get(session.key);
+            if (l == null) {
+                l = new LinkedList<>();
+                mIdleSessions.put(session.key, l);
+            }
+            l.addLast(session);
+            if (l.size() > MAX_IDLE_PER_KEY) {
+                overflow = l.removeFirst();
+            }
+            if (mEvictTimer == null) {
+                mEvictTimer = new Timer("smtp-pool-evict", true);
+                mEvictTimer.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        evictIdle();
+                    }
+                }, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+            }
+        }
+        if (overflow != null) {
+            overflow.worker.close();
+        }
+    }
+
+    /**
+     * the session goes back to pool unless the network fails<br/>
+     * a rejection from server does not break the session
+     */
+    public void sendMessage(SmtpSyncable syncMessage)
+            throws IOException, MessengerException {
+        Session session = acquire(syncMessage.getServerAuth());
+        boolean isReusable = false;
+        try {
+            session.worker.send(syncMessage.getMessage());
+            isReusable = true;
+        } catch (MessengerException e) {
+            isReusable = true;
+            throw e;
+        } finally {
+            if (isReusable) {
+                release(session);
+            } else {
+                // the connection is broken, maybe in the middle of DATA
+                session.worker.abort();
+            }
+        }
+    }
+}
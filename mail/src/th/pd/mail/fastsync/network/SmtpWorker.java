@@ -1,10 +1,17 @@
 package th.pd.mail.fastsync.network;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
@@ -23,11 +30,95 @@ import th.pd.mail.dao.SmtpSyncable;
  * see <strong>MIME (Multipurpose Internet Mail Extensions)</strong><br/>
  * &emsp; rfc 2045-2047<br/>
  * rfc 2231<br/>
+ * rfc 1870 size<br/>
  * rfc 2387<br/>
+ * rfc 2920 pipelining<br/>
+ * rfc 3030 chunking<br/>
  * rfc 3461<br/>
  */
 public class SmtpWorker {
 
+    /**
+     * rfc 3030 BDAT: message bytes go out in chunks, each prefixed with its
+     * size; no dot-stuffing and no waiting between chunks when pipelining
+     */
+    private static class BdatOutputStream extends OutputStream {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final SocketConn conn;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count = 0;
+        private int numChunks = 0;
+
+        BdatOutputStream(SocketConn conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * send the last chunk and collect the response of every chunk
+         */
+        void finish() throws IOException, MessengerException {
+            putChunk(true);
+            conn.flush();
+
+            String error = null;
+            for (int i = 0; i < numChunks; ++i) {
+                String resp = readResp(conn);
+                Const.logd("RESP--- " + resp);
+                if (error == null && isNegative(resp)) {
+                    error = resp;
+                }
+            }
+            if (error != null) {
+                throw new MessengerException(error,
+                        MessengerException.TYPE_SMTP);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // chunk boundary is decided by buffer, not by caller
+        }
+
+        private void putChunk(boolean isLast) throws IOException {
+            String command = "BDAT " + count + (isLast ? " LAST" : "");
+            Const.logd("CMND--- " + command);
+            conn.writeLine(command);
+            conn.getBufferedOutputStream().write(buffer, 0, count);
+            count = 0;
+            ++numChunks;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == CHUNK_SIZE) {
+                    putChunk(false);
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[count++] = (byte) b;
+            if (count == CHUNK_SIZE) {
+                putChunk(false);
+            }
+        }
+    }
+
+    private static final String CAPA_AUTH = "AUTH";
+    private static final String CAPA_CHUNKING = "CHUNKING";
+    private static final String CAPA_PIPELINING = "PIPELINING";
+    private static final String CAPA_SIZE = "SIZE";
+    private static final String CAPA_STARTTLS = "STARTTLS";
+
     private static String getLocalHost(SocketConn conn) {
         String host = "localhost";
         InetAddress addr = conn.getLocalAddress();
@@ -47,25 +138,82 @@ public class SmtpWorker {
 
     private static String getResp(SocketConn conn)
             throws IOException, MessengerException {
-        String s = conn.getLine();
-        String resp = s;
-        while (s.length() > 3 && s.charAt(3) == '-') {
-            s = conn.getLine();
-            resp += "\n  ";
-            resp += s;
+        String resp = readResp(conn);
+        if (isNegative(resp)) {
+            throw new MessengerException(resp,
+                    MessengerException.TYPE_SMTP);
         }
+        return resp;
+    }
 
+    /**
+     * 4xx or 5xx
+     */
+    private static boolean isNegative(String resp) {
         if (!resp.isEmpty()) {
             switch (resp.charAt(0)) {
-                case '4': // 4xx
-                case '5': // 5xx
-                    throw new MessengerException(resp,
-                            MessengerException.TYPE_SMTP);
+                case '4':
+                case '5':
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * rfc 5321 4.1.1.1<br/>
+     * each line but the first of the ehlo response is "keyword [params]"
+     */
+    private static Map<String, String> parseCapabilities(String resp) {
+        Map<String, String> capabilities = new HashMap<>();
+        String[] lines = resp.split("\n");
+        for (int i = 1; i < lines.length; ++i) {
+            String line = lines[i].trim();
+            if (line.length() <= 4) {
+                continue;
+            }
+            line = line.substring(4);
+            int sp = line.indexOf(' ');
+            if (sp < 0) {
+                capabilities.put(line.toUpperCase(Locale.US), "");
+            } else {
+                capabilities.put(
+                        line.substring(0, sp).toUpperCase(Locale.US),
+                        line.substring(sp + 1).trim());
             }
         }
+        return capabilities;
+    }
+
+    private static void putLineNoFlush(SocketConn conn, String commandLine)
+            throws IOException {
+        Const.logd("CMND--- " + commandLine);
+        conn.writeLine(commandLine);
+    }
+
+    /**
+     * read a complete (maybe multi-line) response without judging it; the
+     * end of stream is never taken for a reply
+     */
+    private static String readResp(SocketConn conn) throws IOException {
+        String s = readRespLine(conn);
+        String resp = s;
+        while (s.length() > 3 && s.charAt(3) == '-') {
+            s = readRespLine(conn);
+            resp += "\n  ";
+            resp += s;
+        }
         return resp;
     }
 
+    private static String readRespLine(SocketConn conn) throws IOException {
+        String s = conn.getLine();
+        if (s == null) {
+            throw new EOFException("connection closed");
+        }
+        return s;
+    }
+
     static void putLine(SocketConn conn, String commandLine)
             throws IOException, MessengerException {
         assert conn != null;
@@ -76,27 +224,68 @@ public class SmtpWorker {
     }
 
     private SocketConn mSocketConn = new SocketConn();
+    private Map<String, String> mCapabilities = new HashMap<>();
+
+    /**
+     * release the socket with no goodbye, e.g. after a network failure in
+     * the middle of DATA, where a QUIT would only go into the message and
+     * wait for a reply that never comes
+     */
+    void abort() {
+        connEnd();
+    }
+
+    /**
+     * say goodbye politely and release the socket anyway
+     */
+    void close() {
+        try {
+            if (isConnected()) {
+                onCommandQuit();
+            }
+        } catch (IOException | MessengerException e) {
+            // dummy
+        } finally {
+            connEnd();
+        }
+    }
 
-    private void conn(SocketAddress remoteAddr, String user, String pass)
+    private void conn(SocketAddress remoteAddr, boolean isImplicitTls,
+            boolean isTlsRequired, String user, String pass)
             throws IOException, MessengerException {
         connEnd(); // start from a clean state
 
         Const.logd("CONN--- " + remoteAddr);
-        mSocketConn.conn(remoteAddr);
+        mSocketConn.conn(remoteAddr, isImplicitTls);
+        if (!mSocketConn.isConnected()) {
+            throw new IOException("failed to connect " + remoteAddr);
+        }
 
         // consume the server banner and welcome message
         String resp = getResp(mSocketConn);
         Const.logd("RESP--- " + resp);
 
-        resp = onCommandEhlo(getLocalHost(mSocketConn));
+        String localHost = getLocalHost(mSocketConn);
+        resp = onCommandEhlo(localHost);
+        mCapabilities = parseCapabilities(resp);
 
-        // TODO try tls "STARTTLS"
+        if (!mSocketConn.isTls()) {
+            if (hasCapability(CAPA_STARTTLS)) {
+                // rfc 3207 4.2: forget everything learned before tls
+                onCommand("STARTTLS");
+                mSocketConn.startTls();
+                resp = onCommandEhlo(localHost);
+                mCapabilities = parseCapabilities(resp);
+            } else if (isTlsRequired) {
+                throw new MessengerException("STARTTLS not supported.");
+            }
+        }
 
         if (!user.isEmpty()) {
             if (!pass.isEmpty()) {
-                if (resp.matches("(?s).*AUTH.*PLAIN.*")) {
+                if (hasAuthMechanism("PLAIN")) {
                     onCommandAuthPlain(user, pass);
-                } else if (resp.matches("(?s).*AUTH.*LOGIN.*")) {
+                } else if (hasAuthMechanism("LOGIN")) {
                     onCommandAuthLogin(user, pass);
                 } else {
                     throw new MessengerException(
@@ -114,6 +303,28 @@ public class SmtpWorker {
     private void connEnd() {
         Const.logd("CONN CLEAR--- ");
         mSocketConn.connEnd();
+        mCapabilities.clear();
+    }
+
+    private boolean hasAuthMechanism(String mechanism) {
+        String mechanisms = mCapabilities.get(CAPA_AUTH);
+        if (mechanisms == null) {
+            return false;
+        }
+        for (String s : mechanisms.split(" ")) {
+            if (s.equalsIgnoreCase(mechanism)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasCapability(String keyword) {
+        return mCapabilities.containsKey(keyword);
+    }
+
+    boolean isConnected() {
+        return mSocketConn.isConnected();
     }
 
     private String onCommand(String command)
@@ -136,11 +347,75 @@ public class SmtpWorker {
         onCommand("AUTH PLAIN " + new String(bytes));
     }
 
-    private void onCommandData(Message message)
+    /**
+     * rfc 1870 4: refuse a message over the declared maximum before the
+     * envelope, as the server would after the whole of it
+     */
+    private void checkSize(MessageSpool spool) throws MessengerException {
+        if (spool == null) {
+            return;
+        }
+        String value = mCapabilities.get(CAPA_SIZE);
+        long maxSize = 0;
+        try {
+            maxSize = value == null || value.isEmpty()
+                    ? 0
+                    : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // dummy
+        }
+        if (maxSize > 0 && spool.getSize() > maxSize) {
+            throw new MessengerException("552 message size "
+                    + spool.getSize() + " exceeds " + maxSize,
+                    MessengerException.TYPE_SMTP);
+        }
+    }
+
+    /**
+     * with SIZE if the server takes it and the size is known
+     */
+    private String getMailFrom(Rfc822Token[] from, MessageSpool spool) {
+        String command = "MAIL FROM: <" + from[0].getAddress() + ">";
+        if (spool != null && hasCapability(CAPA_SIZE)) {
+            command += " SIZE=" + spool.getSize();
+        }
+        return command;
+    }
+
+    private void onCommandBdat(Message message, MessageSpool spool)
+            throws IOException, MessengerException {
+        if (spool != null) {
+            // the size is known, so it is all one chunk
+            putLineNoFlush(mSocketConn,
+                    "BDAT " + spool.getSize() + " LAST");
+            spool.writeTo(mSocketConn.getBufferedOutputStream());
+            mSocketConn.flush();
+            String resp = getResp(mSocketConn);
+            Const.logd("RESP--- " + resp);
+            return;
+        }
+        BdatOutputStream os = new BdatOutputStream(mSocketConn);
+        MessageExporter.putMessage(os, message);
+        os.finish();
+    }
+
+    private void onCommandData(Message message, MessageSpool spool)
             throws IOException, MessengerException {
         onCommand("DATA");
-        MessageExporter.putMessage(mSocketConn.getBufferedOutputStream(),
-                message);
+        onCommandDataContent(message, spool);
+    }
+
+    /**
+     * the part after "354"
+     */
+    private void onCommandDataContent(Message message, MessageSpool spool)
+            throws IOException, MessengerException {
+        if (spool != null) {
+            spool.writeTo(mSocketConn.getBufferedOutputStream());
+        } else {
+            MessageExporter.putMessage(
+                    mSocketConn.getBufferedOutputStream(), message);
+        }
         onCommand(".");
     }
 
@@ -149,9 +424,9 @@ public class SmtpWorker {
         return onCommand("EHLO " + localHost);
     }
 
-    private void onCommandMailFrom(Rfc822Token[] tokens)
-            throws IOException, MessengerException {
-        onCommand("MAIL FROM: <" + tokens[0].getAddress() + ">");
+    private void onCommandMailFrom(Rfc822Token[] tokens,
+            MessageSpool spool) throws IOException, MessengerException {
+        onCommand(getMailFrom(tokens, spool));
     }
 
     private void onCommandQuit()
@@ -166,9 +441,101 @@ public class SmtpWorker {
         }
     }
 
-    public void sendMessage(SmtpSyncable syncMessage)
+    /**
+     * rfc 2920: MAIL, RCPT and DATA go out in one write and the responses
+     * come back in the same order<br/>
+     * with CHUNKING the message is then streamed in BDAT chunks whose
+     * responses are collected at last<br/>
+     * as with one command at a time, a rejected recipient fails the send
+     * and nothing is delivered
+     */
+    private void onPipelinedEnvelope(Rfc822Token[] from,
+            List<Rfc822Token> recipients, Message message,
+            MessageSpool spool) throws IOException, MessengerException {
+        final boolean isChunking = hasCapability(CAPA_CHUNKING);
+
+        putLineNoFlush(mSocketConn, getMailFrom(from, spool));
+        for (Rfc822Token token : recipients) {
+            putLineNoFlush(mSocketConn,
+                    "RCPT TO: <" + token.getAddress() + ">");
+        }
+        if (!isChunking) {
+            putLineNoFlush(mSocketConn, "DATA");
+        }
+        mSocketConn.flush();
+
+        String error = readResp(mSocketConn);
+        Const.logd("RESP--- " + error);
+        if (!isNegative(error)) {
+            error = null;
+        }
+        for (Rfc822Token token : recipients) {
+            String resp = readResp(mSocketConn);
+            Const.logd("RESP--- " + resp);
+            if (isNegative(resp)) {
+                Const.logd("rejected recipient: " + token.getAddress());
+                if (error == null) {
+                    error = resp;
+                }
+            }
+        }
+
+        if (isChunking) {
+            if (error != null) {
+                onCommand("RSET");
+                throw new MessengerException(error,
+                        MessengerException.TYPE_SMTP);
+            }
+            onCommandBdat(message, spool);
+            return;
+        }
+
+        String resp = readResp(mSocketConn);
+        Const.logd("RESP--- " + resp);
+        if (isNegative(resp)) {
+            throw new MessengerException(error != null ? error : resp,
+                    MessengerException.TYPE_SMTP);
+        }
+        if (error != null) {
+            // DATA is open and "." would deliver to the accepted ones;
+            // while a transaction cut by close is discarded
+            connEnd();
+            throw new MessengerException(error,
+                    MessengerException.TYPE_SMTP);
+        }
+        onCommandDataContent(message, spool);
+    }
+
+    /**
+     * connect and authenticate, leaving the session ready for transactions
+     */
+    void open(MailServerAuth serverAuth)
             throws IOException, MessengerException {
-        Message message = syncMessage.getMessage();
+        SocketAddress remoteAddr = new InetSocketAddress(
+                serverAuth.getHost(), serverAuth.getPort());
+        conn(remoteAddr, serverAuth.isImplicitTls(),
+                serverAuth.isTlsRequired(), serverAuth.getLogin(),
+                serverAuth.getPin());
+    }
+
+    /**
+     * rfc 5321 4.1.1.5: abort any pending transaction, keeping the session
+     */
+    void reset() throws IOException, MessengerException {
+        onCommand("RSET");
+    }
+
+    /**
+     * one mail transaction on an opened session<br/>
+     * a big message is encoded into its spool the first time and sent from
+     * there every time
+     */
+    void send(Message message) throws IOException, MessengerException {
+        MessageSpool spool = MessageSpool.isWorthSpooling(message)
+                ? MessageSpool.open(message)
+                : null;
+        checkSize(spool);
+
         Rfc822Token[] from = Rfc822Tokenizer.tokenize(message.getSender());
         Rfc822Token[] to = Rfc822Tokenizer.tokenize(message.getRecipient());
         Rfc822Token[] cc = Rfc822Tokenizer
@@ -176,17 +543,34 @@ public class SmtpWorker {
         Rfc822Token[] bcc = Rfc822Tokenizer.tokenize(message
                 .getBlindCarbonCopy());
 
-        MailServerAuth serverAuth = syncMessage.getServerAuth();
-        SocketAddress remoteAddr = new InetSocketAddress(
-                serverAuth.getHost(), serverAuth.getPort());
-
-        try {
-            conn(remoteAddr, serverAuth.getLogin(), serverAuth.getPin());
-            onCommandMailFrom(from);
+        if (hasCapability(CAPA_PIPELINING)) {
+            List<Rfc822Token> recipients = new ArrayList<>(
+                    to.length + cc.length + bcc.length);
+            for (Rfc822Token[] tokens : new Rfc822Token[][] {
+                    to, cc, bcc
+            }) {
+                for (Rfc822Token token : tokens) {
+                    recipients.add(token);
+                }
+            }
+            onPipelinedEnvelope(from, recipients, message, spool);
+        } else {
+            onCommandMailFrom(from, spool);
             onCommandRcptTo(to);
             onCommandRcptTo(cc);
             onCommandRcptTo(bcc);
-            onCommandData(message);
+            onCommandData(message, spool);
+        }
+    }
+
+    /**
+     * one-shot: connect, send and quit
+     */
+    public void sendMessage(SmtpSyncable syncMessage)
+            throws IOException, MessengerException {
+        try {
+            open(syncMessage.getServerAuth());
+            send(syncMessage.getMessage());
             onCommandQuit();
         } finally {
             connEnd();
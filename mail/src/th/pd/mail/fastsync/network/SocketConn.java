@@ -2,32 +2,96 @@ package th.pd.mail.fastsync.network;
 
 import th.pd.mail.Const;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 public class SocketConn {
 
     private static final int SOCKET_CONN_TIMEOUT = 10000;
     private static final int SOCKET_READ_TIMEOUT = 60000;
 
+    // seconds
+    private static final int SSL_SESSION_TIMEOUT = 24 * 3600;
+
+    /**
+     * one context per host: its client session cache hands the previous
+     * session to the next handshake so that a reconnect resumes rather than
+     * doing a full handshake
+     */
+    private static final Map<String, SSLContext> sSslContexts =
+            new HashMap<>();
+
+    static SSLContext getSslContext(String host)
+            throws SSLException {
+        host = host.toLowerCase(Locale.US);
+        synchronized (sSslContexts) {
+            SSLContext context = sSslContexts.get(host);
+            if (context == null) {
+                try {
+                    context = SSLContext.getInstance("TLS");
+                    context.init(null, null, null);
+                } catch (GeneralSecurityException e) {
+                    throw new SSLException(e);
+                }
+                context.getClientSessionContext().setSessionTimeout(
+                        SSL_SESSION_TIMEOUT);
+                sSslContexts.put(host, context);
+            }
+            return context;
+        }
+    }
+
     private Socket mSocket;
-    private BufferedInputStream mIstream;
+    private LineScanner mIstream;
     private BufferedOutputStream mOstream;
 
+    private String mHost;
+    private int mPort;
+    private boolean mIsTlsResumed = false;
+
     void conn(SocketAddress remoteAddr) {
+        conn(remoteAddr, false);
+    }
+
+    /**
+     * @param isImplicitTls
+     *            handshake right after connected, e.g. smtps 465 and imaps
+     *            993
+     */
+    void conn(SocketAddress remoteAddr, boolean isImplicitTls) {
         Socket socket = new Socket();
-        BufferedInputStream is = null;
+        LineScanner is = null;
         BufferedOutputStream os = null;
+        if (remoteAddr instanceof InetSocketAddress) {
+            InetSocketAddress inetAddr = (InetSocketAddress) remoteAddr;
+            mHost = inetAddr.getHostString();
+            mPort = inetAddr.getPort();
+        }
+        mIsTlsResumed = false;
         try {
             socket.connect(remoteAddr, SOCKET_CONN_TIMEOUT);
             socket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            is = new BufferedInputStream(socket.getInputStream(), 1024);
+            if (isImplicitTls) {
+                socket = handshake(socket);
+            }
+            is = new LineScanner(socket.getInputStream());
             os = new BufferedOutputStream(socket.getOutputStream(), 512);
         } catch (SSLException e) {
             // TODO
@@ -75,47 +139,67 @@ public class SocketConn {
         mSocket = null;
     }
 
-    BufferedInputStream getBufferedInputStream() {
-        return mIstream;
+    /**
+     * wrap the connected socket and verify the peer against the host name,
+     * which SSLSocket itself never does
+     */
+    private SSLSocket handshake(Socket socket) throws IOException {
+        if (mHost == null) {
+            throw new SSLException("unknown host to verify");
+        }
+        SSLContext context = getSslContext(mHost);
+        SSLSocket sslSocket = (SSLSocket) context.getSocketFactory()
+                .createSocket(socket, mHost, mPort, true);
+        final long handshakeStart = System.currentTimeMillis();
+        sslSocket.startHandshake();
+
+        SSLSession session = sslSocket.getSession();
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+                mHost, session)) {
+            sslSocket.close();
+            throw new SSLPeerUnverifiedException(
+                    "certificate does not match " + mHost);
+        }
+        // a resumed session is created by an earlier handshake
+        mIsTlsResumed = session.getCreationTime() < handshakeStart;
+        Const.logd("TLS " + session.getProtocol() + " "
+                + session.getCipherSuite()
+                + (mIsTlsResumed ? " resumed" : " full handshake"));
+        return sslSocket;
     }
 
     BufferedOutputStream getBufferedOutputStream() {
         return mOstream;
     }
 
+    /**
+     * buffered; raw reads see what line reads have not consumed
+     */
+    InputStream getInputStream() {
+        return mIstream;
+    }
+
+    /**
+     * the next line without the line break; <code>null</code> at end of
+     * stream, i.e. the peer closed the connection
+     */
     String getLine() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        int c = -1;
-        L: while ((c = mIstream.read()) != -1) {
-            switch (c) {
-                case '\r':
-                    // break switch so ignore '\r'
-                    break;
-                case '\n':
-                    // break while so return
-                    break L;
-                default:
-                    sb.append((char) c);
-            }
-        }
-        // TODO c == -1 may be an error state, log it
-        return sb.toString();
+        return mIstream.readLine();
     }
 
+    /**
+     * zero-copy view of the next line without the line break, valid until
+     * the next read; <code>null</code> at end of stream
+     */
+    ByteBuffer getLineBytes() throws IOException {
+        return mIstream.nextLine();
+    }
+
+    /**
+     * <code>null</code> at end of stream
+     */
     String getWord() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        int c = -1;
-        L: while ((c = mIstream.read()) != -1) {
-            switch (c) {
-                case ' ':
-                    // break while so return
-                    break L;
-                default:
-                    sb.append((char) c);
-            }
-        }
-        // TODO c == -1 may be an error state, log it
-        return sb.toString();
+        return mIstream.readWord();
     }
 
     InetAddress getLocalAddress() {
@@ -125,10 +209,53 @@ public class SocketConn {
         return null;
     }
 
+    void flush() throws IOException {
+        mOstream.flush();
+    }
+
+    boolean isConnected() {
+        return mSocket != null && mIstream != null && mSocket.isConnected()
+                && !mSocket.isClosed();
+    }
+
+    boolean isTls() {
+        return mSocket instanceof SSLSocket;
+    }
+
+    /**
+     * valid after a tls handshake
+     */
+    boolean isTlsResumed() {
+        return mIsTlsResumed;
+    }
+
     void putLine(String s) throws IOException {
+        writeLine(s);
+        flush();
+    }
+
+    /**
+     * rfc 3207 / rfc 2595: upgrade the plain connection in place, after the
+     * server said go ahead
+     */
+    void startTls() throws IOException {
+        if (isTls()) {
+            return;
+        }
+        // nothing may be buffered from the plain text phase
+        mOstream.flush();
+        SSLSocket socket = handshake(mSocket);
+        mSocket = socket;
+        mIstream = new LineScanner(socket.getInputStream());
+        mOstream = new BufferedOutputStream(socket.getOutputStream(), 512);
+    }
+
+    /**
+     * buffer the line without flushing, for pipelined commands
+     */
+    void writeLine(String s) throws IOException {
         mOstream.write(s.getBytes());
         mOstream.write('\r');
         mOstream.write('\n');
-        mOstream.flush();
     }
 }
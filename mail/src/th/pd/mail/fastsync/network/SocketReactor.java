@@ -0,0 +1,638 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import android.os.SystemClock;
+
+import th.pd.mail.Const;
+
+/**
+ * non-blocking counterpart of {@link SocketConn}: one selector thread
+ * drives every registered connection, so hundreds of idle or chatty
+ * sessions do not need a thread each<br/>
+ * a {@link Handler} is called on the selector thread and must not block: it
+ * reacts to a line by sending the next command, i.e. the protocol becomes a
+ * state machine driven by readiness events<br/>
+ * tls runs through SSLEngine on the same per-host context as
+ * {@link SocketConn}, so sessions resume across both transports
+ */
+public class SocketReactor implements Runnable {
+
+    /**
+     * all callbacks run on the selector thread
+     */
+    public interface Handler {
+
+        /**
+         * @param e
+         *            <code>null</code> if closed normally
+         */
+        void onClosed(Conn conn, IOException e);
+
+        /**
+         * tcp established, and tls handshake done if implicit
+         */
+        void onConnected(Conn conn);
+
+        /**
+         * @param line
+         *            without line break; valid only in this call
+         */
+        void onLine(Conn conn, ByteBuffer line);
+
+        /**
+         * handshake done after {@link Conn#startTls()}
+         */
+        void onTlsStarted(Conn conn);
+    }
+
+    public static class Conn {
+
+        private interface IoAction {
+            void run() throws IOException;
+        }
+
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final SocketReactor reactor;
+        private final SocketChannel channel;
+        private final Handler handler;
+        private final String host;
+        private final int port;
+        private final boolean isImplicitTls;
+
+        private SelectionKey key;
+        private final LineScanner scanner = new LineScanner();
+        private final ArrayDeque<ByteBuffer> pendingWrites =
+                new ArrayDeque<>();
+
+        private SSLEngine engine = null;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut; // kept flipped: remaining is to send
+        private boolean isHandshaking = false;
+
+        private long timeout = SOCKET_READ_TIMEOUT;
+        private long deadline = 0;
+        private boolean isClosing = false;
+        private boolean isClosed = false;
+
+        private Conn(SocketReactor reactor, SocketChannel channel,
+                InetSocketAddress remoteAddr, boolean isImplicitTls,
+                Handler handler) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.host = remoteAddr.getHostString();
+            this.port = remoteAddr.getPort();
+            this.isImplicitTls = isImplicitTls;
+            this.handler = handler;
+        }
+
+        private void beginTls() throws IOException {
+            engine = SocketConn.getSslContext(host)
+                    .createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            int packetSize = engine.getSession().getPacketBufferSize();
+            netIn = ByteBuffer.allocate(packetSize);
+            netOut = ByteBuffer.allocate(packetSize);
+            netOut.flip();
+            isHandshaking = true;
+            engine.beginHandshake();
+            handshake();
+        }
+
+        /**
+         * send what is queued, then close
+         */
+        public void close() {
+            post(new IoAction() {
+
+                @Override
+                public void run() throws IOException {
+                    isClosing = true;
+                    drainWrites();
+                }
+            });
+        }
+
+        private void closeNow(IOException e) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // dummy
+            }
+            if (e != null) {
+                Const.logd("CONN CLOSED--- " + host + ": " + e.getMessage());
+            }
+            handler.onClosed(this, e);
+        }
+
+        private void closeOutbound() throws IOException {
+            if (engine != null && !engine.isOutboundDone()) {
+                // best effort close_notify
+                engine.closeOutbound();
+                wrap(EMPTY);
+            }
+            closeNow(null);
+        }
+
+        /**
+         * decode a line handed out in {@link Handler#onLine}
+         */
+        public String decode(ByteBuffer line) {
+            return scanner.decode(line);
+        }
+
+        private void dispatchLines() {
+            ByteBuffer line;
+            while (!isClosed && (line = scanner.pollLine()) != null) {
+                handler.onLine(this, line);
+            }
+        }
+
+        private void drainWrites() throws IOException {
+            if (!channel.isConnected()) {
+                // onConnectable() comes back
+                return;
+            }
+            if (engine == null) {
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer b = pendingWrites.peek();
+                    channel.write(b);
+                    if (b.hasRemaining()) {
+                        setWriteInterest(true);
+                        return;
+                    }
+                    pendingWrites.poll();
+                }
+            } else {
+                if (isHandshaking) {
+                    // app data waits for the handshake
+                    return;
+                }
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer b = pendingWrites.peek();
+                    if (!wrap(b)) {
+                        return;
+                    }
+                    if (!b.hasRemaining()) {
+                        pendingWrites.poll();
+                    }
+                }
+                if (!flushNet()) {
+                    return;
+                }
+            }
+            setWriteInterest(false);
+            if (isClosing) {
+                closeOutbound();
+            }
+        }
+
+        /**
+         * @return <code>false</code> if the socket takes no more for now
+         */
+        private boolean flushNet() throws IOException {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            if (netOut.hasRemaining()) {
+                setWriteInterest(true);
+                return false;
+            }
+            return true;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * drive the handshake as far as the bytes at hand allow
+         */
+        private void handshake() throws IOException {
+            while (!isClosed) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK: {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    }
+                    case NEED_WRAP:
+                        if (!wrap(EMPTY)) {
+                            return;
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                        if (!unwrap()) {
+                            return;
+                        }
+                        break;
+                    default:
+                        // NOT_HANDSHAKING or FINISHED
+                        onHandshakeFinished();
+                        return;
+                }
+            }
+        }
+
+        public boolean isTls() {
+            return engine != null;
+        }
+
+        private void onConnectable() throws IOException {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            touch();
+            if (isImplicitTls) {
+                beginTls();
+            } else {
+                handler.onConnected(this);
+                drainWrites();
+            }
+        }
+
+        private void onHandshakeFinished() throws IOException {
+            if (!isHandshaking) {
+                // post-handshake messages, e.g. tls 1.3 session tickets
+                return;
+            }
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+                    host, engine.getSession())) {
+                throw new SSLPeerUnverifiedException(
+                        "certificate does not match " + host);
+            }
+            isHandshaking = false;
+            Const.logd("TLS " + engine.getSession().getProtocol() + " "
+                    + engine.getSession().getCipherSuite());
+            if (isImplicitTls) {
+                handler.onConnected(this);
+            } else {
+                handler.onTlsStarted(this);
+            }
+            drainWrites();
+        }
+
+        private void onReadable() throws IOException {
+            touch();
+            if (engine == null) {
+                ByteBuffer dst = scanner.prepareWrite(READ_CHUNK_SIZE);
+                int n = channel.read(dst);
+                if (n < 0) {
+                    closeNow(null);
+                    return;
+                }
+                scanner.commitWrite(n);
+            } else {
+                if (!netIn.hasRemaining()) {
+                    // a record larger than the session said
+                    ByteBuffer a = ByteBuffer.allocate(netIn.capacity() * 2);
+                    netIn.flip();
+                    a.put(netIn);
+                    netIn = a;
+                }
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    closeNow(new EOFException("no close_notify"));
+                    return;
+                }
+                if (isHandshaking) {
+                    handshake();
+                }
+                while (!isClosed && !isHandshaking && netIn.position() > 0
+                        && unwrap()) {
+                    if (engine.getHandshakeStatus()
+                            != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        handshake();
+                    }
+                }
+            }
+            dispatchLines();
+        }
+
+        private void onWritable() throws IOException {
+            if (engine != null && isHandshaking) {
+                if (flushNet()) {
+                    setWriteInterest(false);
+                    handshake();
+                }
+                return;
+            }
+            drainWrites();
+        }
+
+        /**
+         * run on the selector thread, right now if already on it
+         */
+        private void post(IoAction action) {
+            Runnable r = toRunnable(action);
+            if (Thread.currentThread() == reactor.mThread) {
+                r.run();
+            } else {
+                reactor.post(r);
+            }
+        }
+
+        public void send(final ByteBuffer bytes) {
+            post(new IoAction() {
+
+                @Override
+                public void run() throws IOException {
+                    pendingWrites.add(bytes);
+                    drainWrites();
+                }
+            });
+        }
+
+        /**
+         * a command line, appended with "\r\n"
+         */
+        public void send(String line) {
+            byte[] a = line.getBytes();
+            ByteBuffer b = ByteBuffer.allocate(a.length + 2);
+            b.put(a).put((byte) '\r').put((byte) '\n').flip();
+            send(b);
+        }
+
+        private void setWriteInterest(boolean isOn) {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(isOn
+                    ? ops | SelectionKey.OP_WRITE
+                    : ops & ~SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * @param timeout
+         *            milliseconds of silence before closing; 0 for never,
+         *            e.g. when a keepalive scheduler is in charge
+         */
+        public void setTimeout(final long timeout) {
+            post(new IoAction() {
+
+                @Override
+                public void run() {
+                    Conn.this.timeout = timeout;
+                    touch();
+                }
+            });
+        }
+
+        /**
+         * upgrade in place after the server said go ahead; queued and
+         * later sends go out encrypted
+         */
+        public void startTls() {
+            post(new IoAction() {
+
+                @Override
+                public void run() throws IOException {
+                    if (engine == null) {
+                        beginTls();
+                    }
+                }
+            });
+        }
+
+        private Runnable toRunnable(final IoAction action) {
+            return new Runnable() {
+
+                @Override
+                public void run() {
+                    if (isClosed) {
+                        return;
+                    }
+                    try {
+                        action.run();
+                    } catch (IOException e) {
+                        closeNow(e);
+                    }
+                }
+            };
+        }
+
+        private void touch() {
+            deadline = timeout > 0
+                    ? SystemClock.elapsedRealtime() + timeout
+                    : 0;
+        }
+
+        /**
+         * unwrap one record into the line scanner
+         *
+         * @return <code>false</code> if more bytes from network are needed
+         */
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            try {
+                while (true) {
+                    ByteBuffer dst = scanner.prepareWrite(
+                            engine.getSession().getApplicationBufferSize());
+                    int start = dst.position();
+                    SSLEngineResult result = engine.unwrap(netIn, dst);
+                    scanner.commitWrite(dst.position() - start);
+                    switch (result.getStatus()) {
+                        case BUFFER_OVERFLOW:
+                            // the session grew, ask again
+                            continue;
+                        case BUFFER_UNDERFLOW:
+                            return false;
+                        case CLOSED:
+                            closeNow(null);
+                            return false;
+                        default:
+                            return true;
+                    }
+                }
+            } finally {
+                netIn.compact();
+            }
+        }
+
+        /**
+         * @return <code>false</code> if the socket takes no more for now
+         */
+        private boolean wrap(ByteBuffer src) throws IOException {
+            while (true) {
+                if (!flushNet()) {
+                    return false;
+                }
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(src, netOut);
+                netOut.flip();
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        netOut = ByteBuffer.allocate(
+                                engine.getSession().getPacketBufferSize());
+                        netOut.flip();
+                        continue;
+                    case CLOSED:
+                        flushNet();
+                        return false;
+                    default:
+                        flushNet();
+                        return true;
+                }
+            }
+        }
+    }
+
+    private static final int SOCKET_CONN_TIMEOUT = 10000;
+    private static final int SOCKET_READ_TIMEOUT = 60000;
+
+    private static final int READ_CHUNK_SIZE = 4096;
+
+    private static SocketReactor reactor = null;
+
+    public static synchronized SocketReactor getInstance()
+            throws IOException {
+        if (reactor == null) {
+            reactor = new SocketReactor();
+            reactor.mThread = new Thread(reactor, "syncd-reactor");
+            reactor.mThread.setDaemon(true);
+            reactor.mThread.start();
+        }
+        return reactor;
+    }
+
+    ////////////////////////////////////////////////////////
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks =
+            new ConcurrentLinkedQueue<>();
+    private Thread mThread;
+
+    private SocketReactor() throws IOException {
+        mSelector = Selector.open();
+    }
+
+    /**
+     * close whoever is silent too long
+     *
+     * @return time to the earliest deadline, 0 for none
+     */
+    private long checkDeadlines() {
+        final long now = SystemClock.elapsedRealtime();
+        long earliest = 0;
+        for (SelectionKey key : mSelector.keys()) {
+            Conn conn = (Conn) key.attachment();
+            if (conn == null || conn.deadline == 0) {
+                continue;
+            }
+            if (conn.deadline <= now) {
+                conn.closeNow(new SocketTimeoutException(
+                        "silent for " + conn.timeout + "ms"));
+            } else if (earliest == 0 || conn.deadline < earliest) {
+                earliest = conn.deadline;
+            }
+        }
+        return earliest == 0 ? 0 : earliest - now;
+    }
+
+    /**
+     * the name is resolved in the caller thread; everything else is done by
+     * the selector thread
+     */
+    public Conn connect(final InetSocketAddress remoteAddr,
+            boolean isImplicitTls, Handler handler) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        final Conn conn = new Conn(this, channel, remoteAddr,
+                isImplicitTls, handler);
+        conn.timeout = SOCKET_CONN_TIMEOUT;
+        // always queued: a handler may connect while keys are iterated
+        post(conn.toRunnable(new Conn.IoAction() {
+
+            @Override
+            public void run() throws IOException {
+                Const.logd("CONN--- " + remoteAddr);
+                boolean isConnected = channel.connect(remoteAddr);
+                conn.key = channel.register(mSelector,
+                        SelectionKey.OP_CONNECT, conn);
+                conn.touch();
+                conn.timeout = SOCKET_READ_TIMEOUT;
+                if (isConnected) {
+                    conn.onConnectable();
+                }
+            }
+        }));
+        return conn;
+    }
+
+    public int getConnCount() {
+        return mSelector.keys().size();
+    }
+
+    private void post(Runnable r) {
+        mTasks.offer(r);
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable r;
+            while ((r = mTasks.poll()) != null) {
+                r.run();
+            }
+
+            try {
+                // sleep till an event or the earliest deadline
+                mSelector.select(checkDeadlines());
+            } catch (IOException e) {
+                Const.logd("select: " + e.getMessage());
+                continue;
+            }
+
+            Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Conn conn = (Conn) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        conn.onConnectable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        conn.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.onWritable();
+                    }
+                } catch (IOException e) {
+                    conn.closeNow(e);
+                } catch (RuntimeException e) {
+                    // a broken handler must not take the others down
+                    conn.closeNow(new IOException(e));
+                }
+            }
+        }
+    }
+}
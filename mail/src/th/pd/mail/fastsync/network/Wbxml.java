@@ -0,0 +1,371 @@
+package th.pd.mail.fastsync.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * see <strong>WAP Binary XML Content Format</strong>, w3c note 1999<br/>
+ * ms-aswbxml: the code pages and tokens of exchange activesync<br/>
+ * a tag is its code page and token in one int, so that both sides switch
+ * pages by themselves; the encoder writes as it goes, the parser pulls one
+ * event at a time and holds no more than the current text
+ */
+class Wbxml {
+
+    /**
+     * writes straight into the stream; elements are closed by
+     * {@link #end()}, innermost first
+     */
+    static class Encoder {
+
+        private final OutputStream mOStream;
+        private int mPage = 0;
+
+        Encoder(OutputStream ostream) throws IOException {
+            mOStream = ostream;
+            mOStream.write(HEADER);
+        }
+
+        /**
+         * an element without content, e.g. &lt;GetChanges/&gt;
+         */
+        Encoder empty(int tag) throws IOException {
+            writeTag(tag, false);
+            return this;
+        }
+
+        Encoder end() throws IOException {
+            mOStream.write(END);
+            return this;
+        }
+
+        Encoder start(int tag) throws IOException {
+            writeTag(tag, true);
+            return this;
+        }
+
+        /**
+         * a whole element of inline string
+         */
+        Encoder text(int tag, String text) throws IOException {
+            writeTag(tag, true);
+            mOStream.write(STR_I);
+            mOStream.write(text.getBytes(UTF_8));
+            mOStream.write(0);
+            return end();
+        }
+
+        private void writeTag(int tag, boolean hasContent)
+                throws IOException {
+            int page = tag >>> 6;
+            if (page != mPage) {
+                mOStream.write(SWITCH_PAGE);
+                mOStream.write(page);
+                mPage = page;
+            }
+            mOStream.write((tag & 0x3F) | (hasContent ? CONTENT : 0));
+        }
+    }
+
+    /**
+     * pull parser: {@link #next()} gives {@link #START}, {@link #TEXT},
+     * {@link #END} or {@link #EOF}; an element without content still comes
+     * as start and end
+     */
+    static class Parser {
+
+        static final int START = 0;
+        static final int END = 1;
+        static final int TEXT = 2;
+        static final int EOF = 3;
+
+        private final InputStream mIStream;
+        private byte[] mStringTable = new byte[0];
+        private int mPage = 0;
+
+        // open tags, innermost last
+        private int[] mTags = new int[32];
+        private int mDepth = 0;
+        private boolean mIsPendingEnd = false;
+
+        private int mTag = -1;
+        private String mText = null;
+
+        private final ByteArrayOutputStream mBuffer =
+                new ByteArrayOutputStream();
+
+        Parser(InputStream istream) throws IOException {
+            mIStream = istream;
+            readHeader();
+        }
+
+        int getDepth() {
+            return mDepth;
+        }
+
+        /**
+         * of the last start or end
+         */
+        int getTag() {
+            return mTag;
+        }
+
+        String getText() {
+            return mText;
+        }
+
+        int next() throws IOException {
+            if (mIsPendingEnd) {
+                mIsPendingEnd = false;
+                mTag = mTags[--mDepth];
+                return END;
+            }
+            mText = null;
+            while (true) {
+                int b = mIStream.read();
+                switch (b) {
+                    case -1:
+                        if (mDepth > 0) {
+                            throw new EOFException("wbxml cut at depth "
+                                    + mDepth);
+                        }
+                        return EOF;
+                    case SWITCH_PAGE:
+                        mPage = readByte();
+                        break;
+                    case END:
+                        if (mDepth == 0) {
+                            throw new IOException("wbxml unbalanced end");
+                        }
+                        mTag = mTags[--mDepth];
+                        return END;
+                    case ENTITY:
+                        mText = new String(Character.toChars(readInt()));
+                        return TEXT;
+                    case STR_I:
+                        mText = readString();
+                        return TEXT;
+                    case STR_T:
+                        mText = readTableString(readInt());
+                        return TEXT;
+                    case OPAQUE:
+                        mText = new String(readBytes(readInt()), UTF_8);
+                        return TEXT;
+                    default:
+                        if ((b & ATTRIBUTES) != 0 || (b & 0x3F) < 5) {
+                            // not used by activesync
+                            throw new IOException("wbxml token not supported: "
+                                    + b);
+                        }
+                        mTag = mPage << 6 | (b & 0x3F);
+                        if (mDepth == mTags.length) {
+                            int[] a = new int[mDepth * 2];
+                            System.arraycopy(mTags, 0, a, 0, mDepth);
+                            mTags = a;
+                        }
+                        mTags[mDepth++] = mTag;
+                        mIsPendingEnd = (b & CONTENT) == 0;
+                        return START;
+                }
+            }
+        }
+
+        /**
+         * after a start, the text of the element up to its end; "" if none
+         */
+        String nextText() throws IOException {
+            int depth = mDepth;
+            StringBuilder sb = new StringBuilder();
+            int event;
+            while ((event = next()) != END || mDepth >= depth) {
+                if (event == TEXT) {
+                    sb.append(mText);
+                } else if (event == START) {
+                    skip();
+                } else if (event == EOF) {
+                    throw new EOFException();
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * after a start, "0"/"1" element as boolean
+         */
+        boolean nextBoolean() throws IOException {
+            return "1".equals(nextText());
+        }
+
+        int nextInt() throws IOException {
+            String s = nextText().trim();
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                throw new IOException("wbxml not a number: " + s);
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = mIStream.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        private byte[] readBytes(int n) throws IOException {
+            byte[] a = new byte[n];
+            int off = 0;
+            while (off < n) {
+                int count = mIStream.read(a, off, n - off);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                off += count;
+            }
+            return a;
+        }
+
+        private void readHeader() throws IOException {
+            readByte(); // version
+            if (readInt() == 0) {
+                readInt(); // public id as string table index
+            }
+            readInt(); // charset, utf-8 for activesync
+            mStringTable = readBytes(readInt());
+        }
+
+        /**
+         * mb_u_int32
+         */
+        private int readInt() throws IOException {
+            int n = 0;
+            int b;
+            int count = 0;
+            do {
+                if (++count > 5) {
+                    throw new IOException("wbxml bad mb_u_int32");
+                }
+                b = readByte();
+                n = n << 7 | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            return n;
+        }
+
+        private String readString() throws IOException {
+            mBuffer.reset();
+            int b;
+            while ((b = readByte()) != 0) {
+                mBuffer.write(b);
+            }
+            return new String(mBuffer.toByteArray(), UTF_8);
+        }
+
+        private String readTableString(int offset) throws IOException {
+            if (offset < 0 || offset >= mStringTable.length) {
+                throw new IOException("wbxml bad string table offset");
+            }
+            int end = offset;
+            while (end < mStringTable.length && mStringTable[end] != 0) {
+                ++end;
+            }
+            return new String(mStringTable, offset, end - offset, UTF_8);
+        }
+
+        /**
+         * after a start, over the rest of the element
+         */
+        void skip() throws IOException {
+            int depth = mDepth;
+            while (mDepth >= depth) {
+                if (next() == EOF) {
+                    throw new EOFException();
+                }
+            }
+        }
+    }
+
+    // code pages
+    private static final int PAGE_AIR_SYNC = 0;
+    private static final int PAGE_EMAIL = 2;
+    private static final int PAGE_FOLDER_HIERARCHY = 7;
+    private static final int PAGE_PING = 13;
+    private static final int PAGE_AIR_SYNC_BASE = 17;
+
+    static final int SYNC = PAGE_AIR_SYNC << 6 | 0x05;
+    static final int SYNC_ADD = PAGE_AIR_SYNC << 6 | 0x07;
+    static final int SYNC_CHANGE = PAGE_AIR_SYNC << 6 | 0x08;
+    static final int SYNC_DELETE = PAGE_AIR_SYNC << 6 | 0x09;
+    static final int SYNC_SYNC_KEY = PAGE_AIR_SYNC << 6 | 0x0B;
+    static final int SYNC_SERVER_ID = PAGE_AIR_SYNC << 6 | 0x0D;
+    static final int SYNC_STATUS = PAGE_AIR_SYNC << 6 | 0x0E;
+    static final int SYNC_COLLECTION = PAGE_AIR_SYNC << 6 | 0x0F;
+    static final int SYNC_COLLECTION_ID = PAGE_AIR_SYNC << 6 | 0x12;
+    static final int SYNC_GET_CHANGES = PAGE_AIR_SYNC << 6 | 0x13;
+    static final int SYNC_MORE_AVAILABLE = PAGE_AIR_SYNC << 6 | 0x14;
+    static final int SYNC_WINDOW_SIZE = PAGE_AIR_SYNC << 6 | 0x15;
+    static final int SYNC_COMMANDS = PAGE_AIR_SYNC << 6 | 0x16;
+    static final int SYNC_OPTIONS = PAGE_AIR_SYNC << 6 | 0x17;
+    static final int SYNC_FILTER_TYPE = PAGE_AIR_SYNC << 6 | 0x18;
+    static final int SYNC_COLLECTIONS = PAGE_AIR_SYNC << 6 | 0x1C;
+    static final int SYNC_APPLICATION_DATA = PAGE_AIR_SYNC << 6 | 0x1D;
+    static final int SYNC_DELETES_AS_MOVES = PAGE_AIR_SYNC << 6 | 0x1E;
+    static final int SYNC_SOFT_DELETE = PAGE_AIR_SYNC << 6 | 0x21;
+
+    static final int EMAIL_DATE_RECEIVED = PAGE_EMAIL << 6 | 0x0F;
+    static final int EMAIL_SUBJECT = PAGE_EMAIL << 6 | 0x14;
+    static final int EMAIL_READ = PAGE_EMAIL << 6 | 0x15;
+    static final int EMAIL_TO = PAGE_EMAIL << 6 | 0x16;
+    static final int EMAIL_CC = PAGE_EMAIL << 6 | 0x17;
+    static final int EMAIL_FROM = PAGE_EMAIL << 6 | 0x18;
+    static final int EMAIL_REPLY_TO = PAGE_EMAIL << 6 | 0x19;
+
+    static final int FOLDER_DISPLAY_NAME = PAGE_FOLDER_HIERARCHY << 6 | 0x07;
+    static final int FOLDER_SERVER_ID = PAGE_FOLDER_HIERARCHY << 6 | 0x08;
+    static final int FOLDER_PARENT_ID = PAGE_FOLDER_HIERARCHY << 6 | 0x09;
+    static final int FOLDER_TYPE = PAGE_FOLDER_HIERARCHY << 6 | 0x0A;
+    static final int FOLDER_STATUS = PAGE_FOLDER_HIERARCHY << 6 | 0x0C;
+    static final int FOLDER_CHANGES = PAGE_FOLDER_HIERARCHY << 6 | 0x0E;
+    static final int FOLDER_ADD = PAGE_FOLDER_HIERARCHY << 6 | 0x0F;
+    static final int FOLDER_DELETE = PAGE_FOLDER_HIERARCHY << 6 | 0x10;
+    static final int FOLDER_UPDATE = PAGE_FOLDER_HIERARCHY << 6 | 0x11;
+    static final int FOLDER_SYNC_KEY = PAGE_FOLDER_HIERARCHY << 6 | 0x12;
+    static final int FOLDER_FOLDER_SYNC = PAGE_FOLDER_HIERARCHY << 6 | 0x16;
+
+    static final int PING = PAGE_PING << 6 | 0x05;
+    static final int PING_STATUS = PAGE_PING << 6 | 0x07;
+    static final int PING_HEARTBEAT_INTERVAL = PAGE_PING << 6 | 0x08;
+    static final int PING_FOLDERS = PAGE_PING << 6 | 0x09;
+    static final int PING_FOLDER = PAGE_PING << 6 | 0x0A;
+    static final int PING_ID = PAGE_PING << 6 | 0x0B;
+    static final int PING_CLASS = PAGE_PING << 6 | 0x0C;
+
+    static final int BASE_BODY_PREFERENCE = PAGE_AIR_SYNC_BASE << 6 | 0x05;
+    static final int BASE_TYPE = PAGE_AIR_SYNC_BASE << 6 | 0x06;
+    static final int BASE_TRUNCATION_SIZE = PAGE_AIR_SYNC_BASE << 6 | 0x07;
+    static final int BASE_BODY = PAGE_AIR_SYNC_BASE << 6 | 0x0A;
+    static final int BASE_DATA = PAGE_AIR_SYNC_BASE << 6 | 0x0B;
+    static final int BASE_TRUNCATED = PAGE_AIR_SYNC_BASE << 6 | 0x0D;
+
+    // global tokens
+    private static final int SWITCH_PAGE = 0x00;
+    private static final int END = 0x01;
+    private static final int ENTITY = 0x02;
+    private static final int STR_I = 0x03;
+    private static final int STR_T = 0x83;
+    private static final int OPAQUE = 0xC3;
+
+    private static final int CONTENT = 0x40;
+    private static final int ATTRIBUTES = 0x80;
+
+    // version 1.3, unknown public id, utf-8, no string table
+    private static final byte[] HEADER = {
+            0x03, 0x01, 0x6A, 0x00
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+}
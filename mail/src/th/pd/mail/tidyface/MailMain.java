@@ -1,11 +1,9 @@
 package th.pd.mail.tidyface;
 
-import android.accounts.Account;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
@@ -15,6 +13,7 @@ import th.pd.mail.Const;
 import th.pd.mail.R;
 import th.pd.mail.dao.FastSyncAccess;
 import th.pd.mail.dao.MailAcc;
+import th.pd.mail.fastsync.SyncRequester;
 import th.pd.mail.tidyface.compose.ComposeActivity;
 import th.pd.mail.tidyface.leftmost.LeftmostFragment;
 
@@ -58,12 +57,8 @@ public class MailMain extends Activity implements OnActionCallback {
                     acc = FastSyncAccess.getMailAccSequence(this)
                             .getCurrent();
                 }
-                Account account = new Account(acc.getAddr(),
-                        Const.ACCOUNT_TYPE);
-                Bundle extras = new Bundle();
-                extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-                ContentResolver.requestSync(account, Const.AUTHORITY,
-                        extras);
+                SyncRequester.getInstance().request(acc.getAddr(),
+                        SyncRequester.ALL_DIRS, SyncRequester.PRIORITY_MANUAL);
                 return true;
             }
             default:
@@ -106,7 +101,10 @@ public class MailMain extends Activity implements OnActionCallback {
         setContentView(R.layout.activity_main);
         bindViews();
 
-        onAction(R.id.actionRequestSync, null);
+        // not asked by the user; a rotation may bring it again
+        SyncRequester.getInstance().request(
+                FastSyncAccess.getMailAccSequence(this).getCurrent().getAddr(),
+                SyncRequester.ALL_DIRS, SyncRequester.PRIORITY_BACKGROUND);
 
         FragmentManager fragmentManager = getFragmentManager();
         Fragment fragment = new LeftmostFragment();
@@ -0,0 +1,282 @@
+package th.pd.mail.tidyface.compose;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import th.pd.mail.Const;
+
+/**
+ * copies a picked content uri into the cache as a file to attach, when its
+ * read grant would not last until sent; on a thread of its own: big
+ * buffers through file channels, hashed as they pass; the same content
+ * under the same name is stored once<br/>
+ * callbacks come on the main thread; none after cancel
+ */
+class AttachmentIngester {
+
+    interface Listener {
+
+        void onIngestFailed(Ingestion ingestion, IOException e);
+
+        /**
+         * @param total
+         *            -1 if unknown
+         */
+        void onIngestProgress(Ingestion ingestion, long done, long total);
+
+        void onIngested(Ingestion ingestion, File file);
+    }
+
+    /**
+     * one content uri on its way to the cache
+     */
+    static class Ingestion implements Runnable {
+
+        final Uri contentUri;
+        final String mimeType;
+        final String name;
+
+        private final Context context;
+        private final Listener listener;
+        private volatile boolean isCancelled = false;
+        private long lastProgressTime = 0;
+
+        private Ingestion(Context context, Uri contentUri, String mimeType,
+                String name, Listener listener) {
+            this.context = context;
+            this.contentUri = contentUri;
+            this.mimeType = mimeType;
+            this.name = name;
+            this.listener = listener;
+        }
+
+        /**
+         * the copy stops at its next buffer and the partial file goes
+         */
+        void cancel() {
+            isCancelled = true;
+        }
+
+        /**
+         * @return the temp file hashed into the digest
+         */
+        private File copy(File dir, MessageDigest digest) throws IOException {
+            ContentResolver resolver = context.getContentResolver();
+            AssetFileDescriptor afd = resolver.openAssetFileDescriptor(
+                    contentUri, "r");
+            if (afd == null) {
+                throw new IOException("cannot open " + contentUri);
+            }
+            File tmpFile = File.createTempFile("ingest", ".tmp", dir);
+            boolean isDone = false;
+            try {
+                FileChannel src = afd.createInputStream().getChannel();
+                FileChannel dst = new FileOutputStream(tmpFile).getChannel();
+                try {
+                    long total = afd.getLength();
+                    long done = 0;
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    int n;
+                    while ((n = src.read(buffer)) != -1) {
+                        if (isCancelled) {
+                            throw new InterruptedIOException("cancelled");
+                        }
+                        buffer.flip();
+                        digest.update(buffer.array(), 0, n);
+                        while (buffer.hasRemaining()) {
+                            dst.write(buffer);
+                        }
+                        buffer.clear();
+                        done += n;
+                        postProgress(done, total);
+                    }
+                } finally {
+                    dst.close();
+                    src.close();
+                }
+                isDone = true;
+                return tmpFile;
+            } finally {
+                afd.close();
+                if (!isDone) {
+                    tmpFile.delete();
+                }
+            }
+        }
+
+        private void postProgress(final long done, final long total) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastProgressTime < PROGRESS_INTERVAL) {
+                return;
+            }
+            lastProgressTime = now;
+            sHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!isCancelled) {
+                        listener.onIngestProgress(Ingestion.this, done,
+                                total);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled) {
+                return;
+            }
+            File file = null;
+            IOException error = null;
+            try {
+                file = store();
+            } catch (IOException e) {
+                Const.logd("ingest " + contentUri + ": " + e.getMessage());
+                error = e;
+            }
+
+            final File result = file;
+            final IOException resultError = error;
+            sHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (isCancelled) {
+                        if (result != null) {
+                            // maybe shared by another; left to the cache
+                            Const.logd("ingest cancelled: " + result);
+                        }
+                        return;
+                    }
+                    if (result != null) {
+                        listener.onIngested(Ingestion.this, result);
+                    } else {
+                        listener.onIngestFailed(Ingestion.this,
+                                resultError);
+                    }
+                }
+            });
+        }
+
+        /**
+         * into the directory of its content hash
+         */
+        private File store() throws IOException {
+            File root = getRootDir(context);
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IOException("cannot make " + root);
+            }
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            File tmpFile = copy(root, digest);
+
+            File dir = new File(root, toHex(digest.digest()));
+            File file = new File(dir, name);
+            // no race: one ingestion at a time
+            if (file.isFile() && file.length() == tmpFile.length()) {
+                Const.logd("ingest deduped: " + file);
+                tmpFile.delete();
+                return file;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                tmpFile.delete();
+                throw new IOException("cannot make " + dir);
+            }
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("cannot move to " + file);
+            }
+            return file;
+        }
+    }
+
+    // big enough that a 200 MB video is a few hundred reads
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    private static final String NO_NAME = "noname.att";
+
+    private static final Handler sHandler =
+            new Handler(Looper.getMainLooper());
+
+    // one at a time: they share the storage
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "attachment-ingester");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static File getRootDir(Context context) {
+        File cacheDir = context.getExternalCacheDir();
+        if (cacheDir == null) {
+            // e.g. no sd card
+            cacheDir = context.getCacheDir();
+        }
+        return new File(cacheDir, "attachments");
+    }
+
+    /**
+     * start copying on the ingester thread
+     *
+     * @param name
+     *            display name, kept as the file name
+     */
+    public static Ingestion ingest(Context context, Uri contentUri,
+            String mimeType, String name, Listener listener) {
+        Ingestion ingestion = new Ingestion(context.getApplicationContext(),
+                contentUri, mimeType, toFileName(name), listener);
+        sExecutor.execute(ingestion);
+        return ingestion;
+    }
+
+    private static String toFileName(String name) {
+        if (name == null) {
+            return NO_NAME;
+        }
+        name = name.replace('/', '_').trim();
+        return name.isEmpty() || name.startsWith(".") ? NO_NAME : name;
+    }
+
+    private static String toHex(byte[] a) {
+        StringBuilder sb = new StringBuilder(a.length * 2);
+        for (byte b : a) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private AttachmentIngester() {
+        // dummy
+    }
+}
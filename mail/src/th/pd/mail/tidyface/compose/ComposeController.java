@@ -1,14 +1,18 @@
 package th.pd.mail.tidyface.compose;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
+import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.view.View;
@@ -19,7 +23,9 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import cc.typedef.droid.common.QueryUtil;
 import cc.typedef.droid.common.view.TabController;
+import th.pd.mail.Const;
 import th.pd.mail.R;
 import th.pd.mail.dao.Message.Attachment;
 
@@ -28,10 +34,13 @@ import th.pd.mail.dao.Message.Attachment;
  * models store data and status and no logic<br/>
  * views just represent models<br/>
  */
-class ComposeController implements TabController.Callback {
+class ComposeController implements TabController.Callback,
+        AttachmentIngester.Listener {
 
     interface Listener {
 
+        void onAttachFailed(String name);
+
         void onCleanExit();
 
         void onPickFile();
@@ -68,7 +77,18 @@ class ComposeController implements TabController.Callback {
     private EditText mEditMailContent;
 
     private View mBtnAttach;
-    // TODO attachment
+    private TextView mTxtAttachments;
+
+    // copies on the way, to the model they go
+    private final Map<AttachmentIngester.Ingestion, ComposeModel> mIngestions =
+            new HashMap<>();
+
+    // of the copies on the way, -1 if the size is unknown
+    private final Map<AttachmentIngester.Ingestion, Integer> mIngestPercents =
+            new HashMap<>();
+
+    // handed to the outbox; their grants are released by the sync process
+    private final Set<Uri> mQueuedUris = new HashSet<>();
 
     private final View.OnClickListener mTabClickListener =
             new View.OnClickListener() {
@@ -107,16 +127,28 @@ class ComposeController implements TabController.Callback {
                 }
             };
 
+    /**
+     * referenced as is if its read grant persists, to be streamed when
+     * sent; otherwise copied off the ui thread and it joins the model when
+     * done
+     */
     public void addAttachment(Uri contentUri, String mimeType,
             String displayName, Context context) {
         ComposeModel model = getCurrentModel();
         updateToModel(model);
 
-        Attachment attachment = new Attachment();
-        attachment.mimeType = mimeType;
-        attachment.file = saveContentUriAsFile(contentUri, mimeType,
-                displayName, context);
-        model.addAttachment(attachment);
+        if (takeReadGrant(contentUri, context)) {
+            Attachment attachment = new Attachment();
+            attachment.contentUri = contentUri;
+            attachment.mimeType = mimeType;
+            attachment.name = displayName;
+            attachment.size = QueryUtil.querySize(contentUri,
+                    context.getContentResolver());
+            model.addAttachment(attachment);
+        } else {
+            mIngestions.put(AttachmentIngester.ingest(context, contentUri,
+                    mimeType, displayName, this), model);
+        }
         updateAttachmentRow(model);
     }
 
@@ -136,6 +168,23 @@ class ComposeController implements TabController.Callback {
         return true;
     }
 
+    /**
+     * of the model, or all if null
+     */
+    public void cancelIngestions(ComposeModel model) {
+        Iterator<Map.Entry<AttachmentIngester.Ingestion, ComposeModel>> it =
+                mIngestions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<AttachmentIngester.Ingestion, ComposeModel> entry =
+                    it.next();
+            if (model == null || entry.getValue() == model) {
+                entry.getKey().cancel();
+                mIngestPercents.remove(entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
     public ComposeModel getCurrentModel() {
         return getModel(mCurrentModelIndex);
     }
@@ -157,6 +206,73 @@ class ComposeController implements TabController.Callback {
         return model;
     }
 
+    /**
+     * a copy of the model is on the way, which its message does not have
+     * yet
+     */
+    public boolean hasPendingIngestions(ComposeModel model) {
+        return mIngestions.containsValue(model);
+    }
+
+    /**
+     * its content uris are read by the sync process from now on
+     */
+    public void markQueued(ComposeModel model) {
+        for (Attachment attachment : model.getAttachments()) {
+            if (attachment.contentUri != null) {
+                mQueuedUris.add(attachment.contentUri);
+            }
+        }
+    }
+
+    @Override
+    public void onIngestFailed(AttachmentIngester.Ingestion ingestion,
+            IOException e) {
+        ComposeModel model = mIngestions.remove(ingestion);
+        if (model == null) {
+            return;
+        }
+        mIngestPercents.remove(ingestion);
+        if (model == getCurrentModel()) {
+            updateAttachmentRow(model);
+        }
+        if (mListener != null) {
+            mListener.onAttachFailed(ingestion.name);
+        }
+    }
+
+    @Override
+    public void onIngestProgress(AttachmentIngester.Ingestion ingestion,
+            long done, long total) {
+        ComposeModel model = mIngestions.get(ingestion);
+        if (model == null) {
+            return;
+        }
+        int percent = total > 0 ? (int) (done * 100 / total) : -1;
+        Integer last = mIngestPercents.put(ingestion, percent);
+        if (model == getCurrentModel()
+                && (last == null || last != percent)) {
+            updateAttachmentRow(model);
+        }
+    }
+
+    @Override
+    public void onIngested(AttachmentIngester.Ingestion ingestion,
+            File file) {
+        ComposeModel model = mIngestions.remove(ingestion);
+        if (model == null) {
+            return;
+        }
+        mIngestPercents.remove(ingestion);
+        Attachment attachment = new Attachment();
+        attachment.mimeType = ingestion.mimeType;
+        attachment.file = file;
+        model.addAttachment(attachment);
+        if (model == getCurrentModel()) {
+            updateAttachmentRow(model);
+        }
+    }
+
     @Override
     public View onTabCreate(int viewType) {
         int tabHeight = mRes.getDimensionPixelSize(
@@ -217,6 +333,33 @@ class ComposeController implements TabController.Callback {
         }
     }
 
+    /**
+     * of the model, or all if null; a content uri queued or in another tab
+     * keeps its grant
+     */
+    public void releaseReadGrants(ComposeModel model) {
+        List<ComposeModel> models = model == null
+                ? mModelList
+                : Collections.singletonList(model);
+        Set<Uri> inUse = new HashSet<>(mQueuedUris);
+        for (ComposeModel other : mModelList) {
+            if (model != null && other != model) {
+                for (Attachment attachment : other.getAttachments()) {
+                    inUse.add(attachment.contentUri);
+                }
+            }
+        }
+        Context context = mLabelSubject.getContext();
+        for (ComposeModel m : models) {
+            for (Attachment attachment : m.getAttachments()) {
+                if (attachment.contentUri != null
+                        && inUse.add(attachment.contentUri)) {
+                    attachment.releaseReadGrant(context);
+                }
+            }
+        }
+    }
+
     public void removeCurrentTab() {
         removeTab(mCurrentModelIndex);
     }
@@ -241,6 +384,8 @@ class ComposeController implements TabController.Callback {
 
         ComposeModel model = mModelList.remove(tabIndex);
         mTabController.removeTab(tabIndex);
+        cancelIngestions(model);
+        releaseReadGrants(model);
 
         updateTabContainer();
 
@@ -253,31 +398,6 @@ class ComposeController implements TabController.Callback {
         }
     }
 
-    // TODO async progress
-    private File saveContentUriAsFile(Uri contentUri, String mimeType,
-            String name, Context context) {
-        File cacheDir = context.getExternalCacheDir();
-        if (name == null) {
-            name = "noname.att";
-        }
-        File file = new File(cacheDir + "/" + name);
-        try {
-            InputStream is = context.getContentResolver().openInputStream(
-                    contentUri);
-            FileOutputStream os = new FileOutputStream(file);
-            byte[] buffer = new byte[2048];
-            int bufferSize = 0;
-            while ((bufferSize = is.read(buffer)) != -1) {
-                os.write(buffer, 0, bufferSize);
-            }
-            os.close();
-            return file;
-        } catch (FileNotFoundException e) {
-        } catch (IOException e) {
-        }
-        return null;
-    }
-
     public void setListener(Listener listener) {
         mListener = listener;
     }
@@ -295,6 +415,7 @@ class ComposeController implements TabController.Callback {
         mEditBcc = (EditText) view.findViewById(R.id.bcc);
         mEditMailContent = (EditText) view.findViewById(R.id.mailContent);
         mBtnAttach = view.findViewById(R.id.btnAttach);
+        mTxtAttachments = (TextView) view.findViewById(R.id.txtAttachments);
 
         mLabelRecipient.setOnClickListener(new View.OnClickListener() {
 
@@ -347,11 +468,53 @@ class ComposeController implements TabController.Callback {
         updateTabContent(getCurrentModel());
     }
 
+    /**
+     * the outbox is sent from the sync process, maybe after a restart; the
+     * grant is released when the message is done with, or the tab discarded
+     */
+    private static boolean takeReadGrant(Uri contentUri, Context context) {
+        try {
+            context.getContentResolver().takePersistableUriPermission(
+                    contentUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            return true;
+        } catch (SecurityException e) {
+            // e.g. picked by ACTION_GET_CONTENT
+            Const.logd("no persistable grant: " + contentUri);
+            return false;
+        }
+    }
+
+    /**
+     * names of the attachments, then of the copies on the way with their
+     * progress
+     */
     private void updateAttachmentRow(ComposeModel model) {
         if (model == null) {
             return;
         }
-        // TODO show attachment
+        StringBuilder sb = new StringBuilder();
+        for (Attachment attachment : model.getAttachments()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(attachment.getName());
+        }
+        for (Map.Entry<AttachmentIngester.Ingestion, ComposeModel> entry
+                : mIngestions.entrySet()) {
+            if (entry.getValue() != model) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            Integer percent = mIngestPercents.get(entry.getKey());
+            sb.append(entry.getKey().name).append(" (")
+                    .append(percent == null || percent < 0
+                            ? "..."
+                            : percent + "%")
+                    .append(')');
+        }
+        mTxtAttachments.setText(sb);
     }
 
     private TextView updateTabCaption(ComposeModel model, View tabView) {
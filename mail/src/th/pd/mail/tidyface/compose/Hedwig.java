@@ -6,11 +6,14 @@ import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.ActivityNotFoundException;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,6 +34,32 @@ public class Hedwig extends Fragment implements ComposeController.Listener {
     private ComposeController mComposeController;
     private View mBtnSend;
 
+    /**
+     * the outbox write is off the main thread; a failure is told on it,
+     * where the screen may be gone already
+     */
+    private void enqueue(final SmtpSyncable syncMessage) {
+        final Context context = getActivity().getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (FastSyncAccess.enqueueMessage(context, syncMessage)) {
+                    return;
+                }
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, "cannot queue the message",
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "enqueue").start();
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -65,6 +94,13 @@ public class Hedwig extends Fragment implements ComposeController.Listener {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    @Override
+    public void onAttachFailed(String name) {
+        Toast.makeText(getActivity(),
+                getString(R.string.cannot_attach_file, name),
+                Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     public void onCleanExit() {
         this.getActivity().finish();
@@ -84,6 +120,10 @@ public class Hedwig extends Fragment implements ComposeController.Listener {
                 Toast.makeText(getActivity(), "no recipient",
                         Toast.LENGTH_SHORT).show();
                 break;
+            case -4:
+                Toast.makeText(getActivity(), "attachment not ready",
+                        Toast.LENGTH_SHORT).show();
+                break;
             default:
                 break;
         }
@@ -110,12 +150,22 @@ public class Hedwig extends Fragment implements ComposeController.Listener {
         return view;
     }
 
+    @Override
+    public void onDestroy() {
+        // a copy still on its way is dropped, and so are the drafts
+        mComposeController.cancelIngestions(null);
+        mComposeController.releaseReadGrants(null);
+        super.onDestroy();
+    }
+
     @Override
     public void onPickFile() {
-        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        // a document grant can persist, so the content is read only when sent
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.setType("*/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
-        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION
+                | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
         Intent wrapperIntent = Intent.createChooser(intent,
                 "Select a File to Upload");
 
@@ -144,6 +194,13 @@ public class Hedwig extends Fragment implements ComposeController.Listener {
             return -1;
         }
 
+        if (!syncMessage.hasPersistableAttachments()
+                || mComposeController.hasPendingIngestions(
+                        mComposeController.getCurrentModel())) {
+            // an attachment not yet copied into a file
+            return -4;
+        }
+
         if (willCheckEmptySubject && !syncMessage.hasSubject()) {
             DialogInterface.OnClickListener dialogButtonListener =
                     new DialogInterface.OnClickListener() {
@@ -204,9 +261,10 @@ public class Hedwig extends Fragment implements ComposeController.Listener {
             // monkey user
             return -9;
         }
-        FastSyncAccess.enqueueMessage(syncMessage);
+        mComposeController.markQueued(mComposeController.getCurrentModel());
+        enqueue(syncMessage);
 
-        // successfully enqueued
+        // to be enqueued
         return 1;
     }
 